@@ -0,0 +1,265 @@
+package qupath.lib.algorithms;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Measure the intensities of all channels within objects (e.g. nuclei), together with the colocalisation
+ * between every pair of channels.
+ *
+ * The image is read tile by tile and the objects are painted into a label image; a single sweep over the
+ * pixels then accumulates, for every object, the sums, sums of squares, maxima and cross-products of all channels.
+ * The mean, maximum and integrated intensity of each channel and the Pearson correlation and Manders coefficients
+ * of each pair of channels are derived from these and added to the measurement list of the object.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ColocalisationMeasurer {
+
+	private static final Logger logger = LoggerFactory.getLogger(ColocalisationMeasurer.class);
+
+	/**
+	 * Size of the tiles that are read, in pixels.
+	 */
+	public static final int TILE_SIZE = 1024;
+
+	private static final int MAX_LABEL = 0xFFFFFF;
+
+	private final int nChannels;
+	private final double[] thresholds;
+	private final String[] names;
+
+	/**
+	 * Create a measurer for an image with a specified number of channels.
+	 *
+	 * @param nChannels
+	 * @param thresholds Threshold per channel for the Manders coefficients (a pixel counts as 'positive' for a channel
+	 * 					if its value is above the threshold); may be null, in which case all thresholds are 0
+	 * @param prefix Prefix for the measurement names, e.g. "Nucleus: "
+	 */
+	public ColocalisationMeasurer(final int nChannels, final double[] thresholds, final String prefix) {
+		this.nChannels = nChannels;
+		this.thresholds = thresholds == null ? new double[nChannels] : Arrays.copyOf(thresholds, nChannels);
+
+		// Create the measurement names once
+		List<String> names = new ArrayList<>();
+		for (int c = 0; c < nChannels; c++) {
+			String channel = "Channel " + (c + 1);
+			names.add(prefix + channel + " mean");
+			names.add(prefix + channel + " max");
+			names.add(prefix + channel + " integrated intensity");
+		}
+		for (int c1 = 0; c1 < nChannels; c1++) {
+			for (int c2 = c1 + 1; c2 < nChannels; c2++) {
+				String pair = "Channel " + (c1 + 1) + " & " + (c2 + 1);
+				names.add(prefix + pair + " Pearson");
+				names.add(prefix + pair + " Manders M1");
+				names.add(prefix + pair + " Manders M2");
+			}
+		}
+		this.names = names.toArray(new String[0]);
+	}
+
+	/**
+	 * Get the names of the measurements that are added to every object.
+	 * @return
+	 */
+	public List<String> getMeasurementNames() {
+		return Arrays.asList(names);
+	}
+
+	/**
+	 * Measure all objects, and add the results to their measurement lists.
+	 *
+	 * All objects are assumed to be on the same z-slice & time point.
+	 *
+	 * @param server
+	 * @param pathObjects
+	 * @param downsample Downsample factor at which the image is read
+	 * @throws IOException
+	 */
+	public void measure(final ImageServer<BufferedImage> server, final List<? extends PathObject> pathObjects, final double downsample) throws IOException {
+		if (pathObjects.isEmpty())
+			return;
+		if (pathObjects.size() > MAX_LABEL)
+			throw new IllegalArgumentException("Cannot measure more than " + MAX_LABEL + " objects at once");
+
+		int n = pathObjects.size();
+		int nPairs = nChannels * (nChannels - 1) / 2;
+		long[] count = new long[n + 1];
+		double[] sum = new double[(n + 1) * nChannels];
+		double[] sumSq = new double[(n + 1) * nChannels];
+		double[] max = new double[(n + 1) * nChannels];
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		double[] sumProduct = new double[(n + 1) * nPairs];
+		double[] sumColocalised1 = new double[(n + 1) * nPairs];
+		double[] sumColocalised2 = new double[(n + 1) * nPairs];
+
+		// Determine the region covered by the objects, within the image
+		double xMin = Double.POSITIVE_INFINITY, yMin = Double.POSITIVE_INFINITY;
+		double xMax = Double.NEGATIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+		for (PathObject pathObject : pathObjects) {
+			ROI roi = pathObject.getROI();
+			xMin = Math.min(xMin, roi.getBoundsX());
+			yMin = Math.min(yMin, roi.getBoundsY());
+			xMax = Math.max(xMax, roi.getBoundsX() + roi.getBoundsWidth());
+			yMax = Math.max(yMax, roi.getBoundsY() + roi.getBoundsHeight());
+		}
+		int x0 = (int)Math.max(0, Math.floor(xMin));
+		int y0 = (int)Math.max(0, Math.floor(yMin));
+		int x1 = (int)Math.min(server.getWidth(), Math.ceil(xMax));
+		int y1 = (int)Math.min(server.getHeight(), Math.ceil(yMax));
+		int tileSize = (int)Math.round(TILE_SIZE * downsample);
+		ROI firstROI = pathObjects.get(0).getROI();
+
+		// Assign the objects to the tiles they touch
+		int nTilesX = Math.max(1, (x1 - x0 + tileSize - 1) / tileSize);
+		int nTilesY = Math.max(1, (y1 - y0 + tileSize - 1) / tileSize);
+		List<List<Integer>> tiles = new ArrayList<>(nTilesX * nTilesY);
+		for (int t = 0; t < nTilesX * nTilesY; t++)
+			tiles.add(null);
+		for (int i = 0; i < n; i++) {
+			ROI roi = pathObjects.get(i).getROI();
+			int tx1 = Math.max(0, (int)Math.floor((roi.getBoundsX() - x0) / tileSize));
+			int ty1 = Math.max(0, (int)Math.floor((roi.getBoundsY() - y0) / tileSize));
+			int tx2 = Math.min(nTilesX - 1, (int)Math.floor((roi.getBoundsX() + roi.getBoundsWidth() - x0) / tileSize));
+			int ty2 = Math.min(nTilesY - 1, (int)Math.floor((roi.getBoundsY() + roi.getBoundsHeight() - y0) / tileSize));
+			for (int ty = ty1; ty <= ty2; ty++) {
+				for (int tx = tx1; tx <= tx2; tx++) {
+					int t = ty * nTilesX + tx;
+					if (tiles.get(t) == null)
+						tiles.set(t, new ArrayList<>());
+					tiles.get(t).add(i);
+				}
+			}
+		}
+
+		// Read & measure every tile containing objects
+		float[][] pixels = new float[nChannels][];
+		for (int t = 0; t < nTilesX * nTilesY; t++) {
+			List<Integer> inds = tiles.get(t);
+			if (inds == null)
+				continue;
+			int x = x0 + (t % nTilesX) * tileSize;
+			int y = y0 + (t / nTilesX) * tileSize;
+			int w = Math.min(tileSize, x1 - x);
+			int h = Math.min(tileSize, y1 - y);
+			if (w <= 0 || h <= 0)
+				continue;
+			BufferedImage img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), downsample, x, y, w, h, firstROI.getZ(), firstROI.getT()));
+			WritableRaster raster = img.getRaster();
+			int width = img.getWidth();
+			int height = img.getHeight();
+			if (raster.getNumBands() < nChannels)
+				throw new IllegalArgumentException("Image has " + raster.getNumBands() + " channels, but " + nChannels + " are required");
+			for (int c = 0; c < nChannels; c++)
+				pixels[c] = raster.getSamples(0, 0, width, height, c, pixels[c] != null && pixels[c].length == width * height ? pixels[c] : null);
+
+			// Paint the labels
+			BufferedImage imgLabels = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g2d = imgLabels.createGraphics();
+			g2d.scale(1.0/downsample, 1.0/downsample);
+			g2d.translate(-x, -y);
+			for (int ind : inds) {
+				g2d.setColor(new Color(ind + 1));
+				g2d.fill(PathROIToolsAwt.getShape(pathObjects.get(ind).getROI()));
+			}
+			g2d.dispose();
+			int[] labels = ((DataBufferInt)imgLabels.getRaster().getDataBuffer()).getData();
+
+			// Accumulate the statistics for all channels in one sweep
+			for (int i = 0; i < labels.length; i++) {
+				int label = labels[i] & MAX_LABEL;
+				if (label == 0)
+					continue;
+				count[label]++;
+				int offset = label * nChannels;
+				for (int c = 0; c < nChannels; c++) {
+					double v = pixels[c][i];
+					sum[offset + c] += v;
+					sumSq[offset + c] += v * v;
+					if (v > max[offset + c])
+						max[offset + c] = v;
+				}
+				int offsetPair = label * nPairs;
+				for (int c1 = 0; c1 < nChannels; c1++) {
+					double v1 = pixels[c1][i];
+					for (int c2 = c1 + 1; c2 < nChannels; c2++) {
+						double v2 = pixels[c2][i];
+						sumProduct[offsetPair] += v1 * v2;
+						if (v2 > thresholds[c2])
+							sumColocalised1[offsetPair] += v1;
+						if (v1 > thresholds[c1])
+							sumColocalised2[offsetPair] += v2;
+						offsetPair++;
+					}
+				}
+			}
+		}
+
+		// Write the measurements
+		double pixelArea = downsample * downsample;
+		double[] values = new double[names.length];
+		for (int i = 0; i < n; i++) {
+			int label = i + 1;
+			long nPixels = count[label];
+			int k = 0;
+			int offset = label * nChannels;
+			for (int c = 0; c < nChannels; c++) {
+				values[k++] = nPixels == 0 ? Double.NaN : sum[offset + c] / nPixels;
+				values[k++] = nPixels == 0 ? Double.NaN : max[offset + c];
+				values[k++] = sum[offset + c] * pixelArea;
+			}
+			int offsetPair = label * nPairs;
+			for (int c1 = 0; c1 < nChannels; c1++) {
+				for (int c2 = c1 + 1; c2 < nChannels; c2++) {
+					double s1 = sum[offset + c1];
+					double s2 = sum[offset + c2];
+					double covariance = nPixels * sumProduct[offsetPair] - s1 * s2;
+					double variance1 = nPixels * sumSq[offset + c1] - s1 * s1;
+					double variance2 = nPixels * sumSq[offset + c2] - s2 * s2;
+					values[k++] = variance1 > 0 && variance2 > 0 ? covariance / Math.sqrt(variance1 * variance2) : Double.NaN;
+					values[k++] = s1 != 0 ? sumColocalised1[offsetPair] / s1 : Double.NaN;
+					values[k++] = s2 != 0 ? sumColocalised2[offsetPair] / s2 : Double.NaN;
+					offsetPair++;
+				}
+			}
+			addMeasurements(pathObjects.get(i).getMeasurementList(), values);
+		}
+		logger.debug("Colocalisation measured for {} objects in {} channels", n, nChannels);
+	}
+
+	/**
+	 * Add the measurements as one block; if the list already contains them (e.g. from a previous run), they are replaced.
+	 */
+	private void addMeasurements(final MeasurementList measurementList, final double[] values) {
+		measurementList.ensureListOpen();
+		boolean replace = measurementList.containsNamedMeasurement(names[0]);
+		for (int k = 0; k < names.length; k++) {
+			if (replace)
+				measurementList.putMeasurement(names[k], values[k]);
+			else
+				measurementList.addMeasurement(names[k], values[k]);
+		}
+		measurementList.closeList();
+	}
+
+}
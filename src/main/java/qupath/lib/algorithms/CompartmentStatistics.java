@@ -0,0 +1,203 @@
+package qupath.lib.algorithms;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Intensity statistics of all channels within the nucleus, cell & cytoplasm of every object, accumulated in a single
+ * sweep over the labelled images.
+ *
+ * The count, sum, sum of squares, minimum and maximum are stored in primitive arrays per compartment & channel,
+ * indexed by the label of the object; every pixel is visited once, whatever the number of channels or compartments.
+ * Nucleus statistics are computed for the nucleus channels, cell & cytoplasm statistics for the cell channels.
+ * 8-bit and 16-bit channels are read from their own pixel arrays, without converting them to float first.
+ * As for RunningStatistics, NaN values are ignored and the statistics of empty objects are NaN.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class CompartmentStatistics {
+
+	public enum Compartment {NUCLEUS, CELL, CYTOPLASM}
+
+	private final int nObjects;
+	private final ChannelPixels[] nucleusChannels;
+	private final ChannelPixels[] cellChannels;
+
+	// Indexed by [compartment][channel][label]
+	private final int[][][] counts;
+	private final double[][][] sums;
+	private final double[][][] sumSquares;
+	private final float[][][] mins;
+	private final float[][][] maxs;
+
+	/**
+	 * @param channelsNucleus Channels to measure within nuclei
+	 * @param channelsCell Channels to measure within cells & cytoplasm
+	 * @param nObjects Number of objects, labelled from 1 to nObjects
+	 */
+	public CompartmentStatistics(final Map<String, ? extends ImageProcessor> channelsNucleus, final Map<String, ? extends ImageProcessor> channelsCell, final int nObjects) {
+		this.nObjects = nObjects;
+		nucleusChannels = getPixels(channelsNucleus);
+		cellChannels = getPixels(channelsCell);
+		int nCompartments = Compartment.values().length;
+		counts = new int[nCompartments][][];
+		sums = new double[nCompartments][][];
+		sumSquares = new double[nCompartments][][];
+		mins = new float[nCompartments][][];
+		maxs = new float[nCompartments][][];
+		for (Compartment compartment : Compartment.values()) {
+			int c = compartment.ordinal();
+			int nChannels = compartment == Compartment.NUCLEUS ? nucleusChannels.length : cellChannels.length;
+			counts[c] = new int[nChannels][nObjects + 1];
+			sums[c] = new double[nChannels][nObjects + 1];
+			sumSquares[c] = new double[nChannels][nObjects + 1];
+			mins[c] = new float[nChannels][nObjects + 1];
+			maxs[c] = new float[nChannels][nObjects + 1];
+			for (int channel = 0; channel < nChannels; channel++) {
+				Arrays.fill(mins[c][channel], Float.POSITIVE_INFINITY);
+				Arrays.fill(maxs[c][channel], Float.NEGATIVE_INFINITY);
+			}
+		}
+	}
+
+	private static ChannelPixels[] getPixels(final Map<String, ? extends ImageProcessor> channels) {
+		ChannelPixels[] pixels = new ChannelPixels[channels == null ? 0 : channels.size()];
+		int i = 0;
+		if (channels != null) {
+			for (ImageProcessor ip : channels.values())
+				pixels[i++] = new ChannelPixels(ip);
+		}
+		return pixels;
+	}
+
+	/**
+	 * Accumulate the statistics of all pixels in a single sweep.
+	 * @param ipLabelsNuclei Labelled nuclei
+	 * @param ipLabelsCells Labelled cells, using the same labels as the nuclei; may be null if there are no cells
+	 */
+	public void accumulate(final ImageProcessor ipLabelsNuclei, final ImageProcessor ipLabelsCells) {
+		int n = ipLabelsNuclei.getWidth() * ipLabelsNuclei.getHeight();
+		for (int i = 0; i < n; i++) {
+			int nucleus = (int)ipLabelsNuclei.getf(i);
+			int cell = ipLabelsCells == null ? 0 : (int)ipLabelsCells.getf(i);
+			if (nucleus != 0 || cell != 0)
+				add(i, nucleus, cell);
+		}
+	}
+
+	/**
+	 * Add a single pixel; this allows the statistics to be accumulated while the labels are being created.
+	 * @param i Index of the pixel
+	 * @param nucleus Label of the nucleus containing the pixel, or 0
+	 * @param cell Label of the cell containing the pixel, or 0
+	 */
+	public void add(final int i, final int nucleus, final int cell) {
+		if (nucleus > 0 && nucleus <= nObjects) {
+			for (int channel = 0; channel < nucleusChannels.length; channel++)
+				add(Compartment.NUCLEUS.ordinal(), channel, nucleus, nucleusChannels[channel].getValue(i));
+		}
+		if (cell > 0 && cell <= nObjects) {
+			for (int channel = 0; channel < cellChannels.length; channel++) {
+				float value = cellChannels[channel].getValue(i);
+				add(Compartment.CELL.ordinal(), channel, cell, value);
+				if (nucleus == 0)
+					add(Compartment.CYTOPLASM.ordinal(), channel, cell, value);
+			}
+		}
+	}
+
+	private void add(final int c, final int channel, final int label, final float value) {
+		if (Float.isNaN(value))
+			return;
+		counts[c][channel][label]++;
+		sums[c][channel][label] += value;
+		sumSquares[c][channel][label] += (double)value * value;
+		if (value < mins[c][channel][label])
+			mins[c][channel][label] = value;
+		if (value > maxs[c][channel][label])
+			maxs[c][channel][label] = value;
+	}
+
+	/**
+	 * Get the number of (non-NaN) pixels of an object.
+	 * @param compartment
+	 * @param channel Index of the channel, in the order of the channel map
+	 * @param ind Index of the object, i.e. its label - 1
+	 * @return
+	 */
+	public int getCount(final Compartment compartment, final int channel, final int ind) {
+		return counts[compartment.ordinal()][channel][ind + 1];
+	}
+
+	public double getSum(final Compartment compartment, final int channel, final int ind) {
+		return sums[compartment.ordinal()][channel][ind + 1];
+	}
+
+	public double getMean(final Compartment compartment, final int channel, final int ind) {
+		return getSum(compartment, channel, ind) / getCount(compartment, channel, ind);
+	}
+
+	/**
+	 * Get the (sample) standard deviation, or NaN if the object contains fewer than two pixels.
+	 * @param compartment
+	 * @param channel
+	 * @param ind
+	 * @return
+	 */
+	public double getStdDev(final Compartment compartment, final int channel, final int ind) {
+		int n = getCount(compartment, channel, ind);
+		if (n < 2)
+			return Double.NaN;
+		double sum = getSum(compartment, channel, ind);
+		double variance = (sumSquares[compartment.ordinal()][channel][ind + 1] - sum * sum / n) / (n - 1);
+		return Math.sqrt(Math.max(variance, 0));
+	}
+
+	public double getMin(final Compartment compartment, final int channel, final int ind) {
+		return getCount(compartment, channel, ind) == 0 ? Double.NaN : mins[compartment.ordinal()][channel][ind + 1];
+	}
+
+	public double getMax(final Compartment compartment, final int channel, final int ind) {
+		return getCount(compartment, channel, ind) == 0 ? Double.NaN : maxs[compartment.ordinal()][channel][ind + 1];
+	}
+
+	public double getRange(final Compartment compartment, final int channel, final int ind) {
+		return getMax(compartment, channel, ind) - getMin(compartment, channel, ind);
+	}
+
+	/**
+	 * Pixels of a channel, in the native array of its processor.
+	 */
+	private static class ChannelPixels {
+
+		private final float[] floatPixels;
+		private final short[] shortPixels;
+		private final byte[] bytePixels;
+		private final ImageProcessor ip;
+
+		ChannelPixels(final ImageProcessor ip) {
+			this.floatPixels = ip instanceof FloatProcessor ? (float[])ip.getPixels() : null;
+			this.shortPixels = ip instanceof ShortProcessor ? (short[])ip.getPixels() : null;
+			this.bytePixels = ip instanceof ByteProcessor ? (byte[])ip.getPixels() : null;
+			this.ip = ip;
+		}
+
+		float getValue(final int i) {
+			if (floatPixels != null)
+				return floatPixels[i];
+			if (shortPixels != null)
+				return shortPixels[i] & 0xffff;
+			if (bytePixels != null)
+				return bytePixels[i] & 0xff;
+			return ip.getf(i);
+		}
+
+	}
+
+}
@@ -0,0 +1,386 @@
+package qupath.lib.algorithms;
+
+import java.util.Arrays;
+
+import ij.process.ImageProcessor;
+
+/**
+ * Helper class for connected component labelling of binary images.
+ *
+ * Alongside the label image the area, bounding box, intensity sum, sum of squares and centroid
+ * of every component are accumulated while scanning the image. Components can therefore be
+ * filtered by size or intensity before any polygon is traced.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ConnectedComponents {
+
+	/**
+	 * Label the non-zero pixels of a binary mask and compute the statistics of each component.
+	 *
+	 * Provisional labels are merged with a union-find structure during the scan, so the pixel data is
+	 * only visited once; a second (cheap) pass afterwards replaces provisional labels by their final value.
+	 * Final labels are numbered 1..n in raster order of the first pixel of each component.
+	 *
+	 * @param mask Binary image, any non-zero value is considered foreground
+	 * @param intensities Intensity values used for the statistics (may be null)
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param labels Output array for the labels, will be created if null or too small
+	 * @param eightConnected Use 8-connectivity instead of 4-connectivity
+	 * @return The statistics of the labelled components
+	 */
+	public static ComponentStatistics label(final byte[] mask, final float[] intensities, final int width, final int height, int[] labels, final boolean eightConnected) {
+
+		final int n = width * height;
+		if (labels == null || labels.length < n)
+			labels = new int[n];
+
+		ComponentStatistics provisional = new ComponentStatistics(labels, 64);
+		int[] parent = new int[64];
+		int nProvisional = 0;
+
+		// First pass: assign provisional labels & accumulate statistics
+		for (int y = 0; y < height; y++) {
+			int row = y * width;
+			for (int x = 0; x < width; x++) {
+				int i = row + x;
+				if (mask[i] == 0) {
+					labels[i] = 0;
+					continue;
+				}
+
+				// Find the smallest root among the previously visited neighbours
+				int label = 0;
+				if (x > 0 && labels[i-1] != 0)
+					label = find(parent, labels[i-1]);
+				if (y > 0) {
+					int up = labels[i-width];
+					if (up != 0)
+						label = union(parent, label, up);
+					if (eightConnected) {
+						if (x > 0 && labels[i-width-1] != 0)
+							label = union(parent, label, labels[i-width-1]);
+						if (x < width-1 && labels[i-width+1] != 0)
+							label = union(parent, label, labels[i-width+1]);
+					}
+				}
+
+				// Create a new provisional label if there were no labelled neighbours
+				if (label == 0) {
+					nProvisional++;
+					if (nProvisional >= parent.length) {
+						parent = Arrays.copyOf(parent, parent.length * 2);
+					}
+					provisional.ensureCapacity(nProvisional + 1);
+					parent[nProvisional] = nProvisional;
+					label = nProvisional;
+				}
+				labels[i] = label;
+				provisional.addPixel(label, x, y, intensities == null ? 0 : intensities[i]);
+			}
+		}
+
+		// Assign final labels to the roots & merge the statistics of the provisional labels
+		int[] finalLabels = new int[nProvisional + 1];
+		int nComponents = 0;
+		for (int l = 1; l <= nProvisional; l++) {
+			int root = find(parent, l);
+			if (root == l)
+				finalLabels[l] = ++nComponents;
+			else
+				finalLabels[l] = finalLabels[root];
+		}
+		ComponentStatistics stats = new ComponentStatistics(labels, nComponents + 1);
+		stats.nComponents = nComponents;
+		for (int l = 1; l <= nProvisional; l++)
+			stats.merge(finalLabels[l], provisional, l);
+
+		// Second pass: replace provisional labels
+		for (int i = 0; i < n; i++) {
+			if (labels[i] != 0)
+				labels[i] = finalLabels[labels[i]];
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Label the non-zero pixels of an 8-bit image, using the pixel values of a second image for the statistics.
+	 *
+	 * @param bp Binary image (must be a ByteProcessor)
+	 * @param ipIntensities Image containing the intensities (may be null)
+	 * @param eightConnected Use 8-connectivity instead of 4-connectivity
+	 * @return
+	 */
+	public static ComponentStatistics label(final ImageProcessor bp, final ImageProcessor ipIntensities, final boolean eightConnected) {
+		return label((byte[])bp.getPixels(), getFloatPixels(ipIntensities), bp.getWidth(), bp.getHeight(), null, eightConnected);
+	}
+
+	/**
+	 * Compute the statistics of an image that has already been labelled (e.g. by a watershed transform).
+	 *
+	 * @param ipLabels Labelled image, 0 is considered background
+	 * @param ipIntensities Image containing the intensities (may be null)
+	 * @return
+	 */
+	public static ComponentStatistics measure(final ImageProcessor ipLabels, final ImageProcessor ipIntensities) {
+		int width = ipLabels.getWidth();
+		int height = ipLabels.getHeight();
+		int[] labels = new int[width * height];
+		int maxLabel = 0;
+		for (int i = 0; i < labels.length; i++) {
+			int label = (int)ipLabels.getf(i);
+			labels[i] = label > 0 ? label : 0;
+			if (label > maxLabel)
+				maxLabel = label;
+		}
+
+		float[] intensities = getFloatPixels(ipIntensities);
+		ComponentStatistics stats = new ComponentStatistics(labels, maxLabel + 1);
+		stats.nComponents = maxLabel;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int i = y * width + x;
+				if (labels[i] != 0)
+					stats.addPixel(labels[i], x, y, intensities == null ? 0 : intensities[i]);
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Remove all components that do not fulfill the given criteria from the mask and from the label image.
+	 *
+	 * @param stats Statistics returned by the labelling
+	 * @param mask Binary mask from which the rejected components should be cleared (may be null)
+	 * @param minArea Minimum number of pixels, ignored if <= 0
+	 * @param maxArea Maximum number of pixels, ignored if <= 0
+	 * @param minMean Minimum mean intensity, ignored if NaN
+	 * @return Array with, for each label, whether or not it was kept
+	 */
+	public static boolean[] filter(final ComponentStatistics stats, final byte[] mask, final double minArea, final double maxArea, final double minMean) {
+
+		// Decide per component - this only touches the statistics, not the pixels
+		boolean[] keep = new boolean[stats.nComponents + 1];
+		boolean anyRemoved = false;
+		for (int l = 1; l <= stats.nComponents; l++) {
+			int area = stats.area[l];
+			keep[l] = area > 0 &&
+					(minArea <= 0 || area >= minArea) &&
+					(maxArea <= 0 || area <= maxArea) &&
+					(Double.isNaN(minMean) || stats.getMean(l) >= minMean);
+			anyRemoved = anyRemoved || !keep[l];
+		}
+		if (!anyRemoved)
+			return keep;
+
+		// Clear the rejected components
+		int[] labels = stats.labels;
+		for (int i = 0; i < labels.length; i++) {
+			int label = labels[i];
+			if (label != 0 && !keep[label]) {
+				labels[i] = 0;
+				if (mask != null)
+					mask[i] = 0;
+			}
+		}
+		return keep;
+	}
+
+	private static float[] getFloatPixels(final ImageProcessor ip) {
+		if (ip == null)
+			return null;
+		Object pixels = ip.getPixels();
+		if (pixels instanceof float[])
+			return (float[])pixels;
+		return (float[])ip.convertToFloatProcessor().getPixels();
+	}
+
+	private static int find(final int[] parent, int label) {
+		while (parent[label] != label) {
+			parent[label] = parent[parent[label]];
+			label = parent[label];
+		}
+		return label;
+	}
+
+	/**
+	 * Merge the sets containing both labels, the smallest root becomes the new root.
+	 * A label of 0 is treated as 'no label'.
+	 */
+	private static int union(final int[] parent, final int label1, final int label2) {
+		int r2 = find(parent, label2);
+		if (label1 == 0)
+			return r2;
+		int r1 = find(parent, label1);
+		if (r1 < r2) {
+			parent[r2] = r1;
+			return r1;
+		}
+		parent[r1] = r2;
+		return r2;
+	}
+
+
+	/**
+	 * Per-component statistics, stored in primitive arrays indexed by label.
+	 */
+	public static class ComponentStatistics {
+
+		private int[] labels;
+		private int nComponents = 0;
+
+		private int[] area;
+		private int[] minX, minY, maxX, maxY;
+		private double[] sum, sumSquared;
+		private long[] sumX, sumY;
+
+		private ComponentStatistics(final int[] labels, final int capacity) {
+			this.labels = labels;
+			area = new int[capacity];
+			minX = new int[capacity];
+			minY = new int[capacity];
+			maxX = new int[capacity];
+			maxY = new int[capacity];
+			sum = new double[capacity];
+			sumSquared = new double[capacity];
+			sumX = new long[capacity];
+			sumY = new long[capacity];
+		}
+
+		private void ensureCapacity(final int capacity) {
+			if (capacity <= area.length)
+				return;
+			int n = Math.max(capacity, area.length * 2);
+			area = Arrays.copyOf(area, n);
+			minX = Arrays.copyOf(minX, n);
+			minY = Arrays.copyOf(minY, n);
+			maxX = Arrays.copyOf(maxX, n);
+			maxY = Arrays.copyOf(maxY, n);
+			sum = Arrays.copyOf(sum, n);
+			sumSquared = Arrays.copyOf(sumSquared, n);
+			sumX = Arrays.copyOf(sumX, n);
+			sumY = Arrays.copyOf(sumY, n);
+		}
+
+		private void addPixel(final int label, final int x, final int y, final double value) {
+			if (area[label] == 0) {
+				minX[label] = x;
+				maxX[label] = x;
+				minY[label] = y;
+				maxY[label] = y;
+			} else {
+				if (x < minX[label])
+					minX[label] = x;
+				else if (x > maxX[label])
+					maxX[label] = x;
+				if (y < minY[label])
+					minY[label] = y;
+				else if (y > maxY[label])
+					maxY[label] = y;
+			}
+			area[label]++;
+			sum[label] += value;
+			sumSquared[label] += value * value;
+			sumX[label] += x;
+			sumY[label] += y;
+		}
+
+		private void merge(final int label, final ComponentStatistics other, final int otherLabel) {
+			if (other.area[otherLabel] == 0)
+				return;
+			if (area[label] == 0) {
+				minX[label] = other.minX[otherLabel];
+				maxX[label] = other.maxX[otherLabel];
+				minY[label] = other.minY[otherLabel];
+				maxY[label] = other.maxY[otherLabel];
+			} else {
+				minX[label] = Math.min(minX[label], other.minX[otherLabel]);
+				maxX[label] = Math.max(maxX[label], other.maxX[otherLabel]);
+				minY[label] = Math.min(minY[label], other.minY[otherLabel]);
+				maxY[label] = Math.max(maxY[label], other.maxY[otherLabel]);
+			}
+			area[label] += other.area[otherLabel];
+			sum[label] += other.sum[otherLabel];
+			sumSquared[label] += other.sumSquared[otherLabel];
+			sumX[label] += other.sumX[otherLabel];
+			sumY[label] += other.sumY[otherLabel];
+		}
+
+		/**
+		 * Get the label image; labels run from 1 to getComponentCount(), 0 is background.
+		 * @return
+		 */
+		public int[] getLabels() {
+			return labels;
+		}
+
+		public int getComponentCount() {
+			return nComponents;
+		}
+
+		public int getArea(final int label) {
+			return area[label];
+		}
+
+		public double getSum(final int label) {
+			return sum[label];
+		}
+
+		public double getSumSquared(final int label) {
+			return sumSquared[label];
+		}
+
+		public double getMean(final int label) {
+			return area[label] == 0 ? Double.NaN : sum[label] / area[label];
+		}
+
+		public double getVariance(final int label) {
+			int n = area[label];
+			if (n == 0)
+				return Double.NaN;
+			double mean = sum[label] / n;
+			return Math.max(sumSquared[label] / n - mean * mean, 0);
+		}
+
+		public double getStdDev(final int label) {
+			return Math.sqrt(getVariance(label));
+		}
+
+		public double getCentroidX(final int label) {
+			return area[label] == 0 ? Double.NaN : (double)sumX[label] / area[label];
+		}
+
+		public double getCentroidY(final int label) {
+			return area[label] == 0 ? Double.NaN : (double)sumY[label] / area[label];
+		}
+
+		public int getMinX(final int label) {
+			return minX[label];
+		}
+
+		public int getMinY(final int label) {
+			return minY[label];
+		}
+
+		public int getMaxX(final int label) {
+			return maxX[label];
+		}
+
+		public int getMaxY(final int label) {
+			return maxY[label];
+		}
+
+		public int getBoundsWidth(final int label) {
+			return area[label] == 0 ? 0 : maxX[label] - minX[label] + 1;
+		}
+
+		public int getBoundsHeight(final int label) {
+			return area[label] == 0 ? 0 : maxY[label] - minY[label] + 1;
+		}
+
+	}
+
+}
@@ -0,0 +1,83 @@
+package qupath.lib.algorithms;
+
+import java.awt.image.BufferedImage;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.plugins.ObjectDetector;
+import qupath.lib.plugins.parameters.DoubleParameter;
+import qupath.lib.plugins.parameters.ParameterList;
+
+/**
+ * Detection plugins which can run on a downsampled region of the image as a quick preview, using the same detector
+ * as a full run; see qupath.lib.scripting.DetectionPreviewCommand.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public interface DetectionPreviewSupport {
+
+	/**
+	 * Get the parameters of the detection, as shown to the user.
+	 * @param imageData
+	 * @return
+	 */
+	ParameterList getDefaultParameterList(ImageData<BufferedImage> imageData);
+
+	/**
+	 * Get a copy of the parameters for a preview at (at least) the given downsample; all sizes must be scaled
+	 * to the downsample, so that the preview finds the same objects as a full run (only with coarser outlines).
+	 * @param imageData
+	 * @param params Parameters of the full run, which are left unchanged
+	 * @param downsample
+	 * @return
+	 */
+	ParameterList getPreviewParameters(ImageData<BufferedImage> imageData, ParameterList params, double downsample);
+
+	/**
+	 * Create a detector for a single preview; it shouldn't share any state with the detectors of a full run.
+	 * @param imageData
+	 * @param params
+	 * @return
+	 */
+	ObjectDetector<BufferedImage> createPreviewDetector(ImageData<BufferedImage> imageData, ParameterList params);
+
+	/**
+	 * Copy the parameters of a detection whose sizes are all given in microns, raising its pixel size parameter
+	 * to the pixel size of the image at the downsample. The detection then reads the image at that downsample
+	 * and converts all sizes to its pixels itself.
+	 * Images without a pixel size are always detected at full resolution, so the parameters are only copied.
+	 * @param imageData
+	 * @param params
+	 * @param key Key of the (requested) pixel size parameter, in microns
+	 * @param downsample
+	 * @return
+	 */
+	static ParameterList scalePixelSize(final ImageData<BufferedImage> imageData, final ParameterList params, final String key, final double downsample) {
+		ParameterList previewParams = params.duplicate();
+		ImageServer<BufferedImage> server = imageData.getServer();
+		if (server.hasPixelSizeMicrons()) {
+			DoubleParameter pixelSize = (DoubleParameter)previewParams.getParameters().get(key);
+			pixelSize.setValue(Math.max(pixelSize.getValueOrDefault(), server.getAveragedPixelSizeMicrons() * downsample));
+		}
+		return previewParams;
+	}
+
+	/**
+	 * Get the factor by which the pixels of a preview are larger than those of a full run, after the pixel size
+	 * parameter has been raised by scalePixelSize; sizes given in pixels must be divided by this factor.
+	 * @param imageData
+	 * @param params Parameters of the full run
+	 * @param previewParams Parameters of the preview
+	 * @param key Key of the (requested) pixel size parameter, in microns
+	 * @return The factor, which is 1 for images without a pixel size
+	 */
+	static double getPixelScale(final ImageData<BufferedImage> imageData, final ParameterList params, final ParameterList previewParams, final String key) {
+		ImageServer<BufferedImage> server = imageData.getServer();
+		if (!server.hasPixelSizeMicrons())
+			return 1;
+		double pixelSize = server.getAveragedPixelSizeMicrons();
+		return Math.max(previewParams.getDoubleParameterValue(key), pixelSize) / Math.max(params.getDoubleParameterValue(key), pixelSize);
+	}
+
+}
@@ -0,0 +1,258 @@
+package qupath.lib.algorithms;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import ij.process.ByteProcessor;
+
+/**
+ * Helper class to fill the holes of objects in a binary image.
+ *
+ * The background is flood-filled once starting from the image border; every background pixel
+ * which could not be reached is a hole and is set to foreground. This runs in linear time,
+ * in contrast to tracing and filling the outline of every object separately.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class FillHoles {
+
+	/**
+	 * Fill the holes in a binary ByteProcessor (foreground 255), treating objects as 4-connected
+	 * (as with a Wand.FOUR_CONNECTED tracing).
+	 * @param bp
+	 * @return The number of pixels that were filled
+	 */
+	public static int fillHoles(final ByteProcessor bp) {
+		return fillHoles((byte[])bp.getPixels(), bp.getWidth(), bp.getHeight(), false);
+	}
+
+	/**
+	 * Fill the holes in a binary ByteProcessor (foreground 255), but only for those 4-connected objects whose
+	 * area would not exceed the maximum after filling.
+	 * @param bp
+	 * @param maxFilledArea
+	 * @return The number of pixels that were filled
+	 */
+	public static int fillHoles(final ByteProcessor bp, final double maxFilledArea) {
+		return fillHoles((byte[])bp.getPixels(), bp.getWidth(), bp.getHeight(), false, maxFilledArea);
+	}
+
+	/**
+	 * Fill the holes in a binary 8-bit Mat, treating objects as 8-connected (as with findContours).
+	 * @param mat
+	 * @return The number of pixels that were filled
+	 */
+	public static int fillHoles(final Mat mat) {
+		if (mat.type() != CvType.CV_8UC1)
+			throw new IllegalArgumentException("Filling holes requires an 8-bit single channel image, not " + CvType.typeToString(mat.type()));
+		int width = mat.cols();
+		int height = mat.rows();
+		byte[] pixels = new byte[width * height];
+		mat.get(0, 0, pixels);
+		int nFilled = fillHoles(pixels, width, height, true);
+		if (nFilled > 0)
+			mat.put(0, 0, pixels);
+		return nFilled;
+	}
+
+	/**
+	 * Fill the holes in a binary 8-bit Mat that are no larger than a maximum area, treating objects as 8-connected
+	 * (as with findContours); larger holes are left as they are.
+	 * @param mat
+	 * @param maxHoleArea Maximum number of pixels of a hole
+	 * @return The number of pixels that were filled
+	 */
+	public static int fillSmallHoles(final Mat mat, final double maxHoleArea) {
+		if (mat.type() != CvType.CV_8UC1)
+			throw new IllegalArgumentException("Filling holes requires an 8-bit single channel image, not " + CvType.typeToString(mat.type()));
+		int width = mat.cols();
+		int height = mat.rows();
+		byte[] pixels = new byte[width * height];
+		mat.get(0, 0, pixels);
+		int nFilled = fillSmallHoles(pixels, width, height, true, maxHoleArea);
+		if (nFilled > 0)
+			mat.put(0, 0, pixels);
+		return nFilled;
+	}
+
+	/**
+	 * Fill the holes in a binary image; non-zero pixels are foreground, and filled pixels are set to 255.
+	 *
+	 * @param mask
+	 * @param width
+	 * @param height
+	 * @param eightConnected Connectivity of the objects; the background uses the complementary connectivity
+	 * @return The number of pixels that were filled
+	 */
+	public static int fillHoles(final byte[] mask, final int width, final int height, final boolean eightConnected) {
+		byte[] outside = floodBackground(mask, width, height, !eightConnected);
+		int nFilled = 0;
+		for (int i = 0; i < width * height; i++) {
+			if (mask[i] == 0 && outside[i] == 0) {
+				mask[i] = (byte)255;
+				nFilled++;
+			}
+		}
+		return nFilled;
+	}
+
+	/**
+	 * Fill the holes in a binary image, but only for those objects whose area (including the holes)
+	 * would not exceed the maximum after filling.
+	 *
+	 * @param mask
+	 * @param width
+	 * @param height
+	 * @param eightConnected Connectivity of the objects; the background uses the complementary connectivity
+	 * @param maxFilledArea Maximum area of an object after filling, ignored if <= 0
+	 * @return The number of pixels that were filled
+	 */
+	public static int fillHoles(final byte[] mask, final int width, final int height, final boolean eightConnected, final double maxFilledArea) {
+		if (!(maxFilledArea > 0))
+			return fillHoles(mask, width, height, eightConnected);
+
+		int n = width * height;
+		byte[] outside = floodBackground(mask, width, height, !eightConnected);
+
+		// Label the holes, using the background connectivity
+		byte[] holes = new byte[n];
+		boolean hasHoles = false;
+		for (int i = 0; i < n; i++) {
+			if (mask[i] == 0 && outside[i] == 0) {
+				holes[i] = 1;
+				hasHoles = true;
+			}
+		}
+		if (!hasHoles)
+			return 0;
+		ConnectedComponents.ComponentStatistics holeStats = ConnectedComponents.label(holes, null, width, height, null, !eightConnected);
+		ConnectedComponents.ComponentStatistics objectStats = ConnectedComponents.label(mask, null, width, height, null, eightConnected);
+		int[] holeLabels = holeStats.getLabels();
+		int[] objectLabels = objectStats.getLabels();
+
+		// The pixel to the left of the first pixel of a hole always belongs to the enclosing object -
+		// any object lying inside the hole must start on a later row
+		int nHoles = holeStats.getComponentCount();
+		int[] enclosingObject = new int[nHoles + 1];
+		long[] filledArea = new long[objectStats.getComponentCount() + 1];
+		for (int l = 1; l <= objectStats.getComponentCount(); l++)
+			filledArea[l] = objectStats.getArea(l);
+		for (int i = 0; i < n; i++) {
+			int hole = holeLabels[i];
+			if (hole == 0 || enclosingObject[hole] != 0)
+				continue;
+			int object = objectLabels[i-1];
+			enclosingObject[hole] = object;
+			filledArea[object] += holeStats.getArea(hole);
+		}
+
+		// Fill the holes of all objects that remain small enough
+		int nFilled = 0;
+		for (int i = 0; i < n; i++) {
+			int hole = holeLabels[i];
+			if (hole != 0 && filledArea[enclosingObject[hole]] <= maxFilledArea) {
+				mask[i] = (byte)255;
+				nFilled++;
+			}
+		}
+		return nFilled;
+	}
+
+	/**
+	 * Fill the holes in a binary image that are no larger than a maximum area; non-zero pixels are foreground,
+	 * and filled pixels are set to 255.
+	 *
+	 * @param mask
+	 * @param width
+	 * @param height
+	 * @param eightConnected Connectivity of the objects; the background (and thus every hole) uses the complementary connectivity
+	 * @param maxHoleArea Maximum number of pixels of a hole
+	 * @return The number of pixels that were filled
+	 */
+	public static int fillSmallHoles(final byte[] mask, final int width, final int height, final boolean eightConnected, final double maxHoleArea) {
+		int n = width * height;
+		byte[] outside = floodBackground(mask, width, height, !eightConnected);
+
+		// Label the holes, using the background connectivity
+		byte[] holes = new byte[n];
+		boolean hasHoles = false;
+		for (int i = 0; i < n; i++) {
+			if (mask[i] == 0 && outside[i] == 0) {
+				holes[i] = 1;
+				hasHoles = true;
+			}
+		}
+		if (!hasHoles)
+			return 0;
+		ConnectedComponents.ComponentStatistics holeStats = ConnectedComponents.label(holes, null, width, height, null, !eightConnected);
+		int[] holeLabels = holeStats.getLabels();
+
+		int nFilled = 0;
+		for (int i = 0; i < n; i++) {
+			int hole = holeLabels[i];
+			if (hole != 0 && holeStats.getArea(hole) <= maxHoleArea) {
+				mask[i] = (byte)255;
+				nFilled++;
+			}
+		}
+		return nFilled;
+	}
+
+	/**
+	 * Flood-fill the background from the image border.
+	 * @return A mask in which all background pixels connected to the border are 1
+	 */
+	private static byte[] floodBackground(final byte[] mask, final int width, final int height, final boolean eightConnected) {
+		int n = width * height;
+		byte[] outside = new byte[n];
+		int[] stack = new int[n];
+		int stackSize = 0;
+
+		// Seed with all background pixels on the border
+		for (int x = 0; x < width; x++) {
+			stackSize = push(mask, outside, stack, stackSize, x);
+			stackSize = push(mask, outside, stack, stackSize, (height-1) * width + x);
+		}
+		for (int y = 1; y < height-1; y++) {
+			stackSize = push(mask, outside, stack, stackSize, y * width);
+			stackSize = push(mask, outside, stack, stackSize, y * width + width - 1);
+		}
+
+		// Visit every reachable background pixel exactly once
+		while (stackSize > 0) {
+			int i = stack[--stackSize];
+			int x = i % width;
+			int y = i / width;
+			boolean left = x > 0, right = x < width-1, up = y > 0, down = y < height-1;
+			if (left)
+				stackSize = push(mask, outside, stack, stackSize, i-1);
+			if (right)
+				stackSize = push(mask, outside, stack, stackSize, i+1);
+			if (up)
+				stackSize = push(mask, outside, stack, stackSize, i-width);
+			if (down)
+				stackSize = push(mask, outside, stack, stackSize, i+width);
+			if (eightConnected) {
+				if (up && left)
+					stackSize = push(mask, outside, stack, stackSize, i-width-1);
+				if (up && right)
+					stackSize = push(mask, outside, stack, stackSize, i-width+1);
+				if (down && left)
+					stackSize = push(mask, outside, stack, stackSize, i+width-1);
+				if (down && right)
+					stackSize = push(mask, outside, stack, stackSize, i+width+1);
+			}
+		}
+		return outside;
+	}
+
+	private static int push(final byte[] mask, final byte[] outside, final int[] stack, int stackSize, final int i) {
+		if (mask[i] == 0 && outside[i] == 0) {
+			outside[i] = 1;
+			stack[stackSize++] = i;
+		}
+		return stackSize;
+	}
+
+}
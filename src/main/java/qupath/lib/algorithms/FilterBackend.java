@@ -0,0 +1,248 @@
+package qupath.lib.algorithms;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ij.plugin.filter.EDM;
+import ij.plugin.filter.RankFilters;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+/**
+ * Filters used by the watershed cell detection, applied in place to the pixels of a processor.
+ *
+ * The ImageJ filters are single-threaded; the OpenCV filters run multithreaded in native code, copying the pixels
+ * into a single Mat which is filtered in place and copied back into the processor's own pixel array.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public interface FilterBackend {
+
+	/**
+	 * Default tolerance of withAgreementCheck, relative to the range of the reference result.
+	 */
+	double DEFAULT_AGREEMENT_TOLERANCE = 0.01;
+
+	/**
+	 * Apply a median filter.
+	 * @param fp
+	 * @param radius Radius of the (circular) ImageJ filter
+	 */
+	void median(FloatProcessor fp, double radius);
+
+	/**
+	 * Apply a Gaussian filter.
+	 * @param fp
+	 * @param sigma
+	 */
+	void gaussian(FloatProcessor fp, double sigma);
+
+	/**
+	 * Apply the 3x3 kernel {0, -1, 0, -1, 4, -1, 0, -1, 0}, i.e. the negative Laplacian (bright spots become positive).
+	 * @param fp
+	 */
+	void laplacian(FloatProcessor fp);
+
+	/**
+	 * Compute the Euclidean distance from every pixel to the nearest foreground (255) pixel.
+	 * @param bp
+	 * @return
+	 */
+	FloatProcessor distanceToForeground(ByteProcessor bp);
+
+	/**
+	 * The available filter implementations.
+	 */
+	enum Filters implements FilterBackend {
+
+		IMAGEJ {
+			@Override
+			public void median(FloatProcessor fp, double radius) {
+				new RankFilters().rank(fp, radius, RankFilters.MEDIAN);
+			}
+
+			@Override
+			public void gaussian(FloatProcessor fp, double sigma) {
+				fp.blurGaussian(sigma);
+			}
+
+			@Override
+			public void laplacian(FloatProcessor fp) {
+				fp.convolve(new float[]{0, -1, 0, -1, 4, -1, 0, -1, 0}, 3, 3);
+			}
+
+			@Override
+			public FloatProcessor distanceToForeground(ByteProcessor bp) {
+				// Foreground pixels are the 'background' of the EDM
+				return new EDM().makeFloatEDM(bp, (byte)255, false);
+			}
+		},
+
+		OPENCV {
+			@Override
+			public void median(FloatProcessor fp, double radius) {
+				// OpenCV only supports 3x3 & 5x5 (square) medians for float images. ImageJ's kernel contains the pixels
+				// within a distance of sqrt(floor(radius^2) + 1), after raising radii in [1.5, 1.75) & [2.5, 2.85):
+				// this is exactly the 3x3 square only for 1 <= radius < 1.5. No radius gives the 5x5 square (e.g. 2 <= radius < 2.5
+				// leaves out its 4 corners), so ImageJ is used for all other radii
+				if (radius < 1 || radius >= 1.5) {
+					IMAGEJ.median(fp, radius);
+					return;
+				}
+				Mat mat = toMat(fp);
+				Imgproc.medianBlur(mat, mat, 3);
+				fromMat(mat, fp);
+			}
+
+			@Override
+			public void gaussian(FloatProcessor fp, double sigma) {
+				Mat mat = toMat(fp);
+				Imgproc.GaussianBlur(mat, mat, new Size(0, 0), sigma, sigma, Core.BORDER_REPLICATE);
+				fromMat(mat, fp);
+			}
+
+			@Override
+			public void laplacian(FloatProcessor fp) {
+				Mat mat = toMat(fp);
+				Imgproc.Laplacian(mat, mat, CvType.CV_32F, 1, -1, 0, Core.BORDER_REPLICATE);
+				fromMat(mat, fp);
+			}
+
+			@Override
+			public FloatProcessor distanceToForeground(ByteProcessor bp) {
+				int width = bp.getWidth();
+				int height = bp.getHeight();
+				Mat mat = new Mat(height, width, CvType.CV_8UC1);
+				mat.put(0, 0, (byte[])bp.getPixels());
+				// OpenCV measures the distance to the nearest zero pixel
+				Core.bitwise_not(mat, mat);
+				Mat matDist = new Mat();
+				Imgproc.distanceTransform(mat, matDist, Imgproc.DIST_L2, Imgproc.DIST_MASK_PRECISE);
+				FloatProcessor fp = new FloatProcessor(width, height);
+				fromMat(matDist, fp);
+				mat.release();
+				return fp;
+			}
+
+			private Mat toMat(FloatProcessor fp) {
+				Mat mat = new Mat(fp.getHeight(), fp.getWidth(), CvType.CV_32FC1);
+				mat.put(0, 0, (float[])fp.getPixels());
+				return mat;
+			}
+
+			private void fromMat(Mat mat, FloatProcessor fp) {
+				mat.get(0, 0, (float[])fp.getPixels());
+				mat.release();
+				fp.resetMinAndMax();
+			}
+		};
+
+	}
+
+	/**
+	 * Wrap a backend so that every filter is also applied with a reference backend, using the default tolerance.
+	 * @param backend
+	 * @param reference
+	 * @return
+	 * @see #withAgreementCheck(FilterBackend, FilterBackend, double)
+	 */
+	static FilterBackend withAgreementCheck(final FilterBackend backend, final FilterBackend reference) {
+		return withAgreementCheck(backend, reference, DEFAULT_AGREEMENT_TOLERANCE);
+	}
+
+	/**
+	 * Wrap a backend so that every filter is also applied with a reference backend, and the largest difference
+	 * between both results is logged; a warning is logged if it exceeds the tolerance. This doubles the work,
+	 * so it is only meant for checking a backend.
+	 * @param backend
+	 * @param reference
+	 * @param tolerance Largest acceptable difference, relative to the range (max - min) of the reference result
+	 * @return
+	 */
+	static FilterBackend withAgreementCheck(final FilterBackend backend, final FilterBackend reference, final double tolerance) {
+		final Logger logger = LoggerFactory.getLogger(FilterBackend.class);
+		return new FilterBackend() {
+
+			@Override
+			public void median(FloatProcessor fp, double radius) {
+				FloatProcessor fpReference = (FloatProcessor)fp.duplicate();
+				backend.median(fp, radius);
+				reference.median(fpReference, radius);
+				check("Median filter (radius " + radius + ")", fp, fpReference);
+			}
+
+			@Override
+			public void gaussian(FloatProcessor fp, double sigma) {
+				FloatProcessor fpReference = (FloatProcessor)fp.duplicate();
+				backend.gaussian(fp, sigma);
+				reference.gaussian(fpReference, sigma);
+				check("Gaussian filter (sigma " + sigma + ")", fp, fpReference);
+			}
+
+			@Override
+			public void laplacian(FloatProcessor fp) {
+				FloatProcessor fpReference = (FloatProcessor)fp.duplicate();
+				backend.laplacian(fp);
+				reference.laplacian(fpReference);
+				check("Laplacian filter", fp, fpReference);
+			}
+
+			@Override
+			public FloatProcessor distanceToForeground(ByteProcessor bp) {
+				FloatProcessor fp = backend.distanceToForeground(bp);
+				check("Distance transform", fp, reference.distanceToForeground(bp));
+				return fp;
+			}
+
+			private void check(final String filter, final FloatProcessor fp, final FloatProcessor fpReference) {
+				double maxDiff = maxDifference(fp, fpReference);
+				double maxAllowed = tolerance * range(fpReference);
+				if (maxDiff > maxAllowed)
+					logger.warn("{}: max difference {} exceeds the tolerance ({})", filter, maxDiff, maxAllowed);
+				else
+					logger.debug("{}: max difference {}", filter, maxDiff);
+			}
+
+		};
+	}
+
+	/**
+	 * Get the range (max - min) of the pixels of a processor.
+	 * @param fp
+	 * @return
+	 */
+	static double range(final FloatProcessor fp) {
+		float[] pixels = (float[])fp.getPixels();
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (float v : pixels) {
+			if (v < min)
+				min = v;
+			if (v > max)
+				max = v;
+		}
+		return pixels.length == 0 ? 0 : max - min;
+	}
+
+	/**
+	 * Get the largest absolute difference between the pixels of two processors of the same size.
+	 * @param fp1
+	 * @param fp2
+	 * @return
+	 */
+	static double maxDifference(final FloatProcessor fp1, final FloatProcessor fp2) {
+		float[] pixels1 = (float[])fp1.getPixels();
+		float[] pixels2 = (float[])fp2.getPixels();
+		double maxDiff = 0;
+		for (int i = 0; i < pixels1.length; i++)
+			maxDiff = Math.max(maxDiff, Math.abs(pixels1[i] - pixels2[i]));
+		return maxDiff;
+	}
+
+}
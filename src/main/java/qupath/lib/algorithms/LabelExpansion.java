@@ -0,0 +1,88 @@
+package qupath.lib.algorithms;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Expand nuclei into cells by assigning every pixel to the nearest nucleus, up to the maximum expansion distance.
+ *
+ * A single labelled distance transform (OpenCV's distanceTransformWithLabels, with a label per nucleus pixel) gives
+ * both the distance to and the nearest pixel of the nuclei; the cell labels are then filled in a single sweep,
+ * which also accumulates the statistics of the nuclei, cells & cytoplasm. This replaces the watershed of the distance
+ * transform, and the separate measurement pass over the labelled images.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class LabelExpansion implements WatershedCellEngine.MeasuringExpansionStage {
+
+	@Override
+	public ImageProcessor expand(final ByteProcessor bpNuclei, final ImageProcessor ipLabelsNuclei, final double cellExpansion) {
+		return expand(bpNuclei, ipLabelsNuclei, cellExpansion, null);
+	}
+
+	@Override
+	public ImageProcessor expand(final ByteProcessor bpNuclei, final ImageProcessor ipLabelsNuclei, final double cellExpansion, final CompartmentStatistics stats) {
+
+		int width = ipLabelsNuclei.getWidth();
+		int height = ipLabelsNuclei.getHeight();
+		int n = width * height;
+
+		// Use the labelled nuclei (rather than the binary image) as the zero pixels, so that every pixel
+		// of a nucleus belongs to its own cell
+		byte[] mask = new byte[n];
+		int nNucleusPixels = 0;
+		for (int i = 0; i < n; i++) {
+			if (ipLabelsNuclei.getf(i) == 0)
+				mask[i] = (byte)255;
+			else
+				nNucleusPixels++;
+		}
+		ShortProcessor ipLabelsCells = TileWorkspace.get().getShortProcessor(WatershedCellEngine.SLOT_CELLS, width, height);
+		if (nNucleusPixels == 0)
+			return ipLabelsCells;
+
+		Mat matMask = new Mat(height, width, CvType.CV_8UC1);
+		matMask.put(0, 0, mask);
+		Mat matDist = new Mat();
+		Mat matLabels = new Mat();
+		// The precise mask isn't supported with labels
+		Imgproc.distanceTransformWithLabels(matMask, matDist, matLabels, Imgproc.DIST_L2, Imgproc.DIST_MASK_5, Imgproc.DIST_LABEL_PIXEL);
+		float[] distances = new float[n];
+		int[] pixelLabels = new int[n];
+		matDist.get(0, 0, distances);
+		matLabels.get(0, 0, pixelLabels);
+		matMask.release();
+		matDist.release();
+		matLabels.release();
+
+		// Map the label of every nucleus pixel to its nucleus
+		int[] nucleusOf = new int[nNucleusPixels + 1];
+		for (int i = 0; i < n; i++) {
+			int nucleus = (int)ipLabelsNuclei.getf(i);
+			if (nucleus != 0 && pixelLabels[i] < nucleusOf.length)
+				nucleusOf[pixelLabels[i]] = nucleus;
+		}
+
+		// Assign the pixels to cells & measure them in the same sweep
+		short[] cellPixels = (short[])ipLabelsCells.getPixels();
+		for (int i = 0; i < n; i++) {
+			int nucleus = (int)ipLabelsNuclei.getf(i);
+			int cell = nucleus;
+			if (cell == 0 && distances[i] <= cellExpansion && pixelLabels[i] < nucleusOf.length)
+				cell = nucleusOf[pixelLabels[i]];
+			if (cell == 0)
+				continue;
+			cellPixels[i] = (short)cell;
+			if (stats != null)
+				stats.add(i, nucleus, cell);
+		}
+		return ipLabelsCells;
+	}
+
+}
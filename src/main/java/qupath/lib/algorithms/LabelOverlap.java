@@ -0,0 +1,242 @@
+package qupath.lib.algorithms;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Helper class to compute the overlap between two sets of objects by rasterisation.
+ *
+ * The objects of each set are painted into a label image (with the label as colour), tile by tile,
+ * and the co-occurrences of labels are counted in a single sweep over the pixels. This gives the
+ * area of intersection for every pair of objects at once, rather than a boolean shape operation per pair.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class LabelOverlap {
+
+	/**
+	 * Size of the label images, in pixels.
+	 */
+	public static final int TILE_SIZE = 1024;
+
+	private static final int MAX_LABEL = 0xFFFFFF;
+
+	/**
+	 * Count the overlapping pixels of two sets of objects.
+	 *
+	 * Objects are labelled by their position in the list, starting from 1. Within a set objects are assumed not
+	 * to overlap; where they do, the last object in the list wins.
+	 *
+	 * @param objects1
+	 * @param objects2
+	 * @param downsample Downsample factor at which the objects are rasterised; 1 for full resolution
+	 * @return
+	 */
+	public static OverlapMatrix count(final List<? extends PathObject> objects1, final List<? extends PathObject> objects2, final double downsample) {
+		if (objects1.size() > MAX_LABEL || objects2.size() > MAX_LABEL)
+			throw new IllegalArgumentException("Cannot rasterise more than " + MAX_LABEL + " objects");
+
+		long[] areas1 = new long[objects1.size() + 1];
+		long[] areas2 = new long[objects2.size() + 1];
+		Map<Long, long[]> counts = new HashMap<>();
+		if (objects1.isEmpty() || objects2.isEmpty())
+			return new OverlapMatrix(areas1, areas2, counts, downsample);
+
+		// Determine the region covered by the objects & assign the objects to the tiles they touch
+		double xMin = Double.POSITIVE_INFINITY, yMin = Double.POSITIVE_INFINITY;
+		double xMax = Double.NEGATIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+		for (List<? extends PathObject> objects : Arrays.asList(objects1, objects2)) {
+			for (PathObject pathObject : objects) {
+				ROI roi = pathObject.getROI();
+				xMin = Math.min(xMin, roi.getBoundsX());
+				yMin = Math.min(yMin, roi.getBoundsY());
+				xMax = Math.max(xMax, roi.getBoundsX() + roi.getBoundsWidth());
+				yMax = Math.max(yMax, roi.getBoundsY() + roi.getBoundsHeight());
+			}
+		}
+		double tileSize = TILE_SIZE * downsample;
+		int nTilesX = (int)Math.ceil((xMax - xMin) / tileSize) + 1;
+		int nTilesY = (int)Math.ceil((yMax - yMin) / tileSize) + 1;
+		List<List<Integer>> tiles1 = assignToTiles(objects1, xMin, yMin, tileSize, nTilesX, nTilesY);
+		List<List<Integer>> tiles2 = assignToTiles(objects2, xMin, yMin, tileSize, nTilesX, nTilesY);
+
+		// Paint & count each tile
+		BufferedImage img1 = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+		BufferedImage img2 = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+		int[] labels1 = ((DataBufferInt)img1.getRaster().getDataBuffer()).getData();
+		int[] labels2 = ((DataBufferInt)img2.getRaster().getDataBuffer()).getData();
+		for (int t = 0; t < nTilesX * nTilesY; t++) {
+			List<Integer> inds1 = tiles1.get(t);
+			List<Integer> inds2 = tiles2.get(t);
+			if (inds1 == null && inds2 == null)
+				continue;
+			double xTile = xMin + (t % nTilesX) * tileSize;
+			double yTile = yMin + (t / nTilesX) * tileSize;
+			paintLabels(img1, labels1, objects1, inds1, xTile, yTile, downsample);
+			paintLabels(img2, labels2, objects2, inds2, xTile, yTile, downsample);
+
+			// Accumulate runs of identical label pairs, to limit the number of map updates
+			int previous1 = 0, previous2 = 0;
+			long run = 0;
+			for (int i = 0; i < labels1.length; i++) {
+				int l1 = labels1[i] & MAX_LABEL;
+				int l2 = labels2[i] & MAX_LABEL;
+				areas1[l1]++;
+				areas2[l2]++;
+				if (l1 == previous1 && l2 == previous2) {
+					run++;
+					continue;
+				}
+				addCount(counts, previous1, previous2, run);
+				previous1 = l1;
+				previous2 = l2;
+				run = 1;
+			}
+			addCount(counts, previous1, previous2, run);
+		}
+		return new OverlapMatrix(areas1, areas2, counts, downsample);
+	}
+
+	private static List<List<Integer>> assignToTiles(final List<? extends PathObject> objects, final double xMin, final double yMin, final double tileSize, final int nTilesX, final int nTilesY) {
+		List<List<Integer>> tiles = new ArrayList<>(nTilesX * nTilesY);
+		for (int t = 0; t < nTilesX * nTilesY; t++)
+			tiles.add(null);
+		int ind = 0;
+		for (PathObject pathObject : objects) {
+			ROI roi = pathObject.getROI();
+			int tx1 = (int)((roi.getBoundsX() - xMin) / tileSize);
+			int ty1 = (int)((roi.getBoundsY() - yMin) / tileSize);
+			int tx2 = Math.min((int)((roi.getBoundsX() + roi.getBoundsWidth() - xMin) / tileSize), nTilesX - 1);
+			int ty2 = Math.min((int)((roi.getBoundsY() + roi.getBoundsHeight() - yMin) / tileSize), nTilesY - 1);
+			for (int ty = ty1; ty <= ty2; ty++) {
+				for (int tx = tx1; tx <= tx2; tx++) {
+					int t = ty * nTilesX + tx;
+					if (tiles.get(t) == null)
+						tiles.set(t, new ArrayList<>());
+					tiles.get(t).add(ind);
+				}
+			}
+			ind++;
+		}
+		return tiles;
+	}
+
+	private static void paintLabels(final BufferedImage img, final int[] labels, final List<? extends PathObject> objects, final List<Integer> inds, final double xTile, final double yTile, final double downsample) {
+		Arrays.fill(labels, 0);
+		if (inds == null)
+			return;
+		Graphics2D g2d = img.createGraphics();
+		g2d.scale(1.0/downsample, 1.0/downsample);
+		g2d.translate(-xTile, -yTile);
+		for (int ind : inds) {
+			g2d.setColor(new Color(ind + 1));
+			g2d.fill(PathROIToolsAwt.getShape(objects.get(ind).getROI()));
+		}
+		g2d.dispose();
+	}
+
+	private static void addCount(final Map<Long, long[]> counts, final int l1, final int l2, final long n) {
+		if (l1 == 0 || l2 == 0 || n == 0)
+			return;
+		long key = ((long)l1 << 32) | l2;
+		long[] count = counts.get(key);
+		if (count == null)
+			counts.put(key, new long[] {n});
+		else
+			count[0] += n;
+	}
+
+
+	/**
+	 * Rasterised areas and pairwise intersection areas of two sets of objects.
+	 *
+	 * Indices refer to the position of the objects in their list (starting from 0); areas are returned
+	 * in full resolution pixels.
+	 */
+	public static class OverlapMatrix {
+
+		private final long[] areas1, areas2;
+		private final double pixelArea;
+
+		// Overlapping objects of the second set for each object of the first set, sorted by index
+		private final int[] offsets;
+		private final int[] overlapping;
+		private final long[] overlapCounts;
+
+		private OverlapMatrix(final long[] areas1, final long[] areas2, final Map<Long, long[]> counts, final double downsample) {
+			this.areas1 = areas1;
+			this.areas2 = areas2;
+			this.pixelArea = downsample * downsample;
+
+			long[] keys = new long[counts.size()];
+			int k = 0;
+			for (Long key : counts.keySet())
+				keys[k++] = key;
+			Arrays.sort(keys);
+
+			offsets = new int[areas1.length + 1];
+			overlapping = new int[keys.length];
+			overlapCounts = new long[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				int l1 = (int)(keys[i] >>> 32);
+				offsets[l1 + 1]++;
+				overlapping[i] = (int)keys[i] - 1;
+				overlapCounts[i] = counts.get(keys[i])[0];
+			}
+			for (int l = 1; l < offsets.length; l++)
+				offsets[l] += offsets[l-1];
+		}
+
+		/**
+		 * Get the indices of the objects in the second set that overlap with an object of the first set.
+		 * @param ind1
+		 * @return The indices, in ascending order
+		 */
+		public int[] getOverlapping(final int ind1) {
+			return Arrays.copyOfRange(overlapping, offsets[ind1 + 1], offsets[ind1 + 2]);
+		}
+
+		/**
+		 * Get the area of intersection of two objects.
+		 * @param ind1 Index of the object in the first set
+		 * @param ind2 Index of the object in the second set
+		 * @return
+		 */
+		public double getOverlapArea(final int ind1, final int ind2) {
+			int ind = Arrays.binarySearch(overlapping, offsets[ind1 + 1], offsets[ind1 + 2], ind2);
+			return ind < 0 ? 0 : overlapCounts[ind] * pixelArea;
+		}
+
+		/**
+		 * Get the rasterised area of an object in the first set.
+		 * @param ind1
+		 * @return
+		 */
+		public double getArea1(final int ind1) {
+			return areas1[ind1 + 1] * pixelArea;
+		}
+
+		/**
+		 * Get the rasterised area of an object in the second set.
+		 * @param ind2
+		 * @return
+		 */
+		public double getArea2(final int ind2) {
+			return areas2[ind2 + 1] * pixelArea;
+		}
+
+	}
+
+}
@@ -0,0 +1,126 @@
+package qupath.lib.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+
+/**
+ * Measurements of all objects of a tile, stored by column.
+ *
+ * The measurement names are given once for the whole tile, and the values of all objects are written into a single
+ * float block (objects x measurements), initialised to NaN. Measurement lists with exactly the required capacity
+ * are only created once all values are known, so names aren't built per object and lists never need to grow.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class MeasurementTable {
+
+	private final String[] names;
+	private final int nObjects;
+	private final float[] values;
+
+	/**
+	 * @param names Names of the measurements, i.e. the columns of the table
+	 * @param nObjects Number of objects, i.e. the rows of the table
+	 */
+	public MeasurementTable(final List<String> names, final int nObjects) {
+		this.names = names.toArray(new String[0]);
+		this.nObjects = nObjects;
+		this.values = new float[nObjects * this.names.length];
+		Arrays.fill(values, Float.NaN);
+	}
+
+	/**
+	 * Get the names of the intensity measurements of a compartment, in the order channel by channel, i.e.
+	 * prefix + channel + " " + statistic.
+	 * @param prefix Prefix for the measurement names, e.g. "Nucleus: "
+	 * @param channels
+	 * @param statistics
+	 * @return
+	 */
+	public static List<String> getNames(final String prefix, final Collection<String> channels, final String... statistics) {
+		List<String> names = new ArrayList<>(channels.size() * statistics.length);
+		for (String channel : channels) {
+			for (String statistic : statistics)
+				names.add(prefix + channel + " " + statistic);
+		}
+		return names;
+	}
+
+	public int getColumnCount() {
+		return names.length;
+	}
+
+	public int getRowCount() {
+		return nObjects;
+	}
+
+	public String getColumnName(final int column) {
+		return names[column];
+	}
+
+	/**
+	 * Get the index of a column, or -1 if there is no column with this name.
+	 * @param name
+	 * @return
+	 */
+	public int getColumnIndex(final String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	public void set(final int row, final int column, final double value) {
+		values[row * names.length + column] = (float)value;
+	}
+
+	public double get(final int row, final int column) {
+		return values[row * names.length + column];
+	}
+
+	/**
+	 * Copy all values of a measurement list into consecutive columns, in the order of the list.
+	 * @param row
+	 * @param firstColumn
+	 * @param measurementList
+	 */
+	public void set(final int row, final int firstColumn, final MeasurementList measurementList) {
+		int offset = row * names.length + firstColumn;
+		int n = Math.min(measurementList.size(), names.length - firstColumn);
+		for (int i = 0; i < n; i++)
+			values[offset + i] = (float)measurementList.getMeasurementValue(i);
+	}
+
+	/**
+	 * Create a measurement list containing all columns of a row.
+	 * @param row
+	 * @return
+	 */
+	public MeasurementList createMeasurementList(final int row) {
+		return createMeasurementList(row, 0, names.length);
+	}
+
+	/**
+	 * Create a (closed) measurement list containing a range of columns of a row.
+	 * @param row
+	 * @param fromColumn First column, inclusive
+	 * @param toColumn Last column, exclusive
+	 * @return
+	 */
+	public MeasurementList createMeasurementList(final int row, final int fromColumn, final int toColumn) {
+		MeasurementList measurementList = MeasurementListFactory.createMeasurementList(toColumn - fromColumn, MeasurementList.TYPE.FLOAT);
+		int offset = row * names.length;
+		for (int column = fromColumn; column < toColumn; column++)
+			measurementList.addMeasurement(names[column], values[offset + column]);
+		measurementList.closeList();
+		return measurementList;
+	}
+
+}
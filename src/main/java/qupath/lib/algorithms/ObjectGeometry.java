@@ -0,0 +1,130 @@
+package qupath.lib.algorithms;
+
+import java.util.List;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Geometry of a list of objects, stored in primitive arrays indexed by the position of the object in the list.
+ *
+ * The centroids, bounding boxes and areas are read from the ROIs (and the measurement list) only once, so that
+ * pairwise comparisons between objects don't need to recompute them for every pair.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ObjectGeometry {
+
+	private final double[] centroidX, centroidY;
+	private final double[] minX, minY, maxX, maxY;
+	private final double[] scaledArea;
+	private final double[] measuredArea;
+
+	private ObjectGeometry(final int n) {
+		centroidX = new double[n];
+		centroidY = new double[n];
+		minX = new double[n];
+		minY = new double[n];
+		maxX = new double[n];
+		maxY = new double[n];
+		scaledArea = new double[n];
+		measuredArea = new double[n];
+	}
+
+	/**
+	 * Read the geometry of a list of objects with area ROIs.
+	 *
+	 * @param pathObjects
+	 * @param pixelWidth Pixel width used to scale the ROI areas
+	 * @param pixelHeight Pixel height used to scale the ROI areas
+	 * @param areaMeasurement Name of the measurement containing the area of the object, e.g. "Nucleus: Area"
+	 * @return
+	 */
+	public static ObjectGeometry create(final List<? extends PathObject> pathObjects, final double pixelWidth, final double pixelHeight, final String areaMeasurement) {
+		ObjectGeometry geometry = new ObjectGeometry(pathObjects.size());
+		int i = 0;
+		for (PathObject pathObject : pathObjects) {
+			ROI roi = pathObject.getROI();
+			geometry.centroidX[i] = roi.getCentroidX();
+			geometry.centroidY[i] = roi.getCentroidY();
+			geometry.minX[i] = roi.getBoundsX();
+			geometry.minY[i] = roi.getBoundsY();
+			geometry.maxX[i] = roi.getBoundsX() + roi.getBoundsWidth();
+			geometry.maxY[i] = roi.getBoundsY() + roi.getBoundsHeight();
+			geometry.scaledArea[i] = ((PathArea)roi).getScaledArea(pixelWidth, pixelHeight);
+			geometry.measuredArea[i] = pathObject.getMeasurementList().getMeasurementValue(areaMeasurement);
+			i++;
+		}
+		return geometry;
+	}
+
+	/**
+	 * Create a spatial grid over the centroids.
+	 * @param cellSize
+	 * @return
+	 */
+	public SpatialHashGrid createCentroidGrid(final double cellSize) {
+		return new SpatialHashGrid(centroidX, centroidY, cellSize);
+	}
+
+	/**
+	 * Test whether the bounding box of an object intersects with the bounding box of an object in another list.
+	 * @param ind
+	 * @param other
+	 * @param indOther
+	 * @return
+	 */
+	public boolean boundsIntersect(final int ind, final ObjectGeometry other, final int indOther) {
+		return minX[ind] <= other.maxX[indOther] && other.minX[indOther] <= maxX[ind] &&
+				minY[ind] <= other.maxY[indOther] && other.minY[indOther] <= maxY[ind];
+	}
+
+	public int size() {
+		return centroidX.length;
+	}
+
+	public double getCentroidX(final int ind) {
+		return centroidX[ind];
+	}
+
+	public double getCentroidY(final int ind) {
+		return centroidY[ind];
+	}
+
+	public double getMinX(final int ind) {
+		return minX[ind];
+	}
+
+	public double getMinY(final int ind) {
+		return minY[ind];
+	}
+
+	public double getMaxX(final int ind) {
+		return maxX[ind];
+	}
+
+	public double getMaxY(final int ind) {
+		return maxY[ind];
+	}
+
+	/**
+	 * Get the area of the ROI, scaled by the pixel width & height.
+	 * @param ind
+	 * @return
+	 */
+	public double getScaledArea(final int ind) {
+		return scaledArea[ind];
+	}
+
+	/**
+	 * Get the value of the area measurement.
+	 * @param ind
+	 * @return
+	 */
+	public double getMeasuredArea(final int ind) {
+		return measuredArea[ind];
+	}
+
+}
@@ -0,0 +1,184 @@
+package qupath.lib.algorithms;
+
+import org.opencv.core.CvType;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.imgproc.Imgproc;
+
+import qupath.lib.roi.PolygonROI;
+
+/**
+ * Helper class to convert OpenCV contours into QuPath ROIs.
+ *
+ * The contour coordinates are read from the Mat in bulk as primitive arrays, and are smoothed, simplified,
+ * scaled and offset in place; no Point or Point2 object is created for the individual vertices.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ROIConverterCV {
+
+	/**
+	 * Read the coordinates of a contour as an interleaved x/y array.
+	 * @param contour
+	 * @return
+	 */
+	public static int[] getContourCoordinates(final MatOfPoint contour) {
+		int[] xy = new int[(int)contour.total() * 2];
+		if (xy.length > 0)
+			contour.get(0, 0, xy);
+		return xy;
+	}
+
+	/**
+	 * Convert a contour into a PolygonROI in the full resolution image space.
+	 *
+	 * @param contour The contour, as returned by findContours
+	 * @param simplifyEpsilon Maximum distance (in contour pixels) for the simplification with approxPolyDP; no simplification if <= 0
+	 * @param smooth Resample the contour at short intervals & apply a 3-point moving average before simplification
+	 * @param downsample Downsample factor of the image in which the contour was found
+	 * @param xOrigin x-coordinate of the image in which the contour was found, in the full resolution image
+	 * @param yOrigin y-coordinate of the image in which the contour was found, in the full resolution image
+	 * @param c
+	 * @param z
+	 * @param t
+	 * @return
+	 */
+	public static PolygonROI convertToPolygonROI(final MatOfPoint contour, final double simplifyEpsilon, final boolean smooth, final double downsample, final double xOrigin, final double yOrigin, final int c, final int z, final int t) {
+		return createPolygonROI(getPolygonCoordinates(contour, simplifyEpsilon, smooth), downsample, xOrigin, yOrigin, c, z, t);
+	}
+
+	/**
+	 * Get the (sub-pixel) vertices of the polygon of a contour, smoothed & simplified as by convertToPolygonROI,
+	 * but still in the coordinates of the contour; they can be measured with ShapeFeatures before the ROI is created.
+	 *
+	 * @param contour The contour, as returned by findContours
+	 * @param simplifyEpsilon Maximum distance (in contour pixels) for the simplification with approxPolyDP; no simplification if <= 0
+	 * @param smooth Resample the contour at short intervals & apply a 3-point moving average before simplification
+	 * @return Interleaved x/y coordinates of the vertices
+	 */
+	public static float[] getPolygonCoordinates(final MatOfPoint contour, final double simplifyEpsilon, final boolean smooth) {
+		int[] xy = getContourCoordinates(contour);
+		int n = xy.length / 2;
+
+		// Smooth the vertices, if required; the vertices of a CHAIN_APPROX_SIMPLE contour can lie far apart, so
+		// the contour is resampled at (at most) 2.5 pixel intervals first, as ImageJ's getInterpolatedPolygon does -
+		// averaging the sparse vertices themselves would cut off every corner & shrink the shape
+		float[] points;
+		if (smooth && n > 3) {
+			points = resample(xy, n, Math.min(2.5, n * 0.1));
+			n = points.length / 2;
+			float[] smoothed = new float[points.length];
+			for (int i = 0; i < n; i++) {
+				int iMinus = (i + n - 1) % n;
+				int iPlus = (i + 1) % n;
+				smoothed[i*2] = (points[iMinus*2] + points[i*2] + points[iPlus*2]) / 3f;
+				smoothed[i*2+1] = (points[iMinus*2+1] + points[i*2+1] + points[iPlus*2+1]) / 3f;
+			}
+			points = smoothed;
+		} else {
+			points = new float[xy.length];
+			for (int i = 0; i < xy.length; i++)
+				points[i] = xy[i];
+		}
+
+		// Simplify the contour natively, if required
+		if (simplifyEpsilon > 0 && n > 3) {
+			MatOfPoint2f contour2f = new MatOfPoint2f();
+			contour2f.create(n, 1, CvType.CV_32FC2);
+			contour2f.put(0, 0, points);
+			MatOfPoint2f contourApprox = new MatOfPoint2f();
+			Imgproc.approxPolyDP(contour2f, contourApprox, simplifyEpsilon, true);
+			n = (int)contourApprox.total();
+			points = new float[n * 2];
+			contourApprox.get(0, 0, points);
+			contour2f.release();
+			contourApprox.release();
+		}
+
+		return points;
+	}
+
+	/**
+	 * Create a PolygonROI in the full resolution image space from the vertices of a polygon.
+	 *
+	 * @param points Interleaved x/y coordinates of the vertices, e.g. from getPolygonCoordinates
+	 * @param downsample Downsample factor of the image in which the polygon was found
+	 * @param xOrigin x-coordinate of the image in which the polygon was found, in the full resolution image
+	 * @param yOrigin y-coordinate of the image in which the polygon was found, in the full resolution image
+	 * @param c
+	 * @param z
+	 * @param t
+	 * @return
+	 */
+	public static PolygonROI createPolygonROI(final float[] points, final double downsample, final double xOrigin, final double yOrigin, final int c, final int z, final int t) {
+		int n = points.length / 2;
+
+		// Scale & offset to the full resolution image
+		float[] x = new float[n];
+		float[] y = new float[n];
+		for (int i = 0; i < n; i++) {
+			x[i] = (float)(points[i*2] * downsample + xOrigin);
+			y[i] = (float)(points[i*2+1] * downsample + yOrigin);
+		}
+		return new PolygonROI(x, y, c, z, t);
+	}
+
+	/**
+	 * Resample a closed polygon at equal intervals along its outline.
+	 * @param xy Interleaved x/y coordinates of the vertices
+	 * @param n Number of vertices
+	 * @param interval Requested distance between the new vertices; the actual distance is adjusted slightly, so
+	 * 					that the perimeter is divided evenly
+	 * @return Interleaved x/y coordinates of the resampled polygon
+	 */
+	private static float[] resample(final int[] xy, final int n, final double interval) {
+		double perimeter = 0;
+		for (int i = 0; i < n; i++)
+			perimeter += segmentLength(xy, n, i);
+		int nResampled = Math.max(n, (int)Math.round(perimeter / interval));
+		double step = perimeter / nResampled;
+
+		float[] points = new float[nResampled * 2];
+		int segment = 0;
+		double segmentStart = 0;
+		double segmentLength = segmentLength(xy, n, 0);
+		for (int k = 0; k < nResampled; k++) {
+			double position = k * step;
+			while (segment < n - 1 && position > segmentStart + segmentLength) {
+				segmentStart += segmentLength;
+				segment++;
+				segmentLength = segmentLength(xy, n, segment);
+			}
+			int next = (segment + 1) % n;
+			double f = segmentLength > 0 ? Math.min(1, (position - segmentStart) / segmentLength) : 0;
+			points[k*2] = (float)(xy[segment*2] + f * (xy[next*2] - xy[segment*2]));
+			points[k*2+1] = (float)(xy[segment*2+1] + f * (xy[next*2+1] - xy[segment*2+1]));
+		}
+		return points;
+	}
+
+	private static double segmentLength(final int[] xy, final int n, final int i) {
+		int next = (i + 1) % n;
+		double dx = xy[next*2] - xy[i*2];
+		double dy = xy[next*2+1] - xy[i*2+1];
+		return Math.sqrt(dx*dx + dy*dy);
+	}
+
+	/**
+	 * Convert a contour into a PolygonROI in the full resolution image space, without smoothing or simplification.
+	 *
+	 * @param contour
+	 * @param downsample
+	 * @param xOrigin
+	 * @param yOrigin
+	 * @param c
+	 * @param z
+	 * @param t
+	 * @return
+	 */
+	public static PolygonROI convertToPolygonROI(final MatOfPoint contour, final double downsample, final double xOrigin, final double yOrigin, final int c, final int z, final int t) {
+		return convertToPolygonROI(contour, 0, false, downsample, xOrigin, yOrigin, c, z, t);
+	}
+
+}
@@ -0,0 +1,98 @@
+package qupath.lib.algorithms;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Binary mask of a ROI, rasterised once for the image tile in which objects are detected.
+ *
+ * Testing whether a detected object lies inside the (parent) ROI is then a single array lookup,
+ * rather than a geometric test of one polygon against another.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ROIMask {
+
+	private final byte[] mask;
+	private final int width, height;
+	private final double downsample, xOrigin, yOrigin;
+
+	private ROIMask(final byte[] mask, final int width, final int height, final double downsample, final double xOrigin, final double yOrigin) {
+		this.mask = mask;
+		this.width = width;
+		this.height = height;
+		this.downsample = downsample;
+		this.xOrigin = xOrigin;
+		this.yOrigin = yOrigin;
+	}
+
+	/**
+	 * Rasterise a ROI into a mask aligned with an image tile.
+	 *
+	 * A pixel belongs to the mask if its center lies inside the ROI.
+	 *
+	 * @param roi ROI in the full resolution image space
+	 * @param downsample Downsample factor of the tile
+	 * @param xOrigin x-coordinate of the tile in the full resolution image
+	 * @param yOrigin y-coordinate of the tile in the full resolution image
+	 * @param width Width of the tile
+	 * @param height Height of the tile
+	 * @return
+	 */
+	public static ROIMask create(final ROI roi, final double downsample, final double xOrigin, final double yOrigin, final int width, final int height) {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g2d = img.createGraphics();
+		g2d.scale(1.0/downsample, 1.0/downsample);
+		g2d.translate(-xOrigin, -yOrigin);
+		g2d.setColor(Color.WHITE);
+		g2d.fill(PathROIToolsAwt.getShape(roi));
+		g2d.dispose();
+		byte[] mask = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+		return new ROIMask(mask, width, height, downsample, xOrigin, yOrigin);
+	}
+
+	/**
+	 * Test whether a point (in the full resolution image space) falls inside the mask.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public boolean contains(final double x, final double y) {
+		return containsPixel((int)Math.floor((x - xOrigin) / downsample), (int)Math.floor((y - yOrigin) / downsample));
+	}
+
+	/**
+	 * Test whether a pixel of the tile falls inside the mask.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public boolean containsPixel(final int x, final int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height)
+			return false;
+		return mask[y * width + x] != 0;
+	}
+
+	/**
+	 * Get the mask pixels (non-zero inside the ROI).
+	 * @return
+	 */
+	public byte[] getPixels() {
+		return mask;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+}
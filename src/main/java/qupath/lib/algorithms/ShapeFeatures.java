@@ -0,0 +1,291 @@
+package qupath.lib.algorithms;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.MatOfPoint;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Shape features of a single object, computed from its contour in one pass.
+ *
+ * Area and centroid come from the contour moments, eccentricity from the second order central moments
+ * and solidity from the convex hull; perimeter and bounding box are computed from the same (bulk read)
+ * contour coordinates. Sub-pixel (smoothed) vertices are measured as they are, without rounding.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ShapeFeatures {
+
+	/**
+	 * Number of measurements added by addMeasurements.
+	 */
+	public static final int N_MEASUREMENTS = 5;
+
+	private double area, perimeter, convexArea;
+	private double centroidX, centroidY;
+	private double eccentricity;
+	private double minX, minY, maxX, maxY;
+
+	private ShapeFeatures() {}
+
+	/**
+	 * Measure a contour; all values are converted to the full resolution image space.
+	 *
+	 * @param contour The contour, as returned by findContours
+	 * @param downsample Downsample factor of the image in which the contour was found
+	 * @param xOrigin x-coordinate of the image in which the contour was found, in the full resolution image
+	 * @param yOrigin y-coordinate of the image in which the contour was found, in the full resolution image
+	 * @return
+	 */
+	public static ShapeFeatures measure(final MatOfPoint contour, final double downsample, final double xOrigin, final double yOrigin) {
+		int[] xy = ROIConverterCV.getContourCoordinates(contour);
+		float[] points = new float[xy.length];
+		for (int i = 0; i < xy.length; i++)
+			points[i] = xy[i];
+		return measure(points, downsample, xOrigin, yOrigin);
+	}
+
+	/**
+	 * Measure the polygon of a ROI (in the full resolution image space).
+	 *
+	 * @param roi
+	 * @return
+	 */
+	public static ShapeFeatures measure(final ROI roi) {
+		List<Point2> points = roi.getPolygonPoints();
+		float[] xy = new float[points.size() * 2];
+		int i = 0;
+		for (Point2 p : points) {
+			xy[i++] = (float)p.getX();
+			xy[i++] = (float)p.getY();
+		}
+		return measure(xy, 1, 0, 0);
+	}
+
+	/**
+	 * Measure a polygon given by its (sub-pixel) vertices; all values are converted to the full resolution image space.
+	 *
+	 * Area, centroid & second order moments are computed from the vertices with Green's theorem, as OpenCV computes
+	 * the moments of a contour, and the convex hull with Andrew's monotone chain.
+	 *
+	 * @param xy Interleaved x/y coordinates of the vertices, e.g. from ROIConverterCV.getPolygonCoordinates
+	 * @param downsample Downsample factor of the image in which the polygon was found
+	 * @param xOrigin x-coordinate of the image in which the polygon was found, in the full resolution image
+	 * @param yOrigin y-coordinate of the image in which the polygon was found, in the full resolution image
+	 * @return
+	 */
+	public static ShapeFeatures measure(final float[] xy, final double downsample, final double xOrigin, final double yOrigin) {
+		ShapeFeatures features = new ShapeFeatures();
+		int n = xy.length / 2;
+		if (n == 0)
+			return features;
+
+		// Perimeter, bounding box & raw moments in one pass over the edges
+		double perimeter = 0;
+		double m00 = 0, m10 = 0, m01 = 0, m20 = 0, m11 = 0, m02 = 0;
+		float minX = xy[0], maxX = xy[0], minY = xy[1], maxY = xy[1];
+		double xPrevious = xy[xy.length-2], yPrevious = xy[xy.length-1];
+		for (int i = 0; i < n; i++) {
+			double x = xy[i*2];
+			double y = xy[i*2+1];
+			perimeter += Math.sqrt((x - xPrevious)*(x - xPrevious) + (y - yPrevious)*(y - yPrevious));
+			double cross = xPrevious * y - x * yPrevious;
+			m00 += cross;
+			m10 += (xPrevious + x) * cross;
+			m01 += (yPrevious + y) * cross;
+			m20 += (xPrevious*xPrevious + xPrevious*x + x*x) * cross;
+			m11 += (xPrevious*(2*yPrevious + y) + x*(yPrevious + 2*y)) * cross;
+			m02 += (yPrevious*yPrevious + yPrevious*y + y*y) * cross;
+			minX = Math.min(minX, xy[i*2]);
+			maxX = Math.max(maxX, xy[i*2]);
+			minY = Math.min(minY, xy[i*2+1]);
+			maxY = Math.max(maxY, xy[i*2+1]);
+			xPrevious = x;
+			yPrevious = y;
+		}
+		m00 /= 2;
+		m10 /= 6;
+		m01 /= 6;
+		m20 /= 12;
+		m11 /= 24;
+		m02 /= 12;
+
+		// Area, centroid & eccentricity from the moments (the signs of the moments cancel out)
+		double area = Math.abs(m00);
+		double cx, cy;
+		if (area > 0) {
+			cx = m10 / m00;
+			cy = m01 / m00;
+			double a = m20 / m00 - cx*cx;
+			double b = m11 / m00 - cx*cy;
+			double c = m02 / m00 - cy*cy;
+			double d = Math.sqrt((a - c)*(a - c) / 4 + b*b);
+			double lambda1 = (a + c) / 2 + d;
+			double lambda2 = (a + c) / 2 - d;
+			features.eccentricity = lambda1 > 0 ? Math.sqrt(Math.max(0, 1 - lambda2 / lambda1)) : Double.NaN;
+		} else {
+			cx = (minX + maxX) / 2.0;
+			cy = (minY + maxY) / 2.0;
+			features.eccentricity = Double.NaN;
+		}
+
+		double convexArea = n > 2 ? getConvexHullArea(xy, n, minX, minY) : 0;
+
+		// Convert to the full resolution image
+		features.area = area * downsample * downsample;
+		features.convexArea = convexArea * downsample * downsample;
+		features.perimeter = perimeter * downsample;
+		features.centroidX = cx * downsample + xOrigin;
+		features.centroidY = cy * downsample + yOrigin;
+		features.minX = minX * downsample + xOrigin;
+		features.minY = minY * downsample + yOrigin;
+		features.maxX = maxX * downsample + xOrigin;
+		features.maxY = maxY * downsample + yOrigin;
+		return features;
+	}
+
+	/**
+	 * Compute the area of the convex hull of a polygon with Andrew's monotone chain.
+	 *
+	 * The vertices are sorted as primitive keys, packing the bits of the (non-negative) coordinates relative to the
+	 * bounding box; for non-negative floats, the order of the bits is the order of the values.
+	 */
+	private static double getConvexHullArea(final float[] xy, final int n, final float minX, final float minY) {
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = (long)Float.floatToIntBits(xy[i*2] - minX) << 32 | Float.floatToIntBits(xy[i*2+1] - minY);
+		Arrays.sort(keys);
+
+		// Lower & upper hull in a single array
+		double[] hullX = new double[2 * n];
+		double[] hullY = new double[2 * n];
+		int k = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			int kStart = k;
+			for (int j = 0; j < n; j++) {
+				long key = keys[pass == 0 ? j : n - 1 - j];
+				double x = Float.intBitsToFloat((int)(key >>> 32));
+				double y = Float.intBitsToFloat((int)key);
+				while (k >= kStart + 2 && (hullX[k-1] - hullX[k-2]) * (y - hullY[k-2]) - (hullY[k-1] - hullY[k-2]) * (x - hullX[k-2]) <= 0)
+					k--;
+				hullX[k] = x;
+				hullY[k] = y;
+				k++;
+			}
+			// The last point of each chain is the first point of the other
+			k--;
+		}
+
+		double convexArea = 0;
+		for (int i = 0; i < k; i++) {
+			int j = (i + 1) % k;
+			convexArea += hullX[i] * hullY[j] - hullX[j] * hullY[i];
+		}
+		return Math.abs(convexArea) / 2;
+	}
+
+	/**
+	 * Add the area, perimeter, circularity, solidity & eccentricity to a measurement list.
+	 * @param measurementList
+	 * @param prefix Prefix for the measurement names, e.g. "Nucleus: "
+	 */
+	public void addMeasurements(final MeasurementList measurementList, final String prefix) {
+		measurementList.addMeasurement(prefix + "Area", area);
+		measurementList.addMeasurement(prefix + "Perimeter", perimeter);
+		measurementList.addMeasurement(prefix + "Circularity", getCircularity());
+		measurementList.addMeasurement(prefix + "Solidity", getSolidity());
+		measurementList.addMeasurement(prefix + "Eccentricity", eccentricity);
+	}
+
+	/**
+	 * Get the names of the measurements added by addMeasurements, in the same order.
+	 * @param prefix
+	 * @return
+	 */
+	public static List<String> getMeasurementNames(final String prefix) {
+		return Arrays.asList(prefix + "Area", prefix + "Perimeter", prefix + "Circularity", prefix + "Solidity", prefix + "Eccentricity");
+	}
+
+	/**
+	 * Write the shape features into N_MEASUREMENTS consecutive columns of a measurement table,
+	 * in the order of getMeasurementNames.
+	 * @param table
+	 * @param row
+	 * @param firstColumn
+	 */
+	public void setMeasurements(final MeasurementTable table, final int row, final int firstColumn) {
+		table.set(row, firstColumn, area);
+		table.set(row, firstColumn + 1, perimeter);
+		table.set(row, firstColumn + 2, getCircularity());
+		table.set(row, firstColumn + 3, getSolidity());
+		table.set(row, firstColumn + 4, eccentricity);
+	}
+
+	/**
+	 * Create a measurement list with room for the shape features plus a number of additional measurements,
+	 * and add the shape features to it.
+	 * @param prefix
+	 * @param nAdditional
+	 * @return
+	 */
+	public MeasurementList createMeasurementList(final String prefix, final int nAdditional) {
+		MeasurementList measurementList = MeasurementListFactory.createMeasurementList(N_MEASUREMENTS + nAdditional, MeasurementList.TYPE.FLOAT);
+		addMeasurements(measurementList, prefix);
+		return measurementList;
+	}
+
+	public double getArea() {
+		return area;
+	}
+
+	public double getPerimeter() {
+		return perimeter;
+	}
+
+	public double getConvexArea() {
+		return convexArea;
+	}
+
+	public double getCircularity() {
+		return perimeter > 0 ? 4 * Math.PI * area / (perimeter * perimeter) : Double.NaN;
+	}
+
+	public double getSolidity() {
+		return convexArea > 0 ? Math.min(area / convexArea, 1.0) : Double.NaN;
+	}
+
+	public double getEccentricity() {
+		return eccentricity;
+	}
+
+	public double getCentroidX() {
+		return centroidX;
+	}
+
+	public double getCentroidY() {
+		return centroidY;
+	}
+
+	public double getBoundsX() {
+		return minX;
+	}
+
+	public double getBoundsY() {
+		return minY;
+	}
+
+	public double getBoundsWidth() {
+		return maxX - minX;
+	}
+
+	public double getBoundsHeight() {
+		return maxY - minY;
+	}
+
+}
@@ -0,0 +1,131 @@
+package qupath.lib.algorithms;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Uniform grid over a set of points, to find all points within a maximum distance of a query point
+ * without comparing against every point.
+ *
+ * The cell size is the (largest) query distance, so only the cell of the query point and its 8 neighbours
+ * need to be visited.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class SpatialHashGrid {
+
+	private final double[] x, y;
+	private final double cellSize;
+	private final Map<Long, int[]> cells;
+
+	/**
+	 * Create a grid over a set of points.
+	 * @param x
+	 * @param y
+	 * @param cellSize Size of a grid cell, normally the maximum distance that will be queried
+	 */
+	public SpatialHashGrid(final double[] x, final double[] y, final double cellSize) {
+		if (x.length != y.length)
+			throw new IllegalArgumentException("Number of x (" + x.length + ") and y (" + y.length + ") coordinates should be equal");
+		this.x = x;
+		this.y = y;
+		this.cellSize = cellSize > 0 ? cellSize : 1;
+
+		// Count the points per cell, then fill the cells - indices within a cell remain sorted
+		Map<Long, int[]> counts = new HashMap<>();
+		long[] keys = new long[x.length];
+		for (int i = 0; i < x.length; i++) {
+			keys[i] = getKey(getCell(x[i]), getCell(y[i]));
+			int[] count = counts.get(keys[i]);
+			if (count == null)
+				counts.put(keys[i], new int[] {1});
+			else
+				count[0]++;
+		}
+		cells = new HashMap<>(counts.size() * 2);
+		for (Map.Entry<Long, int[]> entry : counts.entrySet())
+			cells.put(entry.getKey(), new int[entry.getValue()[0]]);
+		for (int[] count : counts.values())
+			count[0] = 0;
+		for (int i = 0; i < x.length; i++)
+			cells.get(keys[i])[counts.get(keys[i])[0]++] = i;
+	}
+
+	/**
+	 * Create a grid over the ROI centroids of a list of objects; indices refer to the position in the list.
+	 * @param pathObjects
+	 * @param cellSize
+	 * @return
+	 */
+	public static SpatialHashGrid createForCentroids(final List<? extends PathObject> pathObjects, final double cellSize) {
+		double[] x = new double[pathObjects.size()];
+		double[] y = new double[pathObjects.size()];
+		int i = 0;
+		for (PathObject pathObject : pathObjects) {
+			ROI roi = pathObject.getROI();
+			x[i] = roi.getCentroidX();
+			y[i] = roi.getCentroidY();
+			i++;
+		}
+		return new SpatialHashGrid(x, y, cellSize);
+	}
+
+	/**
+	 * Get the indices of all points within a maximum distance of a query point.
+	 *
+	 * @param xq
+	 * @param yq
+	 * @param maxDistance Maximum distance; must not be larger than the cell size
+	 * @return The indices, in ascending order
+	 */
+	public int[] query(final double xq, final double yq, final double maxDistance) {
+		if (maxDistance > cellSize)
+			throw new IllegalArgumentException("Query distance " + maxDistance + " exceeds the grid cell size " + cellSize);
+		double maxDistanceSq = maxDistance * maxDistance;
+		int cx = getCell(xq);
+		int cy = getCell(yq);
+		int[] result = new int[16];
+		int n = 0;
+		for (int dy = -1; dy <= 1; dy++) {
+			for (int dx = -1; dx <= 1; dx++) {
+				int[] cell = cells.get(getKey(cx + dx, cy + dy));
+				if (cell == null)
+					continue;
+				for (int i : cell) {
+					double distSq = (x[i] - xq)*(x[i] - xq) + (y[i] - yq)*(y[i] - yq);
+					if (distSq > maxDistanceSq)
+						continue;
+					if (n == result.length)
+						result = Arrays.copyOf(result, n * 2);
+					result[n++] = i;
+				}
+			}
+		}
+		result = Arrays.copyOf(result, n);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Get the number of points in the grid.
+	 * @return
+	 */
+	public int size() {
+		return x.length;
+	}
+
+	private int getCell(final double v) {
+		return (int)Math.floor(v / cellSize);
+	}
+
+	private static long getKey(final int cx, final int cy) {
+		return ((long)cx << 32) | (cy & 0xffffffffL);
+	}
+
+}
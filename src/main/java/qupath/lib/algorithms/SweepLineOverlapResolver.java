@@ -0,0 +1,176 @@
+package qupath.lib.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * Resolve overlapping objects detected in different channels, so that only one object is kept where several overlap.
+ *
+ * All objects are sorted by the left edge of their bounding box, and a sweep over x maintains the objects whose
+ * bounding box crosses the sweep line, ordered by their top edge; every object is only compared against the active
+ * objects of other channels with an intersecting bounding box. The overlapping pairs are then resolved in a single pass,
+ * in a fixed order: largest area first, then by channel priority (the order of the lists), then by position in the list.
+ * An object is kept unless it overlaps with an object that was kept before, so the result does not depend on the order
+ * in which channels are compared.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class SweepLineOverlapResolver {
+
+	/**
+	 * Test whether two objects with intersecting bounding boxes overlap significantly.
+	 */
+	public interface OverlapTest {
+
+		/**
+		 * @param list1 Index of the list (channel) of the first object
+		 * @param ind1 Index of the first object in its list
+		 * @param list2 Index of the list (channel) of the second object
+		 * @param ind2 Index of the second object in its list
+		 * @return
+		 */
+		boolean overlaps(int list1, int ind1, int list2, int ind2);
+
+	}
+
+	private final ObjectGeometry[] geometries;
+	private final int[] listOf, indexOf;
+	private final double[] minX, minY, maxX, maxY;
+
+	private SweepLineOverlapResolver(final ObjectGeometry[] geometries) {
+		this.geometries = geometries;
+		int n = 0;
+		for (ObjectGeometry geometry : geometries)
+			n += geometry.size();
+		listOf = new int[n];
+		indexOf = new int[n];
+		minX = new double[n];
+		minY = new double[n];
+		maxX = new double[n];
+		maxY = new double[n];
+		int i = 0;
+		for (int l = 0; l < geometries.length; l++) {
+			ObjectGeometry geometry = geometries[l];
+			for (int k = 0; k < geometry.size(); k++) {
+				listOf[i] = l;
+				indexOf[i] = k;
+				minX[i] = geometry.getMinX(k);
+				minY[i] = geometry.getMinY(k);
+				maxX[i] = geometry.getMaxX(k);
+				maxY[i] = geometry.getMaxY(k);
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Resolve the overlapping objects in several lists.
+	 *
+	 * @param geometries Geometry of each list, in order of priority
+	 * @param test Test applied to every pair of objects from different lists with intersecting bounding boxes
+	 * @return Flags indicating which objects should be removed, for each list
+	 */
+	public static boolean[][] resolve(final ObjectGeometry[] geometries, final OverlapTest test) {
+		return new SweepLineOverlapResolver(geometries).resolve(test);
+	}
+
+	private boolean[][] resolve(final OverlapTest test) {
+		int n = listOf.length;
+
+		// Find all overlapping pairs & store them as adjacency lists
+		List<int[]> pairs = findOverlappingPairs(test);
+		int[] offsets = new int[n + 1];
+		for (int[] pair : pairs) {
+			offsets[pair[0] + 1]++;
+			offsets[pair[1] + 1]++;
+		}
+		for (int i = 0; i < n; i++)
+			offsets[i + 1] += offsets[i];
+		int[] neighbours = new int[offsets[n]];
+		int[] fill = Arrays.copyOf(offsets, n);
+		for (int[] pair : pairs) {
+			neighbours[fill[pair[0]]++] = pair[1];
+			neighbours[fill[pair[1]]++] = pair[0];
+		}
+
+		// Keep objects in order of decreasing area, then channel priority
+		Integer[] rank = new Integer[n];
+		for (int i = 0; i < n; i++)
+			rank[i] = i;
+		Arrays.sort(rank, (a, b) -> {
+			int cmp = Double.compare(geometries[listOf[b]].getMeasuredArea(indexOf[b]), geometries[listOf[a]].getMeasuredArea(indexOf[a]));
+			if (cmp != 0)
+				return cmp;
+			cmp = Integer.compare(listOf[a], listOf[b]);
+			return cmp != 0 ? cmp : Integer.compare(indexOf[a], indexOf[b]);
+		});
+		boolean[] kept = new boolean[n];
+		boolean[][] removed = new boolean[geometries.length][];
+		for (int l = 0; l < geometries.length; l++)
+			removed[l] = new boolean[geometries[l].size()];
+		for (int i : rank) {
+			boolean overlapsKept = false;
+			for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+				if (kept[neighbours[j]]) {
+					overlapsKept = true;
+					break;
+				}
+			}
+			if (overlapsKept)
+				removed[listOf[i]][indexOf[i]] = true;
+			else
+				kept[i] = true;
+		}
+		return removed;
+	}
+
+	private List<int[]> findOverlappingPairs(final OverlapTest test) {
+		int n = listOf.length;
+		Integer[] order = new Integer[n];
+		double maxHeight = 0;
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			maxHeight = Math.max(maxHeight, maxY[i] - minY[i]);
+		}
+		Arrays.sort(order, Comparator.comparingDouble(i -> minX[i]));
+
+		// Active objects, by right edge (for removal) & by top edge (for queries);
+		// the indices n & n+1 are used as bounds when querying by top edge
+		final double[] queryBounds = new double[2];
+		Comparator<Integer> byMinY = (a, b) -> {
+			int cmp = Double.compare(a >= n ? queryBounds[a - n] : minY[a], b >= n ? queryBounds[b - n] : minY[b]);
+			if (cmp != 0)
+				return cmp;
+			return Integer.compare(a == n ? -1 : a, b == n ? -1 : b);
+		};
+		PriorityQueue<Integer> activeByMaxX = new PriorityQueue<>(Comparator.comparingDouble(i -> maxX[i]));
+		TreeSet<Integer> activeByMinY = new TreeSet<>(byMinY);
+
+		List<int[]> pairs = new ArrayList<>();
+		for (int i : order) {
+			while (!activeByMaxX.isEmpty() && maxX[activeByMaxX.peek()] < minX[i])
+				activeByMinY.remove(activeByMaxX.poll());
+
+			// Any active object with an intersecting bounding box starts at most maxHeight above this one
+			queryBounds[0] = minY[i] - maxHeight;
+			queryBounds[1] = maxY[i];
+			for (int j : activeByMinY.subSet(n, true, n + 1, true)) {
+				if (listOf[j] == listOf[i] || maxY[j] < minY[i])
+					continue;
+				int a = Math.min(i, j);
+				int b = Math.max(i, j);
+				if (test.overlaps(listOf[a], indexOf[a], listOf[b], indexOf[b]))
+					pairs.add(new int[] {a, b});
+			}
+			activeByMaxX.add(i);
+			activeByMinY.add(i);
+		}
+		return pairs;
+	}
+
+}
@@ -0,0 +1,299 @@
+package qupath.lib.algorithms;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.PathShape;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Remove duplicate detections on the seams between overlapping tiles, while the tiles are being processed.
+ *
+ * Every tile passes its detections to the resolver as soon as it has finished. Objects which don't reach into
+ * any other tile are returned immediately; objects on a seam are kept in a spatial hash until all tiles they reach
+ * into have finished. At that point all possible duplicates of the object are known, and the object is returned
+ * (by the tile which finished last) unless it overlaps significantly with a larger object from another tile.
+ * Ties are broken by the position of the tiles, so the result doesn't depend on the order in which tiles finish.
+ *
+ * The tiles are either all added before any of them is resolved, or - if only their number is known in advance -
+ * added by every tile as it starts; a tile which finishes before all tiles have been added doesn't know its seams yet,
+ * so its objects are only resolved (and returned) once the next tile finishes after all tiles are known.
+ *
+ * One resolver should be created for every set of tiles, i.e. for every parent object of a detection.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class TileSeamResolver {
+
+	private static final Logger logger = LoggerFactory.getLogger(TileSeamResolver.class);
+
+	/**
+	 * Minimum fraction of the smaller object which should be covered by the larger one for two objects
+	 * to be considered the same.
+	 */
+	public static final double DUPLICATE_OVERLAP = 0.5;
+
+	private final double cellSize;
+	private final List<ROI> tileROIs = new ArrayList<>();
+	private final List<double[]> tileBounds = new ArrayList<>();
+	private final List<Boolean> tileDone = new ArrayList<>();
+	private final List<List<SeamObject>> waiting = new ArrayList<>();
+	private final Map<Long, List<SeamObject>> grid = new HashMap<>();
+	private final Map<Integer, List<PathObject>> deferred = new LinkedHashMap<>();
+	private int nExpected = 0;
+	private int nRemoved = 0;
+
+	/**
+	 * Create a resolver; tiles should be added before any of them are resolved, unless setNumTiles is called.
+	 * @param cellSize Size of the cells of the spatial hash, in pixels (e.g. twice the tile overlap)
+	 */
+	public TileSeamResolver(final double cellSize) {
+		this.cellSize = Math.max(1, cellSize);
+	}
+
+	/**
+	 * Set the number of tiles, so that the tiles can be added as they start rather than all in advance;
+	 * no tile is resolved before all of them have been added.
+	 * @param nTiles
+	 */
+	public synchronized void setNumTiles(final int nTiles) {
+		this.nExpected = nTiles;
+	}
+
+	/**
+	 * Add a tile; tiles are identified by their ROI. Adding a tile again has no effect.
+	 * @param tileROI
+	 */
+	public synchronized void addTile(final ROI tileROI) {
+		for (ROI roi : tileROIs) {
+			if (roi == tileROI)
+				return;
+		}
+		tileROIs.add(tileROI);
+		tileBounds.add(getBounds(tileROI));
+		tileDone.add(Boolean.FALSE);
+		waiting.add(new ArrayList<>());
+	}
+
+	/**
+	 * Get the number of tiles.
+	 * @return
+	 */
+	public synchronized int nTiles() {
+		return tileROIs.size();
+	}
+
+	/**
+	 * Get the number of duplicate objects which were removed so far.
+	 * @return
+	 */
+	public synchronized int getRemovedCount() {
+		return nRemoved;
+	}
+
+	/**
+	 * Pass the detections of a tile which has finished, and get the detections which should be kept.
+	 *
+	 * The result contains the objects of this tile away from the seams, together with the objects on seams
+	 * (of this tile or of any other tile) which could only be resolved now that this tile has finished.
+	 * If the tile is unknown (e.g. when the region wasn't split into tiles), all objects are returned.
+	 *
+	 * @param tileROI
+	 * @param pathObjects
+	 * @return
+	 */
+	public synchronized List<PathObject> resolve(final ROI tileROI, final Collection<? extends PathObject> pathObjects) {
+		int tile = indexOfTile(tileROI);
+		if (tile < 0 || tileDone.get(tile) || deferred.containsKey(tile))
+			return new ArrayList<>(pathObjects);
+
+		// The seams are only known once all tiles have been added
+		if (tileROIs.size() < nExpected) {
+			deferred.put(tile, new ArrayList<>(pathObjects));
+			logger.trace("Tile {}: {} objects deferred until all tiles have started", tile, pathObjects.size());
+			return new ArrayList<>();
+		}
+		List<PathObject> resolved = new ArrayList<>();
+		for (Map.Entry<Integer, List<PathObject>> entry : deferred.entrySet())
+			resolved.addAll(resolveTile(entry.getKey(), entry.getValue()));
+		deferred.clear();
+		resolved.addAll(resolveTile(tile, pathObjects));
+		return resolved;
+	}
+
+	private List<PathObject> resolveTile(final int tile, final Collection<? extends PathObject> pathObjects) {
+		List<PathObject> resolved = new ArrayList<>();
+		List<SeamObject> ready = new ArrayList<>();
+		for (PathObject pathObject : pathObjects) {
+			SeamObject seamObject = new SeamObject(pathObject, tile);
+
+			// Find the other tiles the object reaches into
+			boolean onSeam = false;
+			for (int t = 0; t < tileROIs.size(); t++) {
+				if (t == tile || !seamObject.intersects(tileBounds.get(t)))
+					continue;
+				onSeam = true;
+				if (!tileDone.get(t)) {
+					seamObject.nWaiting++;
+					waiting.get(t).add(seamObject);
+				}
+			}
+			if (!onSeam) {
+				resolved.add(pathObject);
+				continue;
+			}
+			addToGrid(seamObject);
+			if (seamObject.nWaiting == 0)
+				ready.add(seamObject);
+		}
+
+		// Objects of other tiles might have been waiting for this one
+		tileDone.set(tile, Boolean.TRUE);
+		for (SeamObject seamObject : waiting.get(tile)) {
+			if (--seamObject.nWaiting == 0)
+				ready.add(seamObject);
+		}
+		waiting.set(tile, Collections.emptyList());
+
+		for (SeamObject seamObject : ready) {
+			if (isKept(seamObject))
+				resolved.add(seamObject.pathObject);
+			else
+				nRemoved++;
+		}
+		logger.trace("Tile {}: {} objects passed, {} returned", tile, pathObjects.size(), resolved.size());
+		return resolved;
+	}
+
+	private int indexOfTile(final ROI tileROI) {
+		for (int t = 0; t < tileROIs.size(); t++) {
+			if (tileROIs.get(t) == tileROI)
+				return t;
+		}
+		// Fall back to comparing bounds, in case the ROI was copied
+		double[] bounds = getBounds(tileROI);
+		for (int t = 0; t < tileBounds.size(); t++) {
+			double[] b = tileBounds.get(t);
+			if (b[0] == bounds[0] && b[1] == bounds[1] && b[2] == bounds[2] && b[3] == bounds[3])
+				return t;
+		}
+		return -1;
+	}
+
+	/**
+	 * An object is kept unless a better duplicate exists in another tile; all candidates are known at this point,
+	 * because every tile the object reaches into has finished.
+	 */
+	private boolean isKept(final SeamObject seamObject) {
+		for (SeamObject other : getCandidates(seamObject)) {
+			if (other.tile == seamObject.tile || !other.intersects(seamObject.bounds))
+				continue;
+			boolean otherIsBetter = other.area > seamObject.area || (other.area == seamObject.area && compareTiles(other.tile, seamObject.tile) < 0);
+			if (otherIsBetter && isDuplicate(seamObject, other))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compare tiles by their position (top to bottom, left to right), which doesn't depend on the order in which
+	 * they were added.
+	 */
+	private int compareTiles(final int tile1, final int tile2) {
+		double[] b1 = tileBounds.get(tile1);
+		double[] b2 = tileBounds.get(tile2);
+		int cmp = Double.compare(b1[1], b2[1]);
+		return cmp != 0 ? cmp : Double.compare(b1[0], b2[0]);
+	}
+
+	private static boolean isDuplicate(final SeamObject o1, final SeamObject o2) {
+		ROI r1 = o1.pathObject.getROI();
+		ROI r2 = o2.pathObject.getROI();
+		if (!(r1 instanceof PathShape && r2 instanceof PathShape))
+			return true;
+		ROI intersection = PathROIToolsAwt.combineROIs((PathShape)r1, (PathShape)r2, PathROIToolsAwt.CombineOp.INTERSECT);
+		return intersection instanceof PathArea && ((PathArea)intersection).getArea() > DUPLICATE_OVERLAP * Math.min(o1.area, o2.area);
+	}
+
+	private void addToGrid(final SeamObject seamObject) {
+		int[] cells = getCells(seamObject.bounds);
+		for (int y = cells[1]; y <= cells[3]; y++) {
+			for (int x = cells[0]; x <= cells[2]; x++)
+				grid.computeIfAbsent(getKey(x, y), k -> new ArrayList<>()).add(seamObject);
+		}
+	}
+
+	private Collection<SeamObject> getCandidates(final SeamObject seamObject) {
+		// Objects spanning several cells are found more than once
+		Set<SeamObject> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+		int[] cells = getCells(seamObject.bounds);
+		for (int y = cells[1]; y <= cells[3]; y++) {
+			for (int x = cells[0]; x <= cells[2]; x++) {
+				List<SeamObject> list = grid.get(getKey(x, y));
+				if (list != null)
+					candidates.addAll(list);
+			}
+		}
+		return candidates;
+	}
+
+	private int[] getCells(final double[] bounds) {
+		return new int[] {
+				(int)Math.floor(bounds[0] / cellSize),
+				(int)Math.floor(bounds[1] / cellSize),
+				(int)Math.floor(bounds[2] / cellSize),
+				(int)Math.floor(bounds[3] / cellSize)
+		};
+	}
+
+	private static long getKey(final int x, final int y) {
+		return ((long)x << 32) | (y & 0xFFFFFFFFL);
+	}
+
+	private static double[] getBounds(final ROI roi) {
+		return new double[] {roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsX() + roi.getBoundsWidth(), roi.getBoundsY() + roi.getBoundsHeight()};
+	}
+
+	/**
+	 * Object on a seam, together with the tile it was detected in.
+	 */
+	private static class SeamObject {
+
+		private final PathObject pathObject;
+		private final int tile;
+		private final double[] bounds;
+		private final double area;
+		private int nWaiting = 0;
+
+		SeamObject(final PathObject pathObject, final int tile) {
+			this.pathObject = pathObject;
+			this.tile = tile;
+			ROI roi = pathObject.getROI();
+			this.bounds = getBounds(roi);
+			this.area = roi instanceof PathArea ? ((PathArea)roi).getArea() : roi.getBoundsWidth() * roi.getBoundsHeight();
+		}
+
+		/**
+		 * Check whether the bounding box of the object overlaps with other bounds (touching isn't enough).
+		 */
+		boolean intersects(final double[] other) {
+			return bounds[0] < other[2] && other[0] < bounds[2] && bounds[1] < other[3] && other[1] < bounds[3];
+		}
+
+	}
+
+}
@@ -0,0 +1,163 @@
+package qupath.lib.algorithms;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Reusable pixel buffers for the detection of a single tile, owned by the thread processing the tile.
+ *
+ * Every buffer is identified by a slot (chosen by the caller) and its size; asking for the same slot & size again
+ * returns the same array, wrapped in a new processor. ImageJ processors need arrays with exactly width * height
+ * pixels, so the edge tiles of a region (which are smaller) get buffers of their own.
+ * The buffers are softly referenced, so that they can be reclaimed when memory runs low once detection has finished.
+ *
+ * Processors from a workspace are only valid until the same slot is requested again on the same thread;
+ * whoever keeps them across several calls should claim the workspace, and check that it still owns it later.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class TileWorkspace {
+
+	private static final ThreadLocal<TileWorkspace> workspaces = ThreadLocal.withInitial(TileWorkspace::new);
+
+	private final Map<Long, SoftReference<float[]>> floatBuffers = new HashMap<>();
+	private final Map<Long, SoftReference<byte[]>> byteBuffers = new HashMap<>();
+	private final Map<Long, SoftReference<short[]>> shortBuffers = new HashMap<>();
+	private Object owner = null;
+
+	private TileWorkspace() {}
+
+	/**
+	 * Get the workspace of the current thread.
+	 * @return
+	 */
+	public static TileWorkspace get() {
+		return workspaces.get();
+	}
+
+	/**
+	 * Claim the workspace, invalidating the processors kept by its previous owner.
+	 * @param owner
+	 */
+	public void claim(final Object owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Check whether the processors kept by an owner are still valid.
+	 * @param owner
+	 * @return
+	 */
+	public boolean isOwnedBy(final Object owner) {
+		return this.owner == owner;
+	}
+
+	/**
+	 * Get a float processor backed by a recycled buffer; the pixel values are undefined.
+	 * @param slot
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public FloatProcessor getFloatProcessor(final int slot, final int width, final int height) {
+		int n = width * height;
+		long key = getKey(slot, n);
+		SoftReference<float[]> ref = floatBuffers.get(key);
+		float[] pixels = ref == null ? null : ref.get();
+		if (pixels == null) {
+			pixels = new float[n];
+			floatBuffers.put(key, new SoftReference<>(pixels));
+		}
+		return new FloatProcessor(width, height, pixels);
+	}
+
+	/**
+	 * Copy the pixels of a float processor into a recycled buffer, as a replacement for {@code duplicate()}.
+	 * @param slot
+	 * @param fp
+	 * @return
+	 */
+	public FloatProcessor copyOf(final int slot, final FloatProcessor fp) {
+		FloatProcessor fp2 = getFloatProcessor(slot, fp.getWidth(), fp.getHeight());
+		System.arraycopy((float[])fp.getPixels(), 0, (float[])fp2.getPixels(), 0, fp.getWidth() * fp.getHeight());
+		fp2.setMinAndMax(fp.getMin(), fp.getMax());
+		return fp2;
+	}
+
+	/**
+	 * Get a byte processor backed by a recycled buffer, with all pixels set to 0.
+	 * @param slot
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public ByteProcessor getByteProcessor(final int slot, final int width, final int height) {
+		int n = width * height;
+		long key = getKey(slot, n);
+		SoftReference<byte[]> ref = byteBuffers.get(key);
+		byte[] pixels = ref == null ? null : ref.get();
+		if (pixels == null) {
+			pixels = new byte[n];
+			byteBuffers.put(key, new SoftReference<>(pixels));
+		} else {
+			Arrays.fill(pixels, (byte)0);
+		}
+		return new ByteProcessor(width, height, pixels);
+	}
+
+	/**
+	 * Get a short processor backed by a recycled buffer, with all pixels set to 0.
+	 * @param slot
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public ShortProcessor getShortProcessor(final int slot, final int width, final int height) {
+		short[] pixels = getShortBuffer(slot, width * height);
+		Arrays.fill(pixels, (short)0);
+		return new ShortProcessor(width, height, pixels, null);
+	}
+
+	/**
+	 * Copy the pixels of a short processor into a recycled buffer, as a replacement for {@code duplicate()}.
+	 * @param slot
+	 * @param sp
+	 * @return
+	 */
+	public ShortProcessor copyOf(final int slot, final ShortProcessor sp) {
+		int n = sp.getWidth() * sp.getHeight();
+		short[] pixels = getShortBuffer(slot, n);
+		System.arraycopy((short[])sp.getPixels(), 0, pixels, 0, n);
+		return new ShortProcessor(sp.getWidth(), sp.getHeight(), pixels, null);
+	}
+
+	/**
+	 * Drop all buffers of the current thread's workspace.
+	 */
+	public static void release() {
+		workspaces.remove();
+	}
+
+	private short[] getShortBuffer(final int slot, final int n) {
+		long key = getKey(slot, n);
+		SoftReference<short[]> ref = shortBuffers.get(key);
+		short[] pixels = ref == null ? null : ref.get();
+		if (pixels == null) {
+			pixels = new short[n];
+			shortBuffers.put(key, new SoftReference<>(pixels));
+		}
+		return pixels;
+	}
+
+	private static long getKey(final int slot, final int nPixels) {
+		return ((long)slot << 32) | (nPixels & 0xFFFFFFFFL);
+	}
+
+}
@@ -0,0 +1,783 @@
+package qupath.lib.algorithms;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.measure.Calibration;
+import ij.plugin.filter.EDM;
+import ij.plugin.filter.RankFilters;
+import ij.process.AutoThresholder;
+import ij.process.Blitter;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import qupath.imagej.helpers.IJTools;
+import qupath.imagej.objects.ROIConverterIJ;
+import qupath.imagej.objects.measure.ObjectMeasurements;
+import qupath.imagej.processing.MorphologicalReconstruction;
+import qupath.imagej.processing.ROILabeling;
+import qupath.imagej.processing.RegionalExtrema;
+import qupath.imagej.processing.SimpleThresholding;
+import qupath.imagej.processing.Watershed;
+import qupath.lib.algorithms.CompartmentStatistics.Compartment;
+import qupath.lib.ij_opencv.ImagePlusToMatConverter;
+import qupath.lib.ij_opencv.MatToImagePlusConverter;
+import qupath.lib.images.PathImage;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.PolygonROI;
+import qupath.lib.roi.experimental.ShapeSimplifier;
+
+/**
+ * Watershed nucleus & cell detection, shared by all watershed detection plugins.
+ *
+ * The detection runs as a sequence of stages: the seed stage thresholds the filtered (LoG) image and
+ * splits it into watershed regions, the split stage merges the regions which are kept into nuclei (and
+ * splits touching nuclei), the expansion stage grows the nuclei into cells and the measurement stage
+ * measures the labelled nuclei, cells and cytoplasm. Every stage can be replaced, the rest of the detection
+ * (background subtraction, region & area filtering, ROI tracing and object creation) is the same for all plugins.
+ *
+ * The intermediate images (the watershed regions, the foreground and the labelled nuclei) are kept by the engine
+ * and passed from one stage to the next, rather than being recomputed. Scratch images are taken from the
+ * {@link TileWorkspace} of the current thread instead of being duplicated for every tile.
+ * The filters themselves (median, Gaussian, Laplacian & distance transform) come from a {@link FilterBackend}.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class WatershedCellEngine {
+
+	private static final Logger logger = LoggerFactory.getLogger(WatershedCellEngine.class);
+
+	// Slots of the tile workspace used by the engine
+	private static final int SLOT_LOG = 0, SLOT_BACKGROUND = 1, SLOT_MEASURE = 2;
+	private static final int SLOT_BINARY = 0;
+	static final int SLOT_NUCLEI = 0, SLOT_CELLS = 1;
+
+	/**
+	 * Find the potential nucleus regions in the filtered detection image.
+	 */
+	public interface SeedStage {
+
+		/**
+		 * Threshold the filtered (LoG) image to find the foreground.
+		 * @param fpLoG
+		 * @return
+		 */
+		ByteProcessor threshold(FloatProcessor fpLoG);
+
+		/**
+		 * Find the seeds in the filtered (LoG) image and grow them using a watershed transform.
+		 * @param fpLoG Filtered image, with the ROI set to the region of interest
+		 * @return A labelled image of the watershed regions
+		 */
+		ImageProcessor labelRegions(FloatProcessor fpLoG);
+
+	}
+
+	/**
+	 * Seed stages used by the existing detection plugins.
+	 */
+	public enum Seeds implements SeedStage {
+
+		/**
+		 * Foreground where the LoG is positive, seeds at the regional maxima of the LoG.
+		 */
+		LOG {
+			@Override
+			public ByteProcessor threshold(FloatProcessor fpLoG) {
+				return SimpleThresholding.thresholdAbove(fpLoG, 0f);
+			}
+		},
+
+		/**
+		 * Foreground above an Otsu threshold of the LoG, seeds at the regional maxima of the LoG.
+		 */
+		OTSU {
+			@Override
+			public ByteProcessor threshold(FloatProcessor fpLoG) {
+				AutoThresholder at = new AutoThresholder();
+				int t = at.getThreshold(AutoThresholder.Method.Otsu, fpLoG.getHistogram(256));
+				return SimpleThresholding.thresholdAbove(fpLoG, t);
+			}
+		},
+
+		/**
+		 * Foreground where the LoG is positive, seeds from the fast radial symmetry transform (8-connected).
+		 */
+		FRS {
+			@Override
+			public ByteProcessor threshold(FloatProcessor fpLoG) {
+				return SimpleThresholding.thresholdAbove(fpLoG, 0f);
+			}
+
+			@Override
+			public ImageProcessor labelRegions(FloatProcessor fpLoG) {
+				int[] radii = {4, 6};
+				Mat frs;
+				try {
+					frs = FastRadialSymmetry.doTransform(ImagePlusToMatConverter.toMat(fpLoG), radii, 1, 0, FastRadialSymmetry.Mode.BRIGHT);
+				} catch (Exception e) {
+					// Without seeds there are no regions - rather than labelling an empty transform
+					logger.error("Unable to apply the fast radial symmetry transform", e);
+					return new ShortProcessor(fpLoG.getWidth(), fpLoG.getHeight());
+				}
+				frs.convertTo(frs, CvType.CV_32FC1);
+				ImageProcessor ipTemp = MatToImagePlusConverter.toImageProcessor(frs);
+				frs.release();
+
+				ImageProcessor ipLabels = ROILabeling.labelImage(ipTemp, 0, true);
+				Watershed.doWatershed(fpLoG, ipLabels, 0, true);
+				return ipLabels;
+			}
+		};
+
+		@Override
+		public ImageProcessor labelRegions(FloatProcessor fpLoG) {
+			ImageProcessor ipTemp = RegionalExtrema.findRegionalMaxima(fpLoG, 0.001f, false);
+			ImageProcessor ipLabels = ROILabeling.labelImage(ipTemp, 0, false);
+			Watershed.doWatershed(fpLoG, ipLabels, 0, false);
+			return ipLabels;
+		}
+
+	}
+
+	/**
+	 * Turn the watershed regions which were kept into nuclei.
+	 */
+	public interface SplitStage {
+
+		/**
+		 * @param bp Binary image of the regions which were kept (foreground 255), modified in place
+		 * @param bpForeground Thresholded filtered image, from the SeedStage
+		 */
+		void split(ByteProcessor bp, ByteProcessor bpForeground);
+
+	}
+
+	/**
+	 * Grow the nuclei into cells.
+	 */
+	public interface ExpansionStage {
+
+		/**
+		 * @param bpNuclei Binary image of the nuclei (foreground 255)
+		 * @param ipLabelsNuclei Labelled nuclei
+		 * @param cellExpansion Maximum expansion distance, in pixels
+		 * @return Labelled cells, using the same labels as the nuclei
+		 */
+		ImageProcessor expand(ByteProcessor bpNuclei, ImageProcessor ipLabelsNuclei, double cellExpansion);
+
+	}
+
+	/**
+	 * Grow the nuclei into cells, and measure the nuclei, cells & cytoplasm while the pixels are assigned to cells.
+	 */
+	public interface MeasuringExpansionStage extends ExpansionStage {
+
+		/**
+		 * @param bpNuclei Binary image of the nuclei (foreground 255)
+		 * @param ipLabelsNuclei Labelled nuclei
+		 * @param cellExpansion Maximum expansion distance, in pixels
+		 * @param stats Statistics to which every pixel of a nucleus or cell is added
+		 * @return Labelled cells, using the same labels as the nuclei
+		 */
+		ImageProcessor expand(ByteProcessor bpNuclei, ImageProcessor ipLabelsNuclei, double cellExpansion, CompartmentStatistics stats);
+
+	}
+
+	/**
+	 * Measure the intensities within the nuclei, cells & cytoplasm.
+	 */
+	public interface MeasurementStage {
+
+		/**
+		 * @param channels Channels to measure within nuclei, mapped to their names
+		 * @param channelsCell Channels to measure within cells & cytoplasm, mapped to their names
+		 * @param ipLabelsNuclei Labelled nuclei, with labels 1 to nObjects
+		 * @param ipLabelsCells Labelled cells, using the same labels as the nuclei; null if nuclei aren't expanded
+		 * @param nObjects
+		 * @return
+		 */
+		CompartmentStatistics measure(Map<String, ImageProcessor> channels, Map<String, ImageProcessor> channelsCell, ImageProcessor ipLabelsNuclei, ImageProcessor ipLabelsCells, int nObjects);
+
+	}
+
+	/**
+	 * Merge all regions which are kept, within the foreground, optionally splitting them again using the distance transform.
+	 * @param watershedPostProcess Fill holes & split the merged regions with a distance transform watershed
+	 * @return
+	 */
+	public static SplitStage createMergeSplit(final boolean watershedPostProcess) {
+		return (bp, bpForeground) -> {
+			bp.filter(ImageProcessor.MAX);
+			bp.copyBits(bpForeground, 0, 0, Blitter.AND);
+			if (watershedPostProcess) {
+				FillHoles.fillHoles(bp);
+				new EDM().toWatershed(bp);
+			}
+		};
+	}
+
+	/**
+	 * Keep the watershed regions as they are.
+	 */
+	public static final SplitStage NO_SPLIT = (bp, bpForeground) -> {};
+
+	/**
+	 * Expand nuclei using a watershed transform of the distance to the nuclei, up to the maximum expansion.
+	 * @param filters Backend used to compute the distance transform
+	 * @return
+	 */
+	public static ExpansionStage createDistanceExpansion(final FilterBackend filters) {
+		return (bpNuclei, ipLabelsNuclei, cellExpansion) -> {
+			FloatProcessor fpEDM = filters.distanceToForeground(bpNuclei);
+			fpEDM.multiply(-1);
+			ImageProcessor ipLabelsCells = ipLabelsNuclei instanceof ShortProcessor ? TileWorkspace.get().copyOf(SLOT_CELLS, (ShortProcessor)ipLabelsNuclei) : ipLabelsNuclei.duplicate();
+			Watershed.doWatershed(fpEDM, ipLabelsCells, -cellExpansion, false);
+			return ipLabelsCells;
+		};
+	}
+
+	/**
+	 * Measure all channels & compartments in a single sweep over the labelled images.
+	 */
+	public static final MeasurementStage SINGLE_SWEEP = (channels, channelsCell, ipLabelsNuclei, ipLabelsCells, nObjects) -> {
+		CompartmentStatistics stats = new CompartmentStatistics(channels, channelsCell, nObjects);
+		stats.accumulate(ipLabelsNuclei, ipLabelsCells);
+		return stats;
+	};
+
+	// Intensity measurements per channel, in the order they are written to the measurement table
+	private static final String[] NUCLEUS_STATISTICS = {"mean", "sum", "std dev", "max", "min", "range"};
+	private static final String[] CELL_STATISTICS = {"mean", "std dev", "max", "min"};
+
+	private SeedStage seedStage = Seeds.LOG;
+	private SplitStage splitStage = null;
+	private ExpansionStage expansionStage = null;
+	private MeasurementStage measurementStage = SINGLE_SWEEP;
+	private FilterBackend filters = FilterBackend.Filters.IMAGEJ;
+
+	private boolean refineBoundary = true; // TODO: Consider making this variable accessible
+
+	private double backgroundRadius = 15;
+	private double maxBackground = 0.3;
+
+	private int z = 0, t = 0;
+
+	private boolean lastRunCompleted = false;
+
+	private boolean includeNuclei = true;
+	private double cellExpansion = 0;
+
+	private double minArea = 0;
+	private double maxArea = 0;
+
+	private double medianRadius = 2;
+	private double sigma = 2.5;
+	private double threshold = 0.3;
+	private boolean mergeAll = true;
+	private boolean watershedPostProcess = true; // TODO: COMBINE WITH MERGEALL OPTION
+	private boolean excludeDAB = false;
+	private boolean smoothBoundaries = false;
+
+	private boolean makeMeasurements = true;
+
+	private Roi roi = null;
+	private FloatProcessor fpDetection = null;
+	private Map<String, ImageProcessor> channels = new LinkedHashMap<>(); // Map of channels to measure for nuclei only, and their names
+	private Map<String, ImageProcessor> channelsCell = new LinkedHashMap<>(); // Map of channels to measure for cell/cytoplasm, and their names
+	private ImageProcessor ipToMeasure = null;
+	private ImageProcessor ipLabelsWatershed = null;
+	private ByteProcessor bpLoG = null;
+
+	private List<PolygonRoi> roisNuclei = new ArrayList<>();
+	private List<PathObject> pathObjects = new ArrayList<>();
+
+	private PathImage<ImagePlus> pathImage = null;
+
+	/**
+	 * Create an engine for a single image (tile).
+	 * @param fpDetection Image in which nuclei are detected
+	 * @param channels Channels to measure within nuclei; these are only read, and can have any bit depth
+	 * @param channelsCell Channels to measure within cells & cytoplasm
+	 * @param roi Region in which nuclei are detected, may be null
+	 * @param pathImage
+	 */
+	public WatershedCellEngine(FloatProcessor fpDetection, Map<String, ? extends ImageProcessor> channels, Map<String, ? extends ImageProcessor> channelsCell, Roi roi, PathImage<ImagePlus> pathImage) {
+		this.fpDetection = fpDetection;
+		if (channels != null)
+			this.channels.putAll(channels);
+		if (channelsCell != null)
+			this.channelsCell.putAll(channelsCell);
+		this.roi = roi;
+		this.pathImage = pathImage;
+		Prefs.setThreads(1);
+	}
+
+	/**
+	 * Set the stage used to find the watershed regions; changing it requires the regions to be found again.
+	 * @param seedStage
+	 */
+	public void setSeedStage(final SeedStage seedStage) {
+		if (this.seedStage != seedStage)
+			ipLabelsWatershed = null;
+		this.seedStage = seedStage;
+	}
+
+	/**
+	 * Set the stage used to merge & split the regions into nuclei; if null, the regions are merged
+	 * (and post-processed) according to the mergeAll & watershedPostProcess parameters.
+	 * @param splitStage
+	 */
+	public void setSplitStage(final SplitStage splitStage) {
+		this.splitStage = splitStage;
+	}
+
+	/**
+	 * Set the stage used to expand nuclei into cells; if null, nuclei are expanded using a watershed transform of
+	 * the distance to the nuclei with the ImageJ filters, or by assigning pixels to the nearest nucleus with
+	 * OpenCV's labelled distance transform otherwise.
+	 * @param expansionStage
+	 */
+	public void setExpansionStage(final ExpansionStage expansionStage) {
+		this.expansionStage = expansionStage;
+	}
+
+	/**
+	 * Set the backend used for the median, Gaussian & Laplacian filters and the distance transform;
+	 * changing it requires the regions to be found again.
+	 * @param filters
+	 */
+	public void setFilterBackend(final FilterBackend filters) {
+		if (this.filters != filters)
+			ipLabelsWatershed = null;
+		this.filters = filters;
+	}
+
+	/**
+	 * Set the stage used to measure the channels within nuclei, cells & cytoplasm.
+	 * @param measurementStage
+	 */
+	public void setMeasurementStage(final MeasurementStage measurementStage) {
+		this.measurementStage = measurementStage;
+	}
+
+
+	public static ByteProcessor limitedOpeningByReconstruction(final ImageProcessor ip, final ImageProcessor ipBackground, final double radius, final double maxBackground) {
+		// Apply (initial) morphological opening
+		final RankFilters rf = new RankFilters();
+		ipBackground.setRoi(ip.getRoi());
+		rf.rank(ipBackground, radius, RankFilters.MIN);
+
+		// Mask out any above-threshold background pixels & their surroundings
+		ByteProcessor bpMask = null;
+		if (!Double.isNaN(maxBackground) && maxBackground > 0) {
+			int w = ip.getWidth();
+			int h = ip.getHeight();
+			for (int i = 0; i < w * h; i++) {
+				if (ipBackground.getf(i) > maxBackground) {
+					if (bpMask == null)
+						bpMask = new ByteProcessor(w, h);
+					bpMask.setf(i, 1f);
+				}
+			}
+			// Apply mask if required
+			if (bpMask != null) {
+				rf.rank(bpMask, radius*2, RankFilters.MAX);
+				for (int i = 0; i < w * h; i++) {
+					if (bpMask.getf(i) != 0f) {
+						ipBackground.setf(i, Float.NEGATIVE_INFINITY);
+					}
+				}
+			}
+		}
+
+		// Apply the morphological reconstruction
+		MorphologicalReconstruction.morphologicalReconstruction(ipBackground, ip);
+		return bpMask;
+	}
+
+
+	private void doDetection(boolean regenerateROIs) {
+		int width = fpDetection.getWidth();
+		int height = fpDetection.getHeight();
+		lastRunCompleted = false;
+		pathObjects.clear();
+		ByteProcessor bp = null;
+		ByteProcessor bpBackgroundMask = null;
+		TileWorkspace workspace = TileWorkspace.get();
+		fpDetection.setRoi(roi);
+		if (regenerateROIs) {
+			ipLabelsWatershed = null;
+			bpLoG = null;
+			// The image to measure is kept in the workspace until the next regeneration
+			workspace.claim(this);
+
+			// Use Laplacian of Gaussian filtering followed by watershed transform to determine possible nucleus segments
+			// Result will be a dramatic over-segmentation...
+			FloatProcessor fpLoG = workspace.copyOf(SLOT_LOG, fpDetection);
+
+			// Start off with a median filter to reduce texture, if necessary
+			RankFilters rf = new RankFilters();
+			if (medianRadius > 0)
+				filters.median(fpLoG, medianRadius);
+
+			if (excludeDAB && channels.containsKey("Hematoxylin OD") && channels.containsKey("DAB OD")) {
+				// If we are avoiding DAB, set pixels away from potential nuclei to zero
+				// Optical densities are always float images
+				FloatProcessor fpDAB = (FloatProcessor)channels.get("DAB OD");
+				fpDAB.setRoi(roi);
+				ByteProcessor bpH = SimpleThresholding.greaterThanOrEqual((FloatProcessor)channels.get("Hematoxylin OD"), fpDAB);
+				bpH.multiply(1.0/255.0);
+				rf.rank(bpH, 2.5, RankFilters.MEDIAN);
+				rf.rank(bpH, 2.5, RankFilters.MAX);
+				fpLoG.copyBits(bpH, 0, 0, Blitter.MULTIPLY);
+			}
+
+			// Subtract background first, if needed
+			if (backgroundRadius > 0) {
+				ImageProcessor ipBackground = workspace.copyOf(SLOT_BACKGROUND, fpLoG);
+				bpBackgroundMask = limitedOpeningByReconstruction(fpLoG, ipBackground, backgroundRadius, maxBackground);
+				fpLoG.copyBits(ipBackground, 0, 0, Blitter.SUBTRACT);
+				ipToMeasure = workspace.copyOf(SLOT_MEASURE, fpLoG);
+			} else {
+				ipToMeasure = fpDetection;
+			}
+
+			// Apply (approximation of) Laplacian of Gaussian filter
+			filters.gaussian(fpLoG, sigma);
+			filters.laplacian(fpLoG);
+
+			// Threshold the main LoG image & find the watershed regions
+			bpLoG = seedStage.threshold(fpLoG);
+			fpLoG.setRoi(roi);
+
+			// Keep the labels - the watershed regions are measured directly, without tracing their ROIs
+			ipLabelsWatershed = seedStage.labelRegions(fpLoG);
+
+			if (Thread.currentThread().isInterrupted())
+				return;
+		}
+
+		if (bp == null)
+			bp = workspace.getByteProcessor(SLOT_BINARY, width, height);
+
+		// Measure all watershed regions in one pass
+		ipToMeasure.resetRoi();
+		ConnectedComponents.ComponentStatistics regionStats = ConnectedComponents.measure(ipLabelsWatershed, ipToMeasure);
+		ConnectedComponents.ComponentStatistics backgroundStats = bpBackgroundMask == null ? null : ConnectedComponents.measure(ipLabelsWatershed, bpBackgroundMask);
+		boolean[] keepRegion = new boolean[regionStats.getComponentCount() + 1];
+		for (int label = 1; label <= regionStats.getComponentCount(); label++) {
+			// Perform mean intensity check - skip if below threshold
+			if (!(regionStats.getMean(label) > threshold))
+				continue;
+			// Perform background intensity check, if required
+			if (backgroundStats != null && backgroundStats.getSum(label) > 0)
+				continue;
+			keepRegion[label] = true;
+		}
+
+		// Fill the regions to keep them
+		int[] regionLabels = regionStats.getLabels();
+		byte[] bpPixels = (byte[])bp.getPixels();
+		for (int i = 0; i < regionLabels.length; i++) {
+			if (keepRegion[regionLabels[i]])
+				bpPixels[i] = (byte)255;
+		}
+
+		if (Thread.currentThread().isInterrupted())
+			return;
+
+		// Create a new, updated binary image with the potential nucleus regions & (optionally) merge these
+		bp.setThreshold(127, Double.POSITIVE_INFINITY, ImageProcessor.NO_LUT_UPDATE);
+		SplitStage split = splitStage != null ? splitStage : mergeAll ? createMergeSplit(watershedPostProcess) : NO_SPLIT;
+		split.split(bp, bpLoG);
+		// TODO: Look at the better boundary clearing implemented in Fast_nucleus_counts
+		if (roi != null)
+			ROILabeling.clearOutside(bp, roi);
+
+		// Locate nucleus ROIs
+		bp.setThreshold(127, Double.POSITIVE_INFINITY, ImageProcessor.NO_LUT_UPDATE);
+
+		if (IJ.debugMode) {
+			IJTools.quickShowImage("Binary", bp.duplicate());
+		}
+
+		//----------------------------
+		// MINOR BOUNDARY REFINEMENT
+		// The idea is that Gaussian smoothing tends to cause the boundaries of 'thin' nuclei to be overestimated;
+		// this uses a smaller filter to correct instances where the boundary has moved by just one pixel
+		if (refineBoundary && sigma > 1.5) {
+			// The LoG image isn't needed anymore, so its buffer can be reused
+			FloatProcessor fpBoundaryCleanup = workspace.copyOf(SLOT_LOG, fpDetection);
+			filters.gaussian(fpBoundaryCleanup, 1);
+			filters.laplacian(fpBoundaryCleanup);
+			ByteProcessor bp2 = SimpleThresholding.thresholdAbove(fpBoundaryCleanup, 0f);
+			bp2.copyBits(bp, 0, 0, Blitter.MIN); // Remove everything not detected in bp
+			bp.filter(ByteProcessor.MIN);
+			bp.copyBits(bp2, 0, 0, Blitter.MAX);
+		}
+
+		//----------------------------
+
+		// Remove nuclei with areas outside the permitted range before tracing any ROIs;
+		// the nuclei are measured with their holes filled, as their ROIs are traced from the filled regions
+		if (minArea > 0 || maxArea > 0) {
+			ipToMeasure.resetRoi();
+			ByteProcessor bpFilled = (ByteProcessor)bp.duplicate();
+			FillHoles.fillHoles(bpFilled);
+			ConnectedComponents.ComponentStatistics nucleusStats = ConnectedComponents.label(bpFilled, ipToMeasure, false);
+			ConnectedComponents.filter(nucleusStats, (byte[])bpFilled.getPixels(), minArea, maxArea, threshold);
+			bp.copyBits(bpFilled, 0, 0, Blitter.MIN);
+		}
+
+		roisNuclei = ROILabeling.getFilledPolygonROIs(bp, Wand.FOUR_CONNECTED);
+
+		if (Thread.currentThread().isInterrupted())
+			return;
+
+
+		// Label nuclei
+		ShortProcessor ipLabels = workspace.getShortProcessor(SLOT_NUCLEI, width, height);
+		ROILabeling.labelROIs(ipLabels, roisNuclei);
+
+		// Optionally expand the nuclei to become cells, measuring everything in the same sweep if possible
+		ImageProcessor ipLabelsCells = null;
+		PolygonRoi[] roisCells = null;
+		CompartmentStatistics stats = null;
+		if (cellExpansion > 0) {
+			ExpansionStage expansion = expansionStage;
+			if (expansion == null)
+				expansion = filters == FilterBackend.Filters.IMAGEJ ? createDistanceExpansion(filters) : new LabelExpansion();
+			if (makeMeasurements && measurementStage == SINGLE_SWEEP && expansion instanceof MeasuringExpansionStage) {
+				stats = new CompartmentStatistics(channels, channelsCell, roisNuclei.size());
+				ipLabelsCells = ((MeasuringExpansionStage)expansion).expand(bp, ipLabels, cellExpansion, stats);
+			} else
+				ipLabelsCells = expansion.expand(bp, ipLabels, cellExpansion);
+			roisCells = ROILabeling.labelsToFilledROIs(ipLabelsCells, roisNuclei.size());
+		}
+
+		// Measure nuclei, cells & cytoplasm for all required channels
+		if (makeMeasurements && stats == null)
+			stats = measurementStage.measure(channels, channelsCell, ipLabels, ipLabelsCells, roisNuclei.size());
+
+		if (Thread.currentThread().isInterrupted())
+			return;
+
+
+		// Work out the measurement names once for the whole tile: the nucleus columns come first, followed by the cell columns
+		Calibration cal = pathImage.getImage().getCalibration();
+		List<String> names = new ArrayList<>();
+		int nNucleusShapes = 0;
+		int nCellShapes = 0;
+		if (makeMeasurements && !roisNuclei.isEmpty()) {
+			List<String> shapeNames = getShapeMeasurementNames(roisNuclei.get(0), fpDetection, cal, "Nucleus: ");
+			nNucleusShapes = shapeNames.size();
+			names.addAll(shapeNames);
+			names.addAll(MeasurementTable.getNames("Nucleus: ", channels.keySet(), NUCLEUS_STATISTICS));
+		}
+		int nNucleusColumns = names.size();
+		if (makeMeasurements && roisCells != null) {
+			for (PolygonRoi r : roisCells) {
+				if (r == null)
+					continue;
+				List<String> shapeNames = getShapeMeasurementNames(r, fpDetection, cal, "Cell: ");
+				nCellShapes = shapeNames.size();
+				names.addAll(shapeNames);
+				names.addAll(MeasurementTable.getNames("Cell: ", channelsCell.keySet(), CELL_STATISTICS));
+				names.addAll(MeasurementTable.getNames("Cytoplasm: ", channelsCell.keySet(), CELL_STATISTICS));
+				if (includeNuclei)
+					names.add("Nucleus/Cell area ratio");
+				break;
+			}
+		}
+		MeasurementTable table = new MeasurementTable(names, roisNuclei.size());
+
+		// Trace & measure nuclei
+		List<PolygonROI> nucleusROIs = new ArrayList<>(roisNuclei.size());
+		for (int i = 0; i < roisNuclei.size(); i++) {
+			PolygonRoi rOrig = roisNuclei.get(i);
+
+			PolygonRoi r = rOrig;
+			if (smoothBoundaries)
+				r = new PolygonRoi(rOrig.getInterpolatedPolygon(Math.min(2.5, rOrig.getNCoordinates()*0.1), true), Roi.POLYGON);
+
+			PolygonROI pathROI = ROIConverterIJ.convertToPolygonROI(r, cal, pathImage.getDownsampleFactor(), 0, z, t);
+
+			if (smoothBoundaries) {
+				pathROI = ShapeSimplifier.simplifyPolygon(pathROI, pathImage.getDownsampleFactor()/4.0);
+			}
+			nucleusROIs.add(pathROI);
+
+			if (makeMeasurements) {
+				MeasurementList shapeList = MeasurementListFactory.createMeasurementList(nNucleusShapes, MeasurementList.TYPE.FLOAT);
+				ObjectMeasurements.addShapeStatistics(shapeList, r, fpDetection, cal, "Nucleus: ");
+				table.set(i, 0, shapeList);
+
+				int col = nNucleusShapes;
+				for (int c = 0; c < channels.size(); c++) {
+					table.set(i, col++, stats.getMean(Compartment.NUCLEUS, c, i));
+					table.set(i, col++, stats.getSum(Compartment.NUCLEUS, c, i));
+					table.set(i, col++, stats.getStdDev(Compartment.NUCLEUS, c, i));
+					table.set(i, col++, stats.getMax(Compartment.NUCLEUS, c, i));
+					table.set(i, col++, stats.getMin(Compartment.NUCLEUS, c, i));
+					table.set(i, col++, stats.getRange(Compartment.NUCLEUS, c, i));
+				}
+			}
+		}
+
+		if (Thread.currentThread().isInterrupted())
+			return;
+
+		// Without cells, the nuclei are the detections
+		if (roisCells == null) {
+			for (int i = 0; i < nucleusROIs.size(); i++)
+				pathObjects.add(new PathDetectionObject(nucleusROIs.get(i), null, table.createMeasurementList(i, 0, nNucleusColumns)));
+			lastRunCompleted = true;
+			return;
+		}
+
+		// Trace & measure cells
+		PolygonROI[] cellROIs = new PolygonROI[roisCells.length];
+		for (int i = 0; i < roisCells.length; i++) {
+			PolygonRoi r = roisCells[i];
+			if (r == null)
+				continue;
+			if (smoothBoundaries)
+				r = new PolygonRoi(r.getInterpolatedPolygon(Math.min(2.5, r.getNCoordinates()*0.1), false), Roi.POLYGON); // TODO: Check this smoothing - it can be troublesome, causing nuclei to be outside cells
+
+			PolygonROI pathROI = ROIConverterIJ.convertToPolygonROI(r, cal, pathImage.getDownsampleFactor(), 0, z, t);
+			if (smoothBoundaries)
+				pathROI = ShapeSimplifier.simplifyPolygon(pathROI, pathImage.getDownsampleFactor()/4.0);
+			cellROIs[i] = pathROI;
+
+			if (makeMeasurements) {
+				// Add cell shape measurements
+				MeasurementList shapeList = MeasurementListFactory.createMeasurementList(nCellShapes, MeasurementList.TYPE.FLOAT);
+				ObjectMeasurements.addShapeStatistics(shapeList, r, fpDetection, cal, "Cell: ");
+				table.set(i, nNucleusColumns, shapeList);
+
+				// Add cell & cytoplasm measurements
+				int col = nNucleusColumns + nCellShapes;
+				for (Compartment compartment : new Compartment[] {Compartment.CELL, Compartment.CYTOPLASM}) {
+					for (int c = 0; c < channelsCell.size(); c++) {
+						table.set(i, col++, stats.getMean(compartment, c, i));
+						table.set(i, col++, stats.getStdDev(compartment, c, i));
+						table.set(i, col++, stats.getMax(compartment, c, i));
+						table.set(i, col++, stats.getMin(compartment, c, i));
+					}
+				}
+
+				// Add nucleus area ratio, if available
+				if (includeNuclei)
+					table.set(i, col, Math.min(nucleusROIs.get(i).getArea() / pathROI.getArea(), 1.0));
+			}
+		}
+
+		// Create the cell objects, either with or without the nucleus measurements
+		int fromColumn = includeNuclei ? 0 : nNucleusColumns;
+		for (int i = 0; i < cellROIs.length; i++) {
+			if (cellROIs[i] == null)
+				continue;
+			PolygonROI nucleusROI = includeNuclei ? nucleusROIs.get(i) : null;
+			pathObjects.add(new PathCellObject(cellROIs[i], nucleusROI, null, table.createMeasurementList(i, fromColumn, table.getColumnCount())));
+		}
+
+		lastRunCompleted = true;
+	}
+
+
+	/**
+	 * Get the names of the shape measurements ImageJ adds for a ROI; these only depend on the calibration,
+	 * so they are the same for all objects of a tile.
+	 * @param r
+	 * @param ip
+	 * @param cal
+	 * @param prefix
+	 * @return
+	 */
+	private static List<String> getShapeMeasurementNames(final PolygonRoi r, final ImageProcessor ip, final Calibration cal, final String prefix) {
+		MeasurementList measurementList = MeasurementListFactory.createMeasurementList(10, MeasurementList.TYPE.FLOAT);
+		ObjectMeasurements.addShapeStatistics(measurementList, r, ip, cal, prefix);
+		return measurementList.getMeasurementNames();
+	}
+
+
+	public List<PathObject> getPathObjects() {
+		return pathObjects;
+	}
+
+
+	public void runDetection(double backgroundRadius, double maxBackground, double medianRadius, double sigma, double threshold, double minArea, double maxArea, boolean mergeAll, boolean watershedPostProcess, boolean excludeDAB, double cellExpansion, boolean smoothBoundaries, boolean includeNuclei, boolean makeMeasurements, int z, int t) {
+
+		boolean updateNucleusROIs = ipLabelsWatershed == null || bpLoG == null || !TileWorkspace.get().isOwnedBy(this);
+		updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.medianRadius != medianRadius;
+		this.medianRadius = medianRadius;
+
+		updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.t != t || this.z != z;
+		this.z = z;
+		this.t = t;
+
+		updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.backgroundRadius != backgroundRadius;
+		this.backgroundRadius = backgroundRadius;
+
+		updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.sigma != sigma;
+		this.sigma = sigma;
+
+		updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.excludeDAB != excludeDAB;
+		this.excludeDAB = excludeDAB;
+
+		boolean updateAnything = updateNucleusROIs || !lastRunCompleted;
+
+		updateAnything = updateAnything ? updateAnything : this.minArea != minArea;
+		this.minArea = minArea;
+
+		updateAnything = updateAnything ? updateAnything : this.maxArea != maxArea;
+		this.maxArea = maxArea;
+
+		updateAnything = updateAnything ? updateAnything : this.maxBackground != maxBackground;
+		this.maxBackground = maxBackground;
+
+		updateAnything = updateAnything ? updateAnything : this.threshold != threshold;
+		this.threshold = threshold;
+
+		updateAnything = updateAnything ? updateAnything : this.mergeAll != mergeAll;
+		this.mergeAll = mergeAll;
+
+		updateAnything = updateAnything ? updateAnything : this.watershedPostProcess != watershedPostProcess;
+		this.watershedPostProcess = watershedPostProcess;
+
+		updateAnything = updateAnything ? updateAnything : this.cellExpansion != cellExpansion;
+		this.cellExpansion = cellExpansion;
+
+		updateAnything = updateAnything ? updateAnything : this.smoothBoundaries != smoothBoundaries;
+		this.smoothBoundaries = smoothBoundaries;
+
+		updateAnything = updateAnything ? updateAnything : this.includeNuclei != includeNuclei;
+		this.includeNuclei = includeNuclei;
+
+		updateAnything = updateAnything ? updateAnything : this.makeMeasurements != makeMeasurements;
+		this.makeMeasurements = makeMeasurements;
+
+		doDetection(updateNucleusROIs);
+	}
+
+}
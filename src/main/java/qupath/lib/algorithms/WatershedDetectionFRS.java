@@ -43,7 +43,6 @@ import qupath.lib.color.ColorDeconvolutionHelper;
 import qupath.lib.color.ColorDeconvolutionStains;
 import qupath.lib.color.StainVector;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.geom.Point2;
 import qupath.lib.ij_opencv.ImagePlusToMatConverter;
 import qupath.lib.ij_opencv.MatToImagePlusConverter;
 import qupath.lib.images.ImageData;
@@ -58,6 +57,7 @@ import qupath.lib.objects.helpers.PathObjectTools;
 import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.plugins.AbstractTileableDetectionPlugin;
 import qupath.lib.plugins.ObjectDetector;
+import qupath.lib.plugins.parameters.DoubleParameter;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.PolygonROI;
@@ -67,7 +67,7 @@ import qupath.lib.roi.interfaces.ROI;
 import qupath.opencv.processing.OpenCVTools;
 import qupath.opencv.processing.ProcessingCV;
 
-public class WatershedDetectionFRS extends AbstractTileableDetectionPlugin <BufferedImage> {
+public class WatershedDetectionFRS extends AbstractTileableDetectionPlugin <BufferedImage> implements DetectionPreviewSupport {
 	private static final Logger logger = LoggerFactory.getLogger(WatershedDetectionFRS.class);
 			
 	transient static OpenCvDetector detector;
@@ -195,7 +195,7 @@ public class WatershedDetectionFRS extends AbstractTileableDetectionPlugin <Buff
 			Imgproc.GaussianBlur(mat, mat, new Size(gaussianWidth, gaussianWidth), gaussianSigma);
 			
 			// Attempt FRS transform
-			int [] radii = {6};
+			int [] radii = {Math.max(1, (int)(params.getDoubleParameterValue("frsRadius") + .5))};
 			Mat frs = new Mat();
 			try {
 				frs = FastRadialSymmetry.doTransform(mat, radii, 2, 1, FastRadialSymmetry.Mode.BRIGHT);
@@ -267,13 +267,15 @@ public class WatershedDetectionFRS extends AbstractTileableDetectionPlugin <Buff
 			Imgproc.dilate(matBinary, matBinary, Imgproc.getStructuringElement(Imgproc.CV_SHAPE_RECT, new Size(3, 3)));
 			Core.min(matBinary, frs, matBinary);
 			
-			OpenCVTools.fillSmallHoles(matBinary, minArea*4);
+			FillHoles.fillSmallHoles(matBinary, minArea*4);
 			
 			// Create path objects from contours		
 			contours = new ArrayList<>();
 			Mat hierarchy = new Mat();
 			Imgproc.findContours(matBinary, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-			ArrayList<Point2> points = new ArrayList<>();
+			
+			// Rasterise the ROI once, so that testing whether an object lies inside it is a single lookup
+			ROIMask roiMask = pathROI instanceof RectangleROI ? null : ROIMask.create(pathROI, downsample, x, y, w, h);
 			
 			// Create label image
 			matLabels.setTo(new Scalar(0));
@@ -288,20 +290,10 @@ public class WatershedDetectionFRS extends AbstractTileableDetectionPlugin <Buff
 				if (contour.size().height <= 2)
 					continue;
 				
-				// Simplify the contour slightly
-				MatOfPoint2f contour2f = new MatOfPoint2f();
-				contour2f.fromArray(contour.toArray());
-				MatOfPoint2f contourApprox = new MatOfPoint2f();
-				Imgproc.approxPolyDP(contour2f, contourApprox, 0.5, true);
-				contour2f = contourApprox;
-				
-				// Create a polygon ROI
-		        points.clear();
-		        for (org.opencv.core.Point p : contour2f.toArray())
-		        	points.add(new Point2(p.x * downsample + x, p.y * downsample + y));
+				// Create a polygon ROI, simplifying the contour slightly
+		        PolygonROI pathPolygon = ROIConverterCV.convertToPolygonROI(contour, 0.5, false, downsample, x, y, -1, pathROI.getZ(), pathROI.getT());
 		        	        
 		        // Add new polygon if it is contained within the ROI & measurable
-		        PolygonROI pathPolygon = new PolygonROI(points);
 		        if (!(pathPolygon.getArea() >= minArea)) {
 		        	// Don't do a simpler < because we also want to discard the region if the area couldn't be measured (although this is unlikely)
 		        	continue;
@@ -309,7 +301,7 @@ public class WatershedDetectionFRS extends AbstractTileableDetectionPlugin <Buff
 		        
 	//	        logger.info("Area comparison: " + Imgproc.contourArea(contour) + ",\t" + (pathPolygon.getArea() / downsample / downsample));
 	//	        Mat matSmall = new Mat();
-		        if (pathROI instanceof RectangleROI || PathObjectTools.containsROI(pathROI, pathPolygon)) {
+		        if (roiMask == null || roiMask.contains(pathPolygon.getCentroidX(), pathPolygon.getCentroidY())) {
 		        	MeasurementList measurementList = MeasurementListFactory.createMeasurementList(20, MeasurementList.TYPE.FLOAT);
 		        	PathObject pathObject = new PathDetectionObject(pathPolygon, null, measurementList);
 		        	
@@ -319,7 +311,10 @@ public class WatershedDetectionFRS extends AbstractTileableDetectionPlugin <Buff
 		        	measurementList.addMeasurement("Solidity", pathPolygon.getSolidity());
 		        	
 		        	// I am making an assumption regarding square pixels here...
+		        	MatOfPoint2f contour2f = new MatOfPoint2f();
+		        	contour.convertTo(contour2f, CvType.CV_32FC2);
 		        	RotatedRect rrect = Imgproc.minAreaRect(contour2f);
+		        	contour2f.release();
 		        	measurementList.addMeasurement("Min axis", Math.min(rrect.size.width, rrect.size.height) * downsample);
 		        	measurementList.addMeasurement("Max axis", Math.max(rrect.size.width, rrect.size.height) * downsample);
 		        		        	
@@ -403,6 +398,20 @@ public class WatershedDetectionFRS extends AbstractTileableDetectionPlugin <Buff
 		return overlap;
 	}
 
+	@Override
+	public ParameterList getPreviewParameters(ImageData<BufferedImage> imageData, ParameterList params, double downsample) {
+		ParameterList previewParams = DetectionPreviewSupport.scalePixelSize(imageData, params, "preferredMicrons", downsample);
+		// The FRS radius is given in pixels
+		double scale = DetectionPreviewSupport.getPixelScale(imageData, params, previewParams, "preferredMicrons");
+		((DoubleParameter)previewParams.getParameters().get("frsRadius")).setValue(params.getDoubleParameterValue("frsRadius") / scale);
+		return previewParams;
+	}
+
+	@Override
+	public ObjectDetector<BufferedImage> createPreviewDetector(ImageData<BufferedImage> imageData, ParameterList params) {
+		return new OpenCvDetector();
+	}
+
 	@Override
 	public ParameterList getDefaultParameterList(ImageData<BufferedImage> imageData) {
 		
@@ -440,6 +449,8 @@ public class WatershedDetectionFRS extends AbstractTileableDetectionPlugin <Buff
 		params.addBooleanParameter("simplifyShapes", "Simplify object contours", true);
 		params.addBooleanParameter("adaptiveThreshold", "Adaptive thresholding", true);		
 		params.addIntParameter("adaptiveBlockSize", "Adaptive threshold block size", 35);
+		params.addDoubleParameter("frsRadius", "Fast radial symmetry radius", 6, "px");
+		params.setHiddenParameters(true, "frsRadius");
 		
 		return params;
 	}
@@ -0,0 +1,201 @@
+package qupath.lib.scripting;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.geom.Point2;
+import qupath.lib.images.ImageData;
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Cache of the detections in a single channel, and of the overlapping objects between two channels,
+ * so that changing the parameters of one channel only requires that channel to be detected (and compared
+ * with the others) again.
+ *
+ * Detections are keyed by the image, the parent ROI, the channel and the detection parameters; only the
+ * most recently used entries are kept, up to a maximum number of objects in total.
+ * The cache never hands out the objects it stores: these are kept in a compact form (ROIs, class & measurement
+ * values), and every lookup creates new objects, so that objects added to a hierarchy (and changed there, e.g. when
+ * classified) never end up in the cache.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class ChannelResultCache {
+
+	private static final int MAX_OBJECTS = 500_000;
+	private static final int MAX_OVERLAPS = 64;
+
+	private static final Map<String, CachedObject[]> results = new LinkedHashMap<>(16, 0.75f, true);
+	private static final Map<String, int[]> overlaps = createLRUMap(MAX_OVERLAPS);
+	private static int nObjects = 0;
+
+	private static <T> Map<String, T> createLRUMap(final int maxSize) {
+		return new LinkedHashMap<String, T>(maxSize, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Create the key for the detections in one channel.
+	 * @param imageData
+	 * @param roi Parent ROI of the detections
+	 * @param channel
+	 * @param arg Detection parameters, as passed to the plugin
+	 * @return
+	 */
+	public static String createKey(final ImageData<BufferedImage> imageData, final ROI roi, final int channel, final String arg) {
+		// Describe the ROI by its type, plane & vertices
+		int roiHash = 1;
+		for (Point2 p : roi.getPolygonPoints()) {
+			roiHash = 31 * roiHash + Double.hashCode(p.getX());
+			roiHash = 31 * roiHash + Double.hashCode(p.getY());
+		}
+		String roiKey = String.format("%s[%s,%s,%s,%s,z=%d,t=%d,%08x]", roi.getClass().getSimpleName(),
+				roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight(), roi.getZ(), roi.getT(), roiHash);
+
+		// Sort the parameters, so that the key doesn't depend on the order in which they were written
+		Map<String, String> params = arg == null ? Collections.emptyMap() : new TreeMap<>(GeneralTools.parseArgStringValues(arg));
+
+		return imageData.getServerPath() + "|" + roiKey + "|" + channel + "|" + params;
+	}
+
+	/**
+	 * Get the cached detections for a key.
+	 * @param key
+	 * @return The detections, or null if these aren't cached
+	 */
+	public static synchronized List<PathObject> getDetections(final String key) {
+		CachedObject[] cached = results.get(key);
+		if (cached == null)
+			return null;
+		List<PathObject> pathObjects = new ArrayList<>(cached.length);
+		for (CachedObject object : cached)
+			pathObjects.add(object.createObject());
+		return Collections.unmodifiableList(pathObjects);
+	}
+
+	/**
+	 * Cache the detections for a key, removing the least recently used detections if there are too many objects.
+	 * The detections themselves are not stored, and can be freely used afterwards.
+	 * @param key
+	 * @param pathObjects
+	 * @return An unmodifiable copy of the list of detections
+	 */
+	public static synchronized List<PathObject> putDetections(final String key, final List<PathObject> pathObjects) {
+		CachedObject[] previous = results.remove(key);
+		if (previous != null)
+			nObjects -= previous.length;
+		if (pathObjects.size() <= MAX_OBJECTS) {
+			CachedObject[] cached = new CachedObject[pathObjects.size()];
+			String[] names = null;
+			for (int i = 0; i < cached.length; i++) {
+				cached[i] = new CachedObject(pathObjects.get(i), names);
+				names = cached[i].names;
+			}
+			results.put(key, cached);
+			nObjects += cached.length;
+
+			// Remove the least recently used entries (never the new one) until the objects fit
+			Iterator<CachedObject[]> iter = results.values().iterator();
+			while (nObjects > MAX_OBJECTS && iter.hasNext()) {
+				CachedObject[] eldest = iter.next();
+				if (eldest == cached)
+					break;
+				nObjects -= eldest.length;
+				iter.remove();
+			}
+		}
+		return Collections.unmodifiableList(new ArrayList<>(pathObjects));
+	}
+
+	/**
+	 * Get the cached overlapping pairs for a key.
+	 * @param key
+	 * @return The overlapping pairs, or null if these aren't cached
+	 */
+	public static synchronized int[] getOverlappingPairs(final String key) {
+		return overlaps.get(key);
+	}
+
+	/**
+	 * Cache the overlapping pairs for a key.
+	 * @param key
+	 * @param pairs
+	 */
+	public static synchronized void putOverlappingPairs(final String key, final int[] pairs) {
+		overlaps.put(key, pairs);
+	}
+
+	/**
+	 * Remove all cached results.
+	 */
+	public static synchronized void clear() {
+		results.clear();
+		overlaps.clear();
+		nObjects = 0;
+	}
+
+	/**
+	 * A detection, reduced to its ROIs, class & measurements.
+	 */
+	private static class CachedObject {
+
+		private final ROI roi;
+		private final ROI nucleusROI;
+		private final boolean isCell;
+		private final PathClass pathClass;
+		private final String[] names;
+		private final float[] values;
+
+		/**
+		 * @param pathObject
+		 * @param previousNames Measurement names of the previous object, which are shared if they are the same
+		 */
+		CachedObject(final PathObject pathObject, final String[] previousNames) {
+			roi = pathObject.getROI();
+			isCell = pathObject instanceof PathCellObject;
+			nucleusROI = isCell ? ((PathCellObject)pathObject).getNucleusROI() : null;
+			pathClass = pathObject.getPathClass();
+			MeasurementList measurementList = pathObject.getMeasurementList();
+			int n = measurementList.size();
+			String[] names = new String[n];
+			values = new float[n];
+			for (int i = 0; i < n; i++) {
+				names[i] = measurementList.getMeasurementName(i);
+				values[i] = (float)measurementList.getMeasurementValue(i);
+			}
+			this.names = Arrays.equals(names, previousNames) ? previousNames : names;
+		}
+
+		PathObject createObject() {
+			MeasurementList measurementList = MeasurementListFactory.createMeasurementList(names.length, MeasurementList.TYPE.FLOAT);
+			for (int i = 0; i < names.length; i++)
+				measurementList.addMeasurement(names[i], values[i]);
+			measurementList.closeList();
+			if (isCell)
+				return new PathCellObject(roi, nucleusROI, pathClass, measurementList);
+			return new PathDetectionObject(roi, pathClass, measurementList);
+		}
+
+	}
+
+}
@@ -5,14 +5,13 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.algorithms.ShapeFeatures;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.commands.interfaces.PathCommand;
 import qupath.lib.measurements.MeasurementList;
-import qupath.lib.measurements.MeasurementListFactory;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
 import qupath.lib.roi.PathROIToolsAwt;
 import qupath.lib.roi.PathROIToolsAwt.CombineOp;
-import qupath.lib.roi.PolygonROI;
 import qupath.lib.roi.interfaces.PathShape;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.lib.objects.PathAnnotationObject;
@@ -66,14 +65,10 @@ public class CreateCellFromAnnotation implements PathCommand {
 			
 			// Get properties
 			ROI roi = p.getROI();
-			PolygonROI pathPolygon = new PolygonROI(roi.getPolygonPoints());
 					
-			// Get some very simple measurements
-			MeasurementList measurementList = MeasurementListFactory.createMeasurementList(20, MeasurementList.TYPE.FLOAT);
-        	measurementList.addMeasurement("Nucleus: Area", pathPolygon.getArea());
-        	measurementList.addMeasurement("Nucleus: Perimeter", pathPolygon.getPerimeter());
-        	measurementList.addMeasurement("Nucleus: Circularity", pathPolygon.getCircularity());
-        	measurementList.addMeasurement("Nucleus: Solidity", pathPolygon.getSolidity());
+			// Get the shape measurements in a single pass
+			MeasurementList measurementList = ShapeFeatures.measure(roi).createMeasurementList("Nucleus: ", 0);
+			measurementList.closeList();
 			
 			// Apply properties to new PathObject
 			PathObject newObject = new PathDetectionObject(roi, null, measurementList);
@@ -0,0 +1,279 @@
+package qupath.lib.scripting;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.layout.BorderPane;
+import javafx.stage.Stage;
+import qupath.lib.algorithms.DetectionPreviewSupport;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.commands.interfaces.PathCommand;
+import qupath.lib.gui.helpers.DisplayHelpers;
+import qupath.lib.gui.helpers.dialogs.ParameterPanelFX;
+import qupath.lib.gui.viewer.QuPathViewer;
+import qupath.lib.gui.viewer.QuPathViewerListener;
+import qupath.lib.gui.viewer.overlays.AbstractOverlay;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.parameters.ParameterChangeListener;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.RectangleROI;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Command to tune the parameters of a detection plugin on a quick preview.
+ *
+ * Whenever a parameter changes (or the viewer is moved), the detection runs on the region visible in the viewer,
+ * read at the downsample of the viewer; the detections are drawn in a transient overlay rather than being added to
+ * the hierarchy. Previews run one at a time in a background thread, and a running preview is cancelled as soon as
+ * a new one is requested. The parameters are those of the plugin itself, so a full run afterwards is unaffected.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class DetectionPreviewCommand implements PathCommand {
+
+	private static final Logger logger = LoggerFactory.getLogger(DetectionPreviewCommand.class);
+
+	/**
+	 * Largest width & height of the region of a preview at full resolution, i.e. for images without a pixel size.
+	 */
+	private static final int MAX_FULL_RESOLUTION_SIZE = 2048;
+
+	private final QuPathGUI qupath;
+	private final String name;
+	private final Supplier<? extends DetectionPreviewSupport> pluginSupplier;
+	private Stage dialog;
+	private PreviewPanel panel;
+
+	/**
+	 * @param qupath
+	 * @param name Name of the detection, used as the title of the dialog
+	 * @param pluginSupplier Creates the plugin whose detection is previewed
+	 */
+	public DetectionPreviewCommand(final QuPathGUI qupath, final String name, final Supplier<? extends DetectionPreviewSupport> pluginSupplier) {
+		this.qupath = qupath;
+		this.name = name;
+		this.pluginSupplier = pluginSupplier;
+	}
+
+	@Override
+	public void run() {
+		if (dialog != null) {
+			dialog.toFront();
+			return;
+		}
+		QuPathViewer viewer = qupath.getViewer();
+		if (viewer == null || viewer.getImageData() == null) {
+			DisplayHelpers.showErrorMessage(name + " preview", "No image open!");
+			return;
+		}
+
+		panel = new PreviewPanel(viewer, pluginSupplier.get());
+		dialog = new Stage();
+		dialog.initOwner(qupath.getStage());
+		dialog.setTitle(name + " preview");
+		ScrollPane scrollPane = new ScrollPane(panel.getPane());
+		scrollPane.setFitToWidth(true);
+		dialog.setScene(new Scene(scrollPane));
+		dialog.setOnCloseRequest(e -> {
+			panel.close();
+			panel = null;
+			dialog = null;
+		});
+		dialog.show();
+		panel.requestPreview();
+	}
+
+
+	private static class PreviewPanel implements ParameterChangeListener, QuPathViewerListener {
+
+		private final QuPathViewer viewer;
+		private final ImageData<BufferedImage> imageData;
+		private final DetectionPreviewSupport plugin;
+		private final ParameterList params;
+		private final PreviewOverlay overlay = new PreviewOverlay();
+		private final ExecutorService pool = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "detection-preview");
+			thread.setDaemon(true);
+			return thread;
+		});
+		private final BorderPane pane = new BorderPane();
+		private final Label labelStatus = new Label();
+
+		private Future<?> running;
+		private int nRequested = 0;
+
+		PreviewPanel(final QuPathViewer viewer, final DetectionPreviewSupport plugin) {
+			this.viewer = viewer;
+			this.imageData = viewer.getImageData();
+			this.plugin = plugin;
+			this.params = plugin.getDefaultParameterList(imageData);
+
+			ParameterPanelFX paramPanel = new ParameterPanelFX(params);
+			paramPanel.addParameterChangeListener(this);
+			pane.setCenter(paramPanel.getPane());
+			pane.setBottom(labelStatus);
+
+			viewer.addOverlay(overlay);
+			viewer.addViewerListener(this);
+		}
+
+		BorderPane getPane() {
+			return pane;
+		}
+
+		/**
+		 * Run a preview of the visible region, cancelling the previous one; must be called on the FX thread.
+		 */
+		void requestPreview() {
+			if (running != null)
+				running.cancel(true);
+
+			// Read the visible region at the resolution it is displayed at
+			ImageServer<BufferedImage> server = imageData.getServer();
+			Shape shape = viewer.getDisplayedRegionShape();
+			if (shape == null)
+				return;
+			Rectangle bounds = shape.getBounds().intersection(new Rectangle(0, 0, server.getWidth(), server.getHeight()));
+			if (bounds.isEmpty())
+				return;
+			double downsample = Math.max(1, viewer.getDownsampleFactor());
+			if (!server.hasPixelSizeMicrons()) {
+				// Without a pixel size, the detection can't be downsampled: preview the centre of the view instead
+				int w = Math.min(bounds.width, MAX_FULL_RESOLUTION_SIZE);
+				int h = Math.min(bounds.height, MAX_FULL_RESOLUTION_SIZE);
+				bounds = new Rectangle(bounds.x + (bounds.width - w) / 2, bounds.y + (bounds.height - h) / 2, w, h);
+			}
+			ROI region = new RectangleROI(bounds.x, bounds.y, bounds.width, bounds.height, -1, viewer.getZPosition(), viewer.getTPosition());
+			ParameterList previewParams = plugin.getPreviewParameters(imageData, params, downsample);
+
+			int request = ++nRequested;
+			labelStatus.setText("Detecting...");
+			running = pool.submit(() -> {
+				long startTime = System.currentTimeMillis();
+				try {
+					Collection<PathObject> detections = plugin.createPreviewDetector(imageData, previewParams).runDetection(imageData, previewParams, region);
+					if (Thread.currentThread().isInterrupted())
+						return;
+					List<PathObject> pathObjects = detections == null ? Collections.emptyList() : new ArrayList<>(detections);
+					long duration = System.currentTimeMillis() - startTime;
+					Platform.runLater(() -> {
+						// Only show the latest preview
+						if (request != nRequested)
+							return;
+						overlay.setDetections(pathObjects);
+						labelStatus.setText(String.format("%d detections (%d ms)", pathObjects.size(), duration));
+						viewer.repaint();
+					});
+				} catch (Exception e) {
+					if (Thread.currentThread().isInterrupted())
+						return;
+					logger.error("Detection preview failed", e);
+					Platform.runLater(() -> {
+						if (request == nRequested)
+							labelStatus.setText("Preview failed: " + e.getLocalizedMessage());
+					});
+				}
+			});
+		}
+
+		/**
+		 * Cancel any running preview & remove the overlay.
+		 */
+		void close() {
+			pool.shutdownNow();
+			viewer.removeViewerListener(this);
+			viewer.removeOverlay(overlay);
+			viewer.repaint();
+		}
+
+		@Override
+		public void parameterChanged(ParameterList parameterList, String key, boolean isAdjusting) {
+			if (!isAdjusting)
+				requestPreview();
+		}
+
+		@Override
+		public void imageDataChanged(QuPathViewer viewer, ImageData<BufferedImage> imageDataOld, ImageData<BufferedImage> imageDataNew) {
+			// The parameters belong to the previous image
+			overlay.setDetections(Collections.emptyList());
+			if (running != null)
+				running.cancel(true);
+		}
+
+		@Override
+		public void visibleRegionChanged(QuPathViewer viewer, Shape shape) {
+			if (viewer.getImageData() == imageData)
+				requestPreview();
+		}
+
+		@Override
+		public void selectedObjectChanged(QuPathViewer viewer, PathObject pathObjectSelected) {}
+
+		@Override
+		public void viewerClosed(QuPathViewer viewer) {
+			if (running != null)
+				running.cancel(true);
+		}
+
+	}
+
+
+	/**
+	 * Overlay showing the outlines of the preview detections, without adding them to the hierarchy.
+	 */
+	private static class PreviewOverlay extends AbstractOverlay {
+
+		private static final Color COLOR = new Color(255, 200, 0);
+
+		private volatile List<PathObject> detections = Collections.emptyList();
+
+		void setDetections(final List<PathObject> detections) {
+			this.detections = detections;
+		}
+
+		@Override
+		public void paintOverlay(Graphics2D g2d, ImageRegion imageRegion, double downsampleFactor, ImageObserver observer, boolean paintCompletely) {
+			List<PathObject> detections = this.detections;
+			if (detections.isEmpty())
+				return;
+			Rectangle bounds = new Rectangle(imageRegion.getX(), imageRegion.getY(), imageRegion.getWidth(), imageRegion.getHeight());
+			Graphics2D g = (Graphics2D)g2d.create();
+			g.setColor(COLOR);
+			g.setStroke(new BasicStroke((float)downsampleFactor));
+			for (PathObject pathObject : detections) {
+				ROI roi = pathObject.getROI();
+				if (roi == null || !bounds.intersects(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight()))
+					continue;
+				g.draw(PathROIToolsAwt.getShape(roi));
+			}
+			g.dispose();
+		}
+
+	}
+
+}
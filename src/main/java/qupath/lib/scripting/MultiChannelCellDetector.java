@@ -0,0 +1,115 @@
+package qupath.lib.scripting;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ij.ImagePlus;
+import qupath.imagej.objects.PathImagePlus;
+import qupath.lib.algorithms.TileSeamResolver;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.PathImage;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ServerTools;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.regions.ImmutableDimension;
+import qupath.lib.roi.PathROIToolsAwt;
+import qupath.lib.roi.interfaces.ROI;
+import qupath.lib.scripting.WatershedCellDetection2.CellDetector;
+import qupath.lib.scripting.WatershedCellDetection2.TileChannels;
+
+/**
+ * Watershed cell detection in several channels, reading every tile of the image only once.
+ *
+ * The region is split into tiles as by AbstractTileableDetectionPlugin, and every tile is read at the finest pixel
+ * size requested by any of the channels; the channels of a tile are extracted once, and the detection for every
+ * channel then runs on these shared channels (and measures all of them), rather than every channel reading and
+ * converting the tile again. Tiles are processed one after the other, so only one tile is held in memory, and the
+ * duplicates on the tile seams are removed per channel with a TileSeamResolver.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class MultiChannelCellDetector {
+
+	private static final Logger logger = LoggerFactory.getLogger(MultiChannelCellDetector.class);
+
+	/**
+	 * Preferred & maximum width and height of a tile, in pixels at the pixel size of the detection;
+	 * the same as AbstractTileableDetectionPlugin.
+	 */
+	private static final int PREFERRED_TILE_SIZE = 2000;
+	static final int MAX_TILE_SIZE = 3000;
+
+	/**
+	 * Detect cells in multiple channels of a region.
+	 *
+	 * @param imageData
+	 * @param pathROI Region in which to detect
+	 * @param paramsMap Parameters of the WatershedCellDetection2 plugin for every channel, mapped to the channel number
+	 * @return The detections per channel, in the same order as the parameters
+	 * @throws InterruptedException If the thread was interrupted between two tiles or channels
+	 */
+	public static Map<Integer, List<PathObject>> detect(final ImageData<BufferedImage> imageData, final ROI pathROI, final Map<Integer, ParameterList> paramsMap) throws InterruptedException {
+		Map<Integer, List<PathObject>> results = new LinkedHashMap<>();
+		if (paramsMap.isEmpty())
+			return results;
+
+		// Read every tile once, at the finest resolution requested; the tiles overlap by the largest overlap needed
+		ImageServer<BufferedImage> server = imageData.getServer();
+		WatershedCellDetection2 plugin = new WatershedCellDetection2();
+		double pixelSize = Double.NaN;
+		int overlap = 0;
+		ParameterList firstParams = null;
+		for (ParameterList params : paramsMap.values()) {
+			double requested = CellDetector.getPreferredPixelSizeMicrons(imageData, params);
+			if (firstParams == null || requested < pixelSize)
+				pixelSize = requested;
+			if (firstParams == null)
+				firstParams = params;
+			overlap = Math.max(overlap, plugin.getTileOverlap(imageData, params));
+		}
+		double downsample = ServerTools.getDownsampleFactor(server, pixelSize, true);
+		int preferredSize = (int)(PREFERRED_TILE_SIZE * downsample);
+		int maxSize = (int)(MAX_TILE_SIZE * downsample);
+		Collection<? extends ROI> tileROIs = PathROIToolsAwt.computeTiledROIs(imageData, new PathAnnotationObject(pathROI),
+				new ImmutableDimension(preferredSize, preferredSize), new ImmutableDimension(maxSize, maxSize), false, overlap);
+		logger.trace("Multi-channel cell detection with downsample {} in {} tiles", downsample, tileROIs.size());
+
+		// Every channel removes its own duplicates on the seams
+		Map<Integer, TileSeamResolver> resolvers = new LinkedHashMap<>();
+		for (Integer channel : paramsMap.keySet()) {
+			TileSeamResolver resolver = new TileSeamResolver(2 * overlap);
+			for (ROI tileROI : tileROIs)
+				resolver.addTile(tileROI);
+			resolvers.put(channel, resolver);
+			results.put(channel, new ArrayList<>());
+		}
+
+		// Detect in all channels of every tile
+		for (ROI tileROI : tileROIs) {
+			if (Thread.currentThread().isInterrupted())
+				throw new InterruptedException("Multi-channel cell detection was interrupted");
+			PathImage<ImagePlus> pathImage = PathImagePlus.createPathImage(server, tileROI, downsample);
+			TileChannels tileChannels = new TileChannels(imageData, firstParams, tileROI, pathImage);
+			for (Map.Entry<Integer, ParameterList> entry : paramsMap.entrySet()) {
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedException("Multi-channel cell detection was interrupted");
+				List<PathObject> detected = CellDetector.detect(tileChannels, entry.getValue(), tileROI);
+				results.get(entry.getKey()).addAll(resolvers.get(entry.getKey()).resolve(tileROI, detected));
+			}
+		}
+		for (Map.Entry<Integer, List<PathObject>> entry : results.entrySet())
+			logger.info("Channel " + entry.getKey() + " : " + entry.getValue().size() + " detections.");
+		return results;
+	}
+
+}
@@ -15,7 +15,6 @@ import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.Scalar;
-import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,12 +23,14 @@ import ij.ImagePlus;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import qupath.imagej.objects.PathImagePlus;
+import qupath.lib.algorithms.DetectionPreviewSupport;
+import qupath.lib.algorithms.FillHoles;
+import qupath.lib.algorithms.ROIConverterCV;
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.classifiers.PathClassificationLabellingHelper;
 import qupath.lib.classifiers.PathClassifierTools;
 import qupath.lib.classifiers.PathObjectClassifier;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.geom.Point2;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.panels.PathAnnotationPanel;
 import qupath.lib.gui.panels.PathImageDetailsPanel;
@@ -57,7 +58,7 @@ import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.PolygonROI;
 import qupath.lib.roi.interfaces.ROI;
 
-public class OpenCVDetection extends AbstractTileableDetectionPlugin <BufferedImage> {
+public class OpenCVDetection extends AbstractTileableDetectionPlugin <BufferedImage> implements DetectionPreviewSupport {
 	private static final Logger logger = LoggerFactory.getLogger(OpenCVDetection.class);
 			
 	transient static OpenCvDetector detector;
@@ -66,6 +67,18 @@ public class OpenCVDetection extends AbstractTileableDetectionPlugin <BufferedIm
 		private ROI pathROI;
 		private List <PathObject> pathObjects = new ArrayList<>();
 		private boolean nucleiClassified = false;
+		private final boolean preview;
+		
+		OpenCvDetector() {
+			this(false);
+		}
+		
+		/**
+		 * @param preview If true, only the detections are returned and the hierarchy is left unchanged
+		 */
+		OpenCvDetector(final boolean preview) {
+			this.preview = preview;
+		}
 
 		@Override
 		public Collection<PathObject> runDetection(ImageData<BufferedImage> imageData, ParameterList params, ROI pathROI) {
@@ -162,26 +175,20 @@ public class OpenCVDetection extends AbstractTileableDetectionPlugin <BufferedIm
 //			mat.put(0, 0, doubles);
 			
 			
-			// Convert to 16bit and write to disk to see if it works
-			Mat write = new Mat();
-			mat.convertTo(write, CvType.CV_16U);
-			Imgcodecs.imwrite("C:\\Users\\SamVa\\Desktop\\Thesis\\data\\saved\\test.png", write);
-			
 			// Create binary of the image
 			Mat matBinary = new Mat();
 //			Core.compare(mat, new Scalar(100), matBinary, Core.CMP_GT);
 			Imgproc.threshold(mat, matBinary, threshold*MAX_PIXEL_VAL, MAX_PIXEL_VAL, Imgproc.THRESH_BINARY);
 			
-			// Convert to 16bit and print
-			matBinary.convertTo(write, CvType.CV_16U);
-			Imgcodecs.imwrite("C:\\Users\\SamVa\\Desktop\\Thesis\\data\\saved\\Binary.png", write);
+			// Fill the holes, so that they aren't traced as objects of their own
+			matBinary.convertTo(matBinary, CvType.CV_8U);
+			FillHoles.fillHoles(matBinary);
 			
 			matBinary.convertTo(matBinary, CvType.CV_32SC1);
 			
 			// Use OpenCV to find simple contours
 			List <MatOfPoint> contours = new ArrayList<>();
 			Imgproc.findContours( matBinary, contours, new Mat (), Imgproc.RETR_FLOODFILL,Imgproc.CHAIN_APPROX_SIMPLE);
-			ArrayList<Point2> points = new ArrayList<>();
 			
 			// Go through contours
 			for (MatOfPoint contour : contours) {
@@ -190,11 +197,7 @@ public class OpenCVDetection extends AbstractTileableDetectionPlugin <BufferedIm
 				}
 				
 				// Create polygon 
-				points.clear();
-				for (org.opencv.core.Point p : contour.toArray())
-		        	points.add(new Point2(p.x * downsample + x, p.y * downsample + y));
-				
-				PolygonROI pathPolygon = new PolygonROI(points);
+				PolygonROI pathPolygon = ROIConverterCV.convertToPolygonROI(contour, downsample, x, y, -1, pathROI.getZ(), pathROI.getT());
 				
 				// Don't save polygon if smaller than minimum allowed area
 				double area = pathPolygon.getArea();
@@ -213,6 +216,9 @@ public class OpenCVDetection extends AbstractTileableDetectionPlugin <BufferedIm
 				pathObjects.add(pathObject);
 			}
 			
+			if (preview)
+				return pathObjects;
+			
 			// TODO: Test whether we can access data from the 'tumor' class
 			PathClass pc = PathClassFactory.getDefaultPathClass(PathClasses.TUMOR);
 			logger.info("ClassName = " + pc.getName());
@@ -309,6 +315,16 @@ public class OpenCVDetection extends AbstractTileableDetectionPlugin <BufferedIm
 		return overlap;
 	}
 
+	@Override
+	public ParameterList getPreviewParameters(ImageData<BufferedImage> imageData, ParameterList params, double downsample) {
+		return DetectionPreviewSupport.scalePixelSize(imageData, params, "preferredMicrons", downsample);
+	}
+
+	@Override
+	public ObjectDetector<BufferedImage> createPreviewDetector(ImageData<BufferedImage> imageData, ParameterList params) {
+		return new OpenCvDetector(true);
+	}
+
 	@Override
 	public ParameterList getDefaultParameterList(ImageData<BufferedImage> imageData) {
 		
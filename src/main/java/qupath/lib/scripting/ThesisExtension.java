@@ -2,6 +2,7 @@ package qupath.lib.scripting;
 
 import qupath.lib.active_learning.ActiveLearningCommand2;
 import qupath.lib.active_learning.ActiveLearningCommand3;
+import qupath.lib.algorithms.WatershedDetectionFRS;
 import qupath.lib.algorithms.WatershedDetectionFRSIJ;
 import qupath.lib.classification.ClassifierExampleCommand;
 import qupath.lib.classification.OpenCvClassifierCommand;
@@ -66,6 +67,15 @@ public class ThesisExtension implements QuPathExtension {
         	new CreateParentAnnotation(qupath).run();
         });
         menu.getItems().add(selectionItem);
+        
+        // Add previews for tuning the detection parameters
+        Menu previewMenu = qupath.getMenu("Extensions>TUNEL extension>Detection preview", true);
+        QuPathGUI.addMenuItems(
+        					previewMenu,
+        					QuPathGUI.createCommandAction(new DetectionPreviewCommand(qupath, "Thresholder", ThresholderOpenCV::new), "Thresholder preview"),
+        					QuPathGUI.createCommandAction(new DetectionPreviewCommand(qupath, "OpenCV detection", OpenCVDetection::new), "OpenCV detection preview"),
+        					QuPathGUI.createCommandAction(new DetectionPreviewCommand(qupath, "Watershed FRS detection", WatershedDetectionFRS::new), "Watershed FRS detection preview")
+        		);
        
     }
 	
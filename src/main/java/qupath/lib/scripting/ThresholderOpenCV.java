@@ -8,6 +8,7 @@ import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 
 import org.opencv.core.Core;
@@ -20,9 +21,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ij.ImagePlus;
-import ij.gui.PolygonRoi;
 import ij.gui.Roi;
-import ij.measure.Calibration;
 import ij.process.AutoThresholder;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
@@ -32,42 +31,64 @@ import qupath.imagej.objects.ROIConverterIJ;
 import qupath.imagej.processing.SimpleThresholding;
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.geom.Point2;
+import qupath.lib.algorithms.ConnectedComponents;
+import qupath.lib.algorithms.DetectionPreviewSupport;
+import qupath.lib.algorithms.FillHoles;
+import qupath.lib.algorithms.MeasurementTable;
+import qupath.lib.algorithms.ROIConverterCV;
+import qupath.lib.algorithms.ROIMask;
+import qupath.lib.algorithms.ShapeFeatures;
 import qupath.lib.ij_opencv.ImagePlusToMatConverter;
 import qupath.lib.ij_opencv.MatToImagePlusConverter;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.PathImage;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ServerTools;
-import qupath.lib.measurements.MeasurementList;
-import qupath.lib.measurements.MeasurementListFactory;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClassFactory;
 import qupath.lib.objects.helpers.PathObjectTools;
 import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.plugins.AbstractTileableDetectionPlugin;
 import qupath.lib.plugins.ObjectDetector;
+import qupath.lib.plugins.parameters.DoubleParameter;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.PolygonROI;
 import qupath.lib.roi.RectangleROI;
-import qupath.lib.roi.experimental.ShapeSimplifier;
 import qupath.lib.roi.interfaces.ROI;
 import qupath.opencv.processing.OpenCVTools;
 import qupath.opencv.processing.ProcessingCV;
 
-public class ThresholderOpenCV extends AbstractTileableDetectionPlugin <BufferedImage> {
+public class ThresholderOpenCV extends AbstractTileableDetectionPlugin <BufferedImage> implements DetectionPreviewSupport {
 	private static final Logger logger = LoggerFactory.getLogger(OpenCVDetection.class);
 			
 	transient static OpenCvDetector detector;
 	
+	transient private TiledDetectionRun tiledRun;
+	
 	static class OpenCvDetector implements ObjectDetector<BufferedImage> {
+		private static final List<String> MEASUREMENT_NAMES = new ArrayList<>(ShapeFeatures.getMeasurementNames("Nucleus: "));
+		static {
+			MEASUREMENT_NAMES.add("Extent");
+			MEASUREMENT_NAMES.add("Aspect ratio");
+		}
+
 		private ROI pathROI;
 		private List <PathObject> pathObjects = new ArrayList<>();
 		private boolean nucleiClassified = false;
 		
 		static String ADAPTIVE_GAUSSIAN = "Gaussian";
 		static String ADAPTIVE_MEAN = "Mean";
+		
+		private final TiledDetectionRun tiledRun;
+		
+		/**
+		 * @param tiledRun Run shared by the detectors of all tiles, used to remove duplicates on the tile seams
+		 * 					& to resume an interrupted run from the checkpoints of completed tiles; may be null
+		 */
+		OpenCvDetector(final TiledDetectionRun tiledRun) {
+			this.tiledRun = tiledRun;
+		}
 
 		@Override
 		public Collection<PathObject> runDetection(ImageData<BufferedImage> imageData, ParameterList params, ROI pathROI) {
@@ -75,6 +96,21 @@ public class ThresholderOpenCV extends AbstractTileableDetectionPlugin <Buffered
 			// Clear any previous objects
 			pathObjects.clear();
 			
+			Supplier<List<PathObject>> detection = () -> {
+				detectTile(imageData, params, pathROI);
+				return new ArrayList<>(pathObjects);
+			};
+			
+			// Keep only one copy of the objects on the tile seams (& reuse the checkpoints of completed tiles)
+			List<PathObject> detected = tiledRun == null ? detection.get() : tiledRun.detectTile(pathROI, detection);
+			pathObjects.clear();
+			pathObjects.addAll(detected);
+
+			return pathObjects;
+		}
+		
+		private void detectTile(ImageData<BufferedImage> imageData, ParameterList params, ROI pathROI) {
+			
 			// Set downsampling rate
 			double downsample = imageData.getServer().hasPixelSizeMicrons() ? getPreferredPixelSizeMicrons(imageData, params) / imageData.getServer().getAveragedPixelSizeMicrons() : 1;
 			downsample = Math.max(downsample, 1);
@@ -298,12 +334,28 @@ public class ThresholderOpenCV extends AbstractTileableDetectionPlugin <Buffered
 				
 			}
 
+			// Label the binary image & remove components that are too small before any contour is traced.
+			// Only external contours are traced, so their polygons include any holes: fill the holes first, so that
+			// the pixel count of a component is never smaller than the area of its polygon & no object is lost here
+			// (the polygon area test below is applied to the full resolution polygon, hence the downsample)
+			byte[] binaryPixels = new byte[w * h];
+			binary.get(0, 0, binaryPixels);
+			FillHoles.fillHoles(binaryPixels, w, h, true);
+			ConnectedComponents.ComponentStatistics componentStats = ConnectedComponents.label(binaryPixels, null, w, h, null, true);
+			ConnectedComponents.filter(componentStats, binaryPixels, minArea / (downsample * downsample), 0, Double.NaN);
+			binary.put(0, 0, binaryPixels);
+
 			// Use OpenCV to find simple contours
 			List <MatOfPoint> contours = new ArrayList<>();
 			Imgproc.findContours( binary , contours, new Mat (), Imgproc.RETR_EXTERNAL,Imgproc.CHAIN_APPROX_SIMPLE);
-			ArrayList<Point2> points = new ArrayList<>();
+
+			// Rasterise the ROI once, so that testing whether an object lies inside it is a single lookup
+			ROIMask roiMask = pathROI instanceof RectangleROI ? null : ROIMask.create(pathROI, downsample, x, y, w, h);
+
+			// Measurements of all contours of the tile; the lists are only created for the objects which are kept
+			MeasurementTable table = new MeasurementTable(MEASUREMENT_NAMES, contours.size());
+			List<PolygonROI> polygons = new ArrayList<>(contours.size());
 //--------
-			int i = 0;
 			// Go through contours
 			for (MatOfPoint contour : contours) {
 				
@@ -311,79 +363,51 @@ public class ThresholderOpenCV extends AbstractTileableDetectionPlugin <Buffered
 					continue;
 				}
 				
-				// Create polygon 
-				points.clear();
-				for (org.opencv.core.Point p : contour.toArray())
-		        	points.add(new Point2(p.x * downsample + x, p.y * downsample + y));
-				
-				PolygonROI pathPolygon = new PolygonROI(points);
+				// Create polygon, smoothing & simplifying its shape if required; the tolerance of downsample/4 pixels
+				// in the full resolution image is a quarter of a pixel of the contour.
+				// The vertices of a simplified polygon are measured themselves, so that the measurements (& the area test)
+				// match its ROI; the polygon is only created for the objects which are kept
+				float[] points = null;
+				ShapeFeatures shape;
+				if (simplifyShapes) {
+					points = ROIConverterCV.getPolygonCoordinates(contour, 0.25, true);
+					shape = ShapeFeatures.measure(points, downsample, x, y);
+				} else
+					shape = ShapeFeatures.measure(contour, downsample, x, y);
 				
-				// Only go on if the polygon is inside the ROI
-				if ( !(pathROI instanceof RectangleROI) && !(PathObjectTools.containsROI(pathROI, pathPolygon)) ) {
+				// Don't save polygon if smaller than minimum allowed area
+				double area = shape.getArea();
+				if (!(area >= minArea)) {
 					continue;
 				}
-								
-				// TODO :: Make simplifications before the measurement ?
-	        	PolygonROI polygonROI;
-	        	if (simplifyShapes) {
-					// Simplify the shape of the ROI (adapted from WatershedCellDetection)
-					Calibration cal = pathImage.getImage().getCalibration();
-		        	PolygonRoi rOrig = (PolygonRoi) ROIConverterIJ.convertToIJRoi(pathPolygon, pathImage);
-		        	PolygonRoi polygonRoi = new PolygonRoi(rOrig.getInterpolatedPolygon(Math.min(2.5, rOrig.getNCoordinates()*0.1), true), Roi.POLYGON);
-		        	
-		        	// We're not dealing with z-stacks/t-stacks so ignore this for now...
-		        	int z = 0, t = 0;
-					polygonROI = ROIConverterIJ.convertToPolygonROI(polygonRoi, cal, pathImage.getDownsampleFactor(), 0, z, t);
-		        	polygonROI = ShapeSimplifier.simplifyPolygon(polygonROI, pathImage.getDownsampleFactor()/4.0);
-		        	
-		        	pathPolygon = polygonROI;
-		        	
-// PRINTING IMAGES TO DISK
-					/*
-					// Get a cropped version of the original ImageProcessor
-					ip.setRoi(polygonRoi);
-					ShortProcessor s = (ShortProcessor) ip.crop();
-					
-					// Convert f to Mat
-					Mat write = ImagePlusToMatConverter.toMat(s);
-					write.convertTo(write, CvType.CV_16U);
-					Imgcodecs.imwrite("C:\\Users\\SamVa\\Desktop\\Thesis\\data\\saved\\print_" + i + ".png", write);
-					i++;
-					*/
-		        	
-// END DISK PRINTING
-	        	}
 				
-				// Don't save polygon if smaller than minimum allowed area
-				double area = pathPolygon.getArea();
-				if (!(area >= minArea)) {
+				// Only go on if the centroid of the object is inside the ROI
+				if (roiMask != null && !roiMask.contains(shape.getCentroidX(), shape.getCentroidY())) {
 					continue;
 				}
 				
+				PolygonROI pathPolygon = points != null ?
+						ROIConverterCV.createPolygonROI(points, downsample, x, y, -1, pathROI.getZ(), pathROI.getT()) :
+						ROIConverterCV.convertToPolygonROI(contour, downsample, x, y, -1, pathROI.getZ(), pathROI.getT());
+				
 				// Create measurements
-	        	MeasurementList measurementList = MeasurementListFactory.createMeasurementList(20, MeasurementList.TYPE.FLOAT);
-	        	measurementList.addMeasurement("Nucleus: Area", area);
-	        	measurementList.addMeasurement("Nucleus: Perimeter", pathPolygon.getPerimeter());
-	        	measurementList.addMeasurement("Nucleus: Circularity", pathPolygon.getCircularity());
-	        	measurementList.addMeasurement("Nucleus: Solidity", pathPolygon.getSolidity()); 
+				int row = polygons.size();
+				shape.setMeasurements(table, row, 0);
 	        	
 	        	// Calculate extent
-	        	double extent = area / (pathPolygon.getBoundsHeight()*pathPolygon.getBoundsWidth());
-				measurementList.addMeasurement("Extent", extent);
+	        	double extent = area / (shape.getBoundsHeight()*shape.getBoundsWidth());
+				table.set(row, ShapeFeatures.N_MEASUREMENTS, extent);
 				
 				// Calculate aspect ratio
-				double aspectRatio = pathPolygon.getBoundsHeight() / pathPolygon.getBoundsWidth();
-				measurementList.addMeasurement("Aspect ratio", aspectRatio);
+				double aspectRatio = shape.getBoundsHeight() / shape.getBoundsWidth();
+				table.set(row, ShapeFeatures.N_MEASUREMENTS + 1, aspectRatio);
 				
-				// Create a simple PathDetectionObject    	
-				PathObject pathObject = new PathDetectionObject (pathPolygon, null, measurementList);
-
-				// Add PathObject to the list
-				pathObjects.add(pathObject);
+				polygons.add(pathPolygon);
 			}
 			
-
-			return pathObjects;
+			// Create simple PathDetectionObjects, with compact measurement lists
+			for (int row = 0; row < polygons.size(); row++)
+				pathObjects.add(new PathDetectionObject(polygons.get(row), null, table.createMeasurementList(row)));
 		}
 
 		@Override
@@ -430,9 +454,23 @@ public class ThresholderOpenCV extends AbstractTileableDetectionPlugin <Buffered
 		return OpenCvDetector.getPreferredPixelSizeMicrons(imageData, params);
 	}
 
+	@Override
+	protected void addRunnableTasks(final ImageData<BufferedImage> imageData, final PathObject parentObject, List<Runnable> tasks) {
+		// The detectors of all tiles of this parent share one run, to resolve the objects on the seams & write checkpoints
+		ParameterList params = getParameterList(imageData);
+		TiledDetectionRun.addRunnableTasks(imageData, parentObject, tasks, params, getClass().getName(), getTileOverlap(imageData, params), run -> {
+			tiledRun = run;
+			try {
+				super.addRunnableTasks(imageData, parentObject, tasks);
+			} finally {
+				tiledRun = null;
+			}
+		});
+	}
+
 	@Override
 	protected ObjectDetector<BufferedImage> createDetector(ImageData<BufferedImage> imageData, ParameterList params) {
-		return new OpenCvDetector();
+		return new OpenCvDetector(tiledRun);
 	}
 
 	@Override
@@ -446,6 +484,24 @@ public class ThresholderOpenCV extends AbstractTileableDetectionPlugin <Buffered
 		return overlap;
 	}
 
+	@Override
+	public ParameterList getPreviewParameters(ImageData<BufferedImage> imageData, ParameterList params, double downsample) {
+		ParameterList previewParams = DetectionPreviewSupport.scalePixelSize(imageData, params, "preferredMicrons", downsample);
+		// The adaptive threshold block & kernel are given in pixels; the block size must stay odd & at least 3
+		double scale = DetectionPreviewSupport.getPixelScale(imageData, params, previewParams, "preferredMicrons");
+		int blockSize = (int)(params.getDoubleParameterValue("adaptiveBlockSize") / scale + .5);
+		if (blockSize % 2 == 0)
+			blockSize++;
+		((DoubleParameter)previewParams.getParameters().get("adaptiveBlockSize")).setValue((double)Math.max(3, blockSize));
+		((DoubleParameter)previewParams.getParameters().get("kernelSize")).setValue((double)Math.max(1, (int)(params.getDoubleParameterValue("kernelSize") / scale + .5)));
+		return previewParams;
+	}
+
+	@Override
+	public ObjectDetector<BufferedImage> createPreviewDetector(ImageData<BufferedImage> imageData, ParameterList params) {
+		return new OpenCvDetector(null);
+	}
+
 	@Override
 	public ParameterList getDefaultParameterList(ImageData<BufferedImage> imageData) {
 		
@@ -493,6 +549,8 @@ public class ThresholderOpenCV extends AbstractTileableDetectionPlugin <Buffered
 		List <String> thresholderList = new ArrayList<>(Arrays.asList(sList));
 		
 		params.addChoiceParameter("thresholder", "Thresholding method", "Otsu", thresholderList);
+		params.addBooleanParameter("checkpointTiles", "Checkpoint tiles", false,
+				"Save the detections of every completed tile next to the image data, so that an interrupted run with the same parameters resumes where it stopped");
 		
 		return params;
 	}
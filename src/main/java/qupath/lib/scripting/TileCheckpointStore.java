@@ -0,0 +1,214 @@
+package qupath.lib.scripting;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.parameters.Parameter;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Checkpoints of the tiles completed by a tiled detection, so that an interrupted run can be resumed.
+ *
+ * The detections of every completed tile are written to a file of their own (gzipped, serialized objects), in a
+ * directory next to the data file of the image in the current project (or in the temporary directory, if the image
+ * isn't part of a project). The files of one run are kept in a subdirectory named after a (SHA-256) hash of the plugin,
+ * image, parent ROI & parameters; a run with the same parameters within the same parent reads the detections of the tiles
+ * which were completed before, rather than detecting them again. Tiles are identified by their bounds & plane.
+ *
+ * Checkpoints are written before the objects on the tile seams are resolved, so that resumed tiles are resolved
+ * exactly as if they had just been detected. Tiles interrupted during detection are never written, and the checkpoints
+ * of a run are deleted once all its tiles have completed.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class TileCheckpointStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(TileCheckpointStore.class);
+
+	private static final String EXTENSION = ".tile";
+
+	private final File dir;
+	private volatile boolean incomplete = false;
+
+	private TileCheckpointStore(final File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Create the store for a detection with the given plugin & parameters within a parent object.
+	 * @param imageData
+	 * @param pluginName Name identifying the detection, usually the plugin class
+	 * @param params Parameters of the detection
+	 * @param parentROI ROI of the parent object in which the detection runs, or null for the whole image
+	 * @return
+	 */
+	public static TileCheckpointStore create(final ImageData<BufferedImage> imageData, final String pluginName, final ParameterList params, final ROI parentROI) {
+		StringBuilder sb = new StringBuilder(pluginName).append('|').append(imageData.getServerPath());
+		for (Map.Entry<String, Parameter<?>> entry : params.getParameters().entrySet())
+			sb.append('|').append(entry.getKey()).append('=').append(entry.getValue().getValueOrDefault());
+		// Describe the parent by its type, plane & vertices
+		if (parentROI != null) {
+			sb.append('|').append(parentROI.getClass().getSimpleName()).append(",z=").append(parentROI.getZ()).append(",t=").append(parentROI.getT());
+			for (Point2 p : parentROI.getPolygonPoints())
+				sb.append(',').append(p.getX()).append(',').append(p.getY());
+		}
+		return new TileCheckpointStore(new File(getImageDirectory(imageData), hash(sb.toString())));
+	}
+
+	/**
+	 * Get the (hexadecimal) SHA-256 hash of a string, truncated to 128 bits.
+	 */
+	private static String hash(final String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 16; i++)
+				sb.append(String.format("%02x", digest[i]));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static File getImageDirectory(final ImageData<BufferedImage> imageData) {
+		QuPathGUI qupath = QuPathGUI.getInstance();
+		Project<BufferedImage> project = qupath == null ? null : qupath.getProject();
+		ProjectImageEntry<BufferedImage> entry = project == null ? null : project.getImageEntry(imageData.getServerPath());
+		if (entry != null) {
+			File fileData = QuPathGUI.getImageDataFile(project, entry);
+			return new File(fileData.getParentFile(), fileData.getName() + ".checkpoints");
+		}
+		return new File(new File(System.getProperty("java.io.tmpdir"), "qupath-checkpoints"), hash(imageData.getServerPath()));
+	}
+
+	private File getFile(final ROI tileROI) {
+		String name = String.format("%d_%d_%d_%d_z%d_t%d", Math.round(tileROI.getBoundsX()), Math.round(tileROI.getBoundsY()),
+				Math.round(tileROI.getBoundsWidth()), Math.round(tileROI.getBoundsHeight()), tileROI.getZ(), tileROI.getT());
+		return new File(dir, name + EXTENSION);
+	}
+
+	/**
+	 * Read the detections of a tile completed in an earlier run.
+	 * @param tileROI
+	 * @return The detections, or null if the tile has no (readable) checkpoint
+	 */
+	public List<PathObject> load(final ROI tileROI) {
+		File file = getFile(tileROI);
+		if (!file.isFile())
+			return null;
+		try (ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()))))) {
+			int n = in.readInt();
+			List<PathObject> pathObjects = new ArrayList<>(n);
+			for (int i = 0; i < n; i++)
+				pathObjects.add((PathObject)in.readObject());
+			logger.trace("Read {} detections from {}", n, file);
+			return pathObjects;
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			logger.warn("Unable to read checkpoint " + file + " - the tile will be detected again", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Write the detections of a completed tile, unless the current thread has been interrupted.
+	 * The file is only renamed to its final name once it is complete, so that a run interrupted while writing
+	 * never leaves a partial checkpoint.
+	 * @param tileROI
+	 * @param pathObjects
+	 */
+	public void save(final ROI tileROI, final Collection<? extends PathObject> pathObjects) {
+		if (Thread.currentThread().isInterrupted()) {
+			incomplete = true;
+			return;
+		}
+		File file = getFile(tileROI);
+		File fileTemp = new File(dir, file.getName() + ".tmp");
+		try {
+			Files.createDirectories(dir.toPath());
+			try (ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(fileTemp.toPath()))))) {
+				out.writeInt(pathObjects.size());
+				for (PathObject pathObject : pathObjects)
+					out.writeObject(pathObject);
+			}
+			try {
+				Files.move(fileTemp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(fileTemp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			logger.warn("Unable to write checkpoint " + file, e);
+			fileTemp.delete();
+		}
+	}
+
+	/**
+	 * Wrap the tasks of a run, so that the checkpoints are deleted once every task has completed without being
+	 * interrupted; the detections of all tiles have then been handed over, so the checkpoints aren't needed anymore.
+	 * If any tile is interrupted, the checkpoints are kept to resume the run later.
+	 * @param tasks The tasks detecting the tiles, which are replaced in the list
+	 */
+	public void clearWhenComplete(final List<Runnable> tasks) {
+		AtomicInteger nRemaining = new AtomicInteger(tasks.size());
+		for (ListIterator<Runnable> iter = tasks.listIterator(); iter.hasNext(); ) {
+			Runnable task = iter.next();
+			iter.set(() -> {
+				boolean completed = false;
+				try {
+					task.run();
+					completed = !Thread.currentThread().isInterrupted();
+				} finally {
+					if (!completed)
+						incomplete = true;
+					if (nRemaining.decrementAndGet() == 0 && !incomplete) {
+						logger.debug("All tiles completed - deleting checkpoints in {}", dir);
+						clear();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Delete the checkpoints of this run, e.g. once its results have been saved.
+	 */
+	public void clear() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				file.delete();
+		}
+		dir.delete();
+	}
+
+}
@@ -0,0 +1,91 @@
+package qupath.lib.scripting;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.algorithms.TileSeamResolver;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * State shared by the detectors of all tiles of one parent object, in a tiled detection plugin.
+ *
+ * The plugin creates a run in addRunnableTasks, and passes it to the detectors it creates for the tiles of the parent.
+ * The tiles are known from the tasks added for this run (rather than from the children of the parent, which other
+ * runs within the same parent may add to as well): the resolver for the objects on the tile seams is told how many
+ * tiles there are, and every detector adds its own tile as it starts.
+ *
+ * If the plugin has a (boolean) "checkpointTiles" parameter which is set, the detections of every completed tile
+ * are written to a TileCheckpointStore, and read back rather than detected again when the run is repeated;
+ * the checkpoints are deleted once all tasks of the run have completed.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class TiledDetectionRun {
+
+	private static final Logger logger = LoggerFactory.getLogger(TiledDetectionRun.class);
+
+	private final TileSeamResolver seamResolver;
+	private final TileCheckpointStore checkpoints;
+
+	private TiledDetectionRun(final int tileOverlap, final TileCheckpointStore checkpoints) {
+		this.seamResolver = new TileSeamResolver(2 * tileOverlap);
+		this.checkpoints = checkpoints;
+	}
+
+	/**
+	 * Add the tasks of a tiled detection plugin for one parent object.
+	 * @param imageData
+	 * @param parentObject
+	 * @param tasks The tasks of the plugin, to which the tasks of this run are added
+	 * @param params Parameters of the detection
+	 * @param pluginName Name identifying the detection in the checkpoints, usually the plugin class
+	 * @param tileOverlap Overlap between the tiles, in pixels
+	 * @param addTasks Adds the tasks for the parent (i.e. calls AbstractTileableDetectionPlugin.addRunnableTasks), creating
+	 * 					the detectors with the run it is passed
+	 * @return The run
+	 */
+	public static TiledDetectionRun addRunnableTasks(final ImageData<BufferedImage> imageData, final PathObject parentObject, final List<Runnable> tasks,
+			final ParameterList params, final String pluginName, final int tileOverlap, final Consumer<TiledDetectionRun> addTasks) {
+		// Tiles completed by an earlier run with the same parameters are read from their checkpoints
+		boolean checkpointTiles = params.getParameters().containsKey("checkpointTiles") && params.getBooleanParameterValue("checkpointTiles");
+		TileCheckpointStore checkpoints = checkpointTiles ? TileCheckpointStore.create(imageData, pluginName, params, parentObject.getROI()) : null;
+		TiledDetectionRun run = new TiledDetectionRun(tileOverlap, checkpoints);
+		int nTasks = tasks.size();
+		addTasks.accept(run);
+
+		// Every task detects one tile (or the whole parent, if it isn't split into tiles)
+		List<Runnable> runTasks = tasks.subList(nTasks, tasks.size());
+		run.seamResolver.setNumTiles(runTasks.size());
+		logger.trace("Resolving tile seams for {} tiles", runTasks.size());
+		if (checkpoints != null)
+			checkpoints.clearWhenComplete(runTasks);
+		return run;
+	}
+
+	/**
+	 * Detect the objects in a tile (or read them from its checkpoint), and keep only one copy of the objects on the tile seams.
+	 * @param tileROI
+	 * @param detection Detects the objects in the tile
+	 * @return The objects which should be added for this tile, which may include objects of other tiles
+	 */
+	public List<PathObject> detectTile(final ROI tileROI, final Supplier<List<PathObject>> detection) {
+		seamResolver.addTile(tileROI);
+		List<PathObject> detected = checkpoints == null ? null : checkpoints.load(tileROI);
+		if (detected == null) {
+			detected = detection.get();
+			if (checkpoints != null)
+				checkpoints.save(tileROI, detected);
+		}
+		return seamResolver.resolve(tileROI, detected);
+	}
+
+}
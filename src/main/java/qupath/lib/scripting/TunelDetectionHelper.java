@@ -2,33 +2,44 @@
 package qupath.lib.scripting;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javafx.application.Platform;
 import javafx.concurrent.*;
 import javafx.scene.Cursor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.algorithms.ColocalisationMeasurer;
+import qupath.lib.algorithms.LabelOverlap;
+import qupath.lib.algorithms.ObjectGeometry;
+import qupath.lib.algorithms.SpatialHashGrid;
+import qupath.lib.algorithms.SweepLineOverlapResolver;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.images.ImageData;
-import qupath.lib.objects.PathDetectionObject;
 import qupath.lib.objects.PathObject;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.classes.PathClassFactory;
-import qupath.lib.plugins.PluginRunnerFX;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.roi.PathROIToolsAwt;
 import qupath.lib.roi.interfaces.PathArea;
@@ -48,6 +59,11 @@ public class TunelDetectionHelper {
 	
 	private static final Logger logger = LoggerFactory.getLogger(TunelDetectionHelper.class);
 	
+	/**
+	 * Maximum number of detections added to the hierarchy with a single change event.
+	 */
+	static final int HIERARCHY_BATCH_SIZE = 5000;
+	
 	private ImageData<BufferedImage> imageData;
 	private List<String> args;
 	
@@ -59,6 +75,43 @@ public class TunelDetectionHelper {
 	private int maxDistance;
 	private int overlappedCount;
 	private double overlap;
+	private OverlapMethod overlapMethod = OverlapMethod.SHAPE;
+	private OverlapResolution overlapResolution = OverlapResolution.SWEEP_LINE;
+	private DetectionProgressListener progressListener;
+	private volatile boolean cancelled = false;
+	private final List<Future<?>> runningFutures = new ArrayList<>();
+	private boolean useCache = true;
+	private List<String> channelKeys;
+	private ColocalisationMeasurer colocalisationMeasurer;
+	
+	/**
+	 * Method used to measure the overlap between objects detected in different channels.
+	 */
+	public enum OverlapMethod {
+		/**
+		 * Intersect the ROIs of each candidate pair.
+		 */
+		SHAPE,
+		/**
+		 * Rasterise the objects of both channels and count the overlapping pixels of all pairs at once.
+		 */
+		RASTER
+	}
+	
+	/**
+	 * Rule used to decide which of several overlapping objects is kept.
+	 */
+	public enum OverlapResolution {
+		/**
+		 * Compare the channels two by two, in order, removing objects as the overlaps are found.
+		 */
+		PAIRWISE,
+		/**
+		 * Find all overlapping pairs with a sweep over the bounding boxes, then keep the largest objects 
+		 * (by "Nucleus: Area", then by channel order) in a single pass.
+		 */
+		SWEEP_LINE
+	}
 	
 	/**
 	 * 
@@ -78,6 +131,20 @@ public class TunelDetectionHelper {
 		this.showResults = showResults;
 	}
 	
+	/**
+	 * Create a helper for an image which isn't necessarily open in the viewer, e.g. when processing a project.
+	 * @param imageData
+	 * @param args Detection parameters, one for every channel
+	 * @param showResults Whether the final detections should be added to the hierarchy of the image
+	 * @param maxDistance
+	 * @param overlap
+	 */
+	public TunelDetectionHelper(final ImageData<BufferedImage> imageData, final List<String> args, final boolean showResults, final int maxDistance, final double overlap) {
+		this(imageData, args, new ArrayList<>(), new ArrayList<>(), maxDistance, overlap);
+		this.pathObjectMap = new HashMap<>();
+		this.showResults = showResults;
+	}
+	
 	public TunelDetectionHelper(final ImageData<BufferedImage> imageData, final List<String> args, List<PathObject> pathObjects, List<List<PathObject>> pathObjectListList, final int maxDistance, final double overlap) {
 		this.imageData = imageData;
 		this.pixelWidth = imageData.getServer().getPixelWidthMicrons();
@@ -139,190 +206,712 @@ public class TunelDetectionHelper {
 //			imageData.getHierarchy().addPathObjects(pathObjects, true);
 //	}
 	
-	public void runDetection () {
+	/**
+	 * Run the detection in all channels within the selected object, each in a different thread, and add all
+	 * detections to the hierarchy without removing overlapping detections.
+	 * 
+	 * Every channel returns its own result, as with runDetection1(), so that the channels never replace each other's
+	 * detections in the hierarchy; nothing is added if one channel fails or the detection is cancelled.
+	 * @return true if all channels were processed, false if the detection failed or was cancelled
+	 */
+	public boolean runDetection () {
 		
-		List <PluginTask> taskList = new ArrayList<>();
-		ExecutorService pool = Executors.newFixedThreadPool(Math.min(Runtime.getRuntime().availableProcessors(), args.size()));
-		QuPathGUI qupath = QuPathGUI.getInstance();
+		List<String> keys = new ArrayList<>();
+		List<ChannelResult> results = detectChannels(imageData.getHierarchy().getSelectionModel().getSelectedObject().getROI(), keys);
+		if (results == null)
+			return false;
 		
-		for (String arg : args) {
-			PluginTask p = new PluginTask(arg);
-			taskList.add(p);
-			pool.submit(p);
-//			QuPathGUI.getInstance().runPlugin(new WatershedCellDetection2(), arg, false);
+		channelKeys = keys;
+		pathObjectMap = new LinkedHashMap<>();
+		pathObjectListList = new ArrayList<>();
+		pathObjects = new ArrayList<>();
+		for (ChannelResult result : results) {
+			pathObjectMap.put(result.getChannel(), result.getPathObjects());
+			pathObjectListList.add(result.getPathObjects());
+			pathObjects.addAll(result.getPathObjects());
 		}
-		
-		pool.shutdown(); // Don't take any more submissions
-		logger.info("Pool was shut down.");
+		addToHierarchy(pathObjects);
+		logger.info("Object lists size : " + pathObjects.size());
+		return true;
 	}
 	
 	/**
 	 * Run the multiple detections in the different channels, each in a different thread. At the end a 
 	 * complete list of detections is compiled and overlapping detections are removed.
+	 * 
+	 * Every task returns its own result, and the results are only merged (in the order of the arguments) once all
+	 * channels have finished; if one channel fails or the detection is cancelled, no results are kept.
+	 * @return true if all channels were processed, false if the detection failed or was cancelled
+	 */
+	public boolean runDetection1 () {
+		
+		// Get the parent ROI once, rather than in every task
+		return runDetection1(imageData.getHierarchy().getSelectionModel().getSelectedObject().getROI());
+	}
+	
+	/**
+	 * Run the detection in all channels within a ROI, as with runDetection1().
+	 * @param roi Parent ROI of the detections
+	 * @return true if all channels were processed, false if the detection failed or was cancelled
+	 */
+	public boolean runDetection1 (final ROI roi) {
+		
+		List<String> keys = new ArrayList<>();
+		List<ChannelResult> results = detectChannels(roi, keys);
+		if (results == null)
+			return false;
+		
+		mergeResults(results, keys);
+		return true;
+	}
+	
+	/**
+	 * Detect all channels within a ROI, each in a different thread; every task returns its own result, and the
+	 * results are only collected (in the order of the arguments) once all channels have finished.
+	 * @param roi Parent ROI of the detections
+	 * @param keys List to which the keys of the results in the ChannelResultCache are added
+	 * @return The result of every channel, or null if the detection failed or was cancelled
 	 */
-	public void runDetection1 () {
+	private List<ChannelResult> detectChannels (final ROI roi, final List<String> keys) {
 		
-		List <DetectionTask> taskList = new ArrayList<>();
+		if (cancelled)
+			return null;
 		
-		QuPathGUI qupath = QuPathGUI.getInstance();
+		// Use the cached detections of channels with unchanged parameters
+		ChannelResult[] results = new ChannelResult[args.size()];
+		int nFinished = 0;
+		Map<Integer, DetectionTask> taskMap = new LinkedHashMap<>();
 		for (String arg : args) {
 			
 			// Decode the args so we can get the channel number
 			Map<String, String> map = GeneralTools.parseArgStringValues(arg);
-
-			DetectionTask detectionTask = new DetectionTask(arg, imageData, Integer.parseInt(map.get("detectionImageFluorescence")));
-						
-			// Start a new thread for this task
-//			Thread t = new Thread(detectionTask, "Detection channel " + Integer.parseInt(map.get("detectionImageFluorescence") ));
-//			t.setDaemon(true);
-//			t.start();
-//			threadList.add(t);
-			taskList.add(detectionTask);
-		}
-		
-		// Create a pool to run the tasks
-		ExecutorService pool = Executors.newFixedThreadPool(Math.min(Runtime.getRuntime().availableProcessors(), taskList.size()));
-		logger.info("Available thread pool size : " + Math.min(Runtime.getRuntime().availableProcessors(), taskList.size()));
+			int channel = Integer.parseInt(map.get("detectionImageFluorescence"));
+			String key = ChannelResultCache.createKey(imageData, roi, channel, arg);
+			List<PathObject> cached = useCache ? ChannelResultCache.getDetections(key) : null;
+			if (cached != null) {
+				results[keys.size()] = new ChannelResult(channel, cached);
+				logger.info("Channel " + channel + " : " + cached.size() + " detections (cached).");
+				if (progressListener != null)
+					progressListener.channelFinished(channel, cached.size(), ++nFinished, args.size());
+			} else
+				taskMap.put(keys.size(), new DetectionTask(arg, imageData, channel, roi));
+			keys.add(key);
+		}
+		
+		// Run the tasks, reporting progress as each channel finishes
+		ExecutorService pool = createPool(taskMap.size());
+		CompletionService<ChannelResult> completionService = new ExecutorCompletionService<>(pool);
+		Map<Future<ChannelResult>, Integer> futures = new HashMap<>();
+		for (Map.Entry<Integer, DetectionTask> entry : taskMap.entrySet())
+			futures.put(track(completionService.submit(entry.getValue())), entry.getKey());
 		try {
-			pool.invokeAll(taskList);
+			for (int i = 0; i < taskMap.size(); i++) {
+				// Cancelled tasks are completed as well, so this never waits for a task which won't run
+				Future<ChannelResult> future = completionService.take();
+				ChannelResult result = future.get();
+				// A task may have finished just before the detection was cancelled; never keep (or cache) its result
+				if (cancelled)
+					throw new CancellationException();
+				int ind = futures.get(future);
+				results[ind] = new ChannelResult(result.getChannel(), ChannelResultCache.putDetections(keys.get(ind), result.getPathObjects()));
+				logger.info("Channel " + result.getChannel() + " : " + result.getPathObjects().size() + " detections.");
+				if (progressListener != null)
+					progressListener.channelFinished(result.getChannel(), result.getPathObjects().size(), ++nFinished, args.size());
+			}
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			// Keep the interrupt, so that the caller knows the detection was cancelled rather than failed
+			Thread.currentThread().interrupt();
+			logger.info("Detection was cancelled.");
+			return null;
+		} catch (CancellationException e) {
+			logger.info("Detection was cancelled.");
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof InterruptedException)
+				logger.info("Detection was cancelled.");
+			else
+				logger.error("Detection failed", e.getCause());
+			return null;
+		} finally {
+			shutdown(pool);
+		}
+		
+		return Arrays.asList(results);
+	}
+	
+	/**
+	 * Run the detection in all channels of the selected region, using a MultiChannelCellDetector, 
+	 * and remove overlapping detections as with runDetection1.
+	 * 
+	 * The region is processed tile by tile, and every tile is read (and its channels extracted) only once for all channels.
+	 * @return true if all channels were processed, false if the detection failed or was cancelled
+	 */
+	public boolean runFusedDetection () {
+		return runFusedDetection(imageData.getHierarchy().getSelectionModel().getSelectedObject().getROI());
+	}
+	
+	/**
+	 * Run the detection in all channels within a ROI, as with runFusedDetection().
+	 * @param roi Parent ROI of the detections
+	 * @return true if all channels were processed, false if the detection failed or was cancelled
+	 */
+	public boolean runFusedDetection (final ROI roi) {
+		
+		if (cancelled)
+			return false;
+		
+		// Only detect the channels which aren't cached
+		List<String> keys = new ArrayList<>();
+		Map<Integer, List<PathObject>> detections = new LinkedHashMap<>();
+		Map<Integer, ParameterList> paramsMap = new LinkedHashMap<>();
+		for (String arg : args) {
+			Map<String, String> map = GeneralTools.parseArgStringValues(arg);
+			int channel = Integer.parseInt(map.get("detectionImageFluorescence"));
+			String key = ChannelResultCache.createKey(imageData, roi, channel, arg);
+			List<PathObject> cached = useCache ? ChannelResultCache.getDetections(key) : null;
+			if (cached == null)
+				paramsMap.put(channel, parseArgument(arg, imageData));
+			detections.put(channel, cached);
+			keys.add(key);
+		}
+		
+		// Run in a separate thread, so that the detection can be cancelled
+		ExecutorService pool = createPool(1);
+		try {
+			if (!paramsMap.isEmpty()) {
+				Map<Integer, List<PathObject>> newDetections = submit(pool, () -> MultiChannelCellDetector.detect(imageData, roi, paramsMap)).get();
+				// An interrupted detector may return the objects found so far; never keep (or cache) these
+				if (cancelled)
+					throw new CancellationException();
+				int i = 0;
+				for (Map.Entry<Integer, List<PathObject>> entry : detections.entrySet()) {
+					if (entry.getValue() == null)
+						entry.setValue(ChannelResultCache.putDetections(keys.get(i), newDetections.get(entry.getKey())));
+					i++;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Keep the interrupt, so that the caller knows the detection was cancelled rather than failed
+			Thread.currentThread().interrupt();
+			logger.info("Detection was cancelled.");
+			return false;
+		} catch (CancellationException e) {
+			logger.info("Detection was cancelled.");
+			return false;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof InterruptedException)
+				logger.info("Detection was cancelled.");
+			else
+				logger.error("Detection failed", e.getCause());
+			return false;
+		} finally {
+			shutdown(pool);
+		}
+		
+		List<ChannelResult> results = new ArrayList<>();
+		int nFinished = 0;
+		for (Map.Entry<Integer, List<PathObject>> entry : detections.entrySet()) {
+			results.add(new ChannelResult(entry.getKey(), entry.getValue()));
+			if (progressListener != null)
+				progressListener.channelFinished(entry.getKey(), entry.getValue().size(), ++nFinished, detections.size());
+		}
+		mergeResults(results, keys);
+		return true;
+	}
+	
+	/**
+	 * Merge the results of all channels (in order), remove overlapping detections and show the results if required.
+	 * @param results
+	 * @param keys The keys of the results in the ChannelResultCache
+	 */
+	private void mergeResults (final List<ChannelResult> results, final List<String> keys) {
+		
+		// Merge the results
+		channelKeys = keys;
+		pathObjectMap = new LinkedHashMap<>();
+		pathObjectListList = new ArrayList<>();
+		pathObjects = new ArrayList<>();
+		for (ChannelResult result : results) {
+			pathObjectMap.put(result.getChannel(), result.getPathObjects());
+			pathObjectListList.add(result.getPathObjects());
+			pathObjects.addAll(result.getPathObjects());
 		}
-		logger.info("Shutting down executor.");
-		pool.shutdown(); // Stop allowing tasks
 		
 		// Remove overlapping detections
 		int size = pathObjects.size();
 		handleOverlappingObjects();
 		logger.info(size - pathObjects.size() + " objects overlapping detections removed.");
 		
+		// Measure the remaining nuclei in all channels
+		if (colocalisationMeasurer != null) {
+			try {
+				colocalisationMeasurer.measure(imageData.getServer(), pathObjects, 1.0);
+			} catch (IOException e) {
+				logger.error("Unable to measure colocalisation", e);
+			}
+		}
+		
 		// Draw on the image
 		if (showResults)
-			imageData.getHierarchy().addPathObjects(pathObjects, false);
+			addToHierarchy(pathObjects);
 		
 		// Let user know what happened
 		logger.info("Detection finished : " + pathObjects.size() + " objects detected.");
 	}
 	
 	/**
-	 * Checks whether the objects that were detected accross multiple channels were actually the same object.
+	 * Cancel a running detection; tasks which have not started are not run, and running tasks are interrupted.
+	 * The results of a cancelled detection are discarded, and the helper doesn't start any further detections.
+	 */
+	public void cancel () {
+		synchronized (runningFutures) {
+			cancelled = true;
+			for (Future<?> future : runningFutures)
+				future.cancel(true);
+		}
+	}
+	
+	/**
+	 * Check whether the detection has been cancelled.
+	 * @return
+	 */
+	public boolean isCancelled () {
+		return cancelled;
+	}
+	
+	/**
+	 * Set whether detections (and overlaps between channels) should be reused from the ChannelResultCache
+	 * if the image, parent ROI and parameters of a channel are unchanged.
+	 * @param useCache
+	 */
+	public void setUseCache (final boolean useCache) {
+		this.useCache = useCache;
+	}
+	
+	/**
+	 * Set whether the intensities & colocalisation of all channels should be measured for the final detections.
+	 * @param measure
+	 * @param thresholds Threshold per channel for the Manders coefficients, may be null
+	 */
+	public void setMeasureColocalisation (final boolean measure, final double[] thresholds) {
+		if (measure)
+			colocalisationMeasurer = new ColocalisationMeasurer(imageData.getServer().nChannels(), thresholds, "Nucleus: Coloc ");
+		else
+			colocalisationMeasurer = null;
+	}
+	
+	/**
+	 * Set a listener to be notified whenever the detection in one channel has finished.
+	 * @param progressListener
+	 */
+	public void setProgressListener (final DetectionProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+	
+	/**
+	 * Add detections to the hierarchy in batches of at most HIERARCHY_BATCH_SIZE, each with one change event,
+	 * so that a viewer shows the detections of a large region appearing rather than handling them all in one event.
+	 * @param detections
+	 */
+	private void addToHierarchy (final List<PathObject> detections) {
+		for (int i = 0; i < detections.size(); i += HIERARCHY_BATCH_SIZE) {
+			List<PathObject> batch = detections.subList(i, Math.min(detections.size(), i + HIERARCHY_BATCH_SIZE));
+			imageData.getHierarchy().addPathObjects(new ArrayList<>(batch), false);
+			logger.debug("{} of {} detections added to the hierarchy", i + batch.size(), detections.size());
+		}
+	}
+	
+	private ExecutorService createPool (final int nTasks) {
+		int nThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), nTasks));
+		logger.info("Available thread pool size : " + nThreads);
+		return Executors.newFixedThreadPool(nThreads);
+	}
+	
+	private <T> Future<T> submit (final ExecutorService pool, final Callable<T> task) {
+		return track(pool.submit(task));
+	}
+	
+	/**
+	 * Keep track of a future, so that it can be cancelled; it is cancelled immediately if the detection already was.
+	 */
+	private <T> Future<T> track (final Future<T> future) {
+		synchronized (runningFutures) {
+			if (cancelled)
+				future.cancel(true);
+			runningFutures.add(future);
+		}
+		return future;
+	}
+	
+	private void shutdown (final ExecutorService pool) {
+		synchronized (runningFutures) {
+			runningFutures.clear();
+		}
+		pool.shutdownNow();
+	}
+	
+	/**
+	 * Checks whether the objects that were detected accross multiple channels were actually the same object, 
+	 * using the current OverlapResolution.
 	 */
 	public void handleOverlappingObjects() {
+		if (overlapResolution == OverlapResolution.SWEEP_LINE)
+			resolveOverlappingObjects();
+		else
+			handleOverlappingObjectsPairwise();
+	}
+	
+	/**
+	 * Checks whether the objects that were detected accross multiple channels were actually the same object.
+	 * 
+	 * All overlapping pairs (between any two channels) are found in one sweep over the bounding boxes, after which 
+	 * the largest objects are kept: an object is removed only if it overlaps with a larger object that is kept, 
+	 * with ties broken by channel order. The result doesn't depend on the order in which channels are compared.
+	 * 
+	 * Every pair with intersecting bounding boxes is tested, so the overlapping pairs of two channels are complete 
+	 * and can be cached (if possible); pairs of unchanged channels are then looked up rather than tested again.
+	 */
+	public void resolveOverlappingObjects() {
+		
+		// Read the geometry of all objects once
+		int nLists = pathObjectListList.size();
+		ObjectGeometry[] geometries = new ObjectGeometry[nLists];
+		for (int i = 0; i < nLists; i++)
+			geometries[i] = ObjectGeometry.create(pathObjectListList.get(i), pixelWidth, pixelHeight, "Nucleus: Area");
+		
+		// Look up the overlapping pairs of every two channels which are known from a previous run; 
+		// the pairs of the other channels are recorded while sweeping, if these can be cached
+		String[][] keys = new String[nLists][nLists];
+		List<Set<Long>> cachedPairs = new ArrayList<>(Collections.nCopies(nLists * nLists, null));
+		int[][] foundPairs = new int[nLists * nLists][];
+		int[] nFound = new int[nLists * nLists];
+		for (int i = 0; i < nLists-1; i++) {
+			for (int j = i+1; j < nLists; j++) {
+				keys[i][j] = getOverlapCacheKey(i, j);
+				int[] pairs = keys[i][j] == null ? null : ChannelResultCache.getOverlappingPairs(keys[i][j]);
+				if (pairs != null) {
+					Set<Long> set = new HashSet<>();
+					for (int p = 0; p < pairs.length; p += 2)
+						set.add(((long)pairs[p] << 32) | pairs[p+1]);
+					cachedPairs.set(i * nLists + j, set);
+				} else if (keys[i][j] != null)
+					foundPairs[i * nLists + j] = new int[16];
+			}
+		}
+		
+		// When rasterising, count the overlapping pixels for each pair of channels when first needed
+		LabelOverlap.OverlapMatrix[][] overlapMatrices = new LabelOverlap.OverlapMatrix[nLists][nLists];
+		boolean[][] removed = SweepLineOverlapResolver.resolve(geometries, (l1, k1, l2, k2) -> {
+			int ind = l1 * nLists + l2;
+			Set<Long> cached = cachedPairs.get(ind);
+			if (cached != null)
+				return cached.contains(((long)k1 << 32) | k2);
+			boolean overlaps = testOverlap(geometries, overlapMatrices, l1, k1, l2, k2);
+			if (overlaps && foundPairs[ind] != null) {
+				if (nFound[ind] == foundPairs[ind].length)
+					foundPairs[ind] = Arrays.copyOf(foundPairs[ind], nFound[ind] * 2);
+				foundPairs[ind][nFound[ind]++] = k1;
+				foundPairs[ind][nFound[ind]++] = k2;
+			}
+			return overlaps;
+		});
+		for (boolean[] flags : removed) {
+			for (boolean flag : flags) {
+				if (flag)
+					overlappedCount++;
+			}
+		}
+		
+		// Cache the pairs which were found
+		for (int i = 0; i < nLists-1; i++) {
+			for (int j = i+1; j < nLists; j++) {
+				if (keys[i][j] != null && cachedPairs.get(i * nLists + j) == null)
+					ChannelResultCache.putOverlappingPairs(keys[i][j], Arrays.copyOf(foundPairs[i * nLists + j], nFound[i * nLists + j]));
+			}
+		}
+		
+		setRemainingObjects(removed);
+	}
+	
+	/**
+	 * Test whether two objects of different channels, with intersecting bounding boxes, overlap significantly.
+	 * @param geometries
+	 * @param overlapMatrices Overlap counts for each pair of channels when rasterising, created when first needed
+	 */
+	private boolean testOverlap(final ObjectGeometry[] geometries, final LabelOverlap.OverlapMatrix[][] overlapMatrices, final int l1, final int k1, final int l2, final int k2) {
+		if (overlapMethod != OverlapMethod.RASTER)
+				return significantOverlap(pathObjectListList.get(l1).get(k1).getROI(), pathObjectListList.get(l2).get(k2).getROI(), 
+						geometries[l1].getScaledArea(k1), geometries[l2].getScaledArea(k2));
+			if (overlapMatrices[l1][l2] == null)
+				overlapMatrices[l1][l2] = LabelOverlap.count(pathObjectListList.get(l1), pathObjectListList.get(l2), 1.0);
+			LabelOverlap.OverlapMatrix overlapMatrix = overlapMatrices[l1][l2];
+			return significantOverlap(
+					overlapMatrix.getArea1(k1) * pixelWidth * pixelHeight,
+					overlapMatrix.getArea2(k2) * pixelWidth * pixelHeight,
+					overlapMatrix.getOverlapArea(k1, k2) * pixelWidth * pixelHeight);
+	}
+	
+	/**
+	 * Get the key of the overlapping pairs of two channels in the ChannelResultCache; this depends on the detections
+	 * of both channels & on all settings used to compare them.
+	 * @param i Index of the first channel
+	 * @param j Index of the second channel
+	 * @return The key, or null if the pairs shouldn't be cached
+	 */
+	private String getOverlapCacheKey(final int i, final int j) {
+		if (!useCache || channelKeys == null)
+			return null;
+		return channelKeys.get(i) + "||" + channelKeys.get(j) + "||" + overlapResolution + "," + overlapMethod + "," + overlap + "," + maxDistance + "," + pixelWidth + "," + pixelHeight;
+	}
+	
+	/**
+	 * Checks whether the objects that were detected accross multiple channels were actually the same object.
+	 * 
+	 * The overlapping pairs are first found for every combination of two channels (and cached, if possible); 
+	 * the removals are then made by going through these pairs in the order in which they were found.
+	 */
+	private void handleOverlappingObjectsPairwise() {
 		
-		// Create new list
-		Set <PathObject> tempList = new HashSet<>(pathObjects);
+		// Read the geometry of all objects once; removed objects are flagged by their position in the list
+		int nLists = pathObjectListList.size();
+		ObjectGeometry[] geometries = new ObjectGeometry[nLists];
+		SpatialHashGrid[] grids = new SpatialHashGrid[nLists];
+		boolean[][] removed = new boolean[nLists][];
+		for (int i = 0; i < nLists; i++) {
+			geometries[i] = ObjectGeometry.create(pathObjectListList.get(i), pixelWidth, pixelHeight, "Nucleus: Area");
+			removed[i] = new boolean[pathObjectListList.get(i).size()];
+		}
 		
 		// Compare all objects in the map
-		for (int i = 0; i < pathObjectListList.size()-1; i++ ) {
-			List<PathObject> o1 = pathObjectListList.get(i);
+		for (int i = 0; i < nLists-1; i++ ) {
+			ObjectGeometry g1 = geometries[i];
 			
-			for (int j = (i+1); j < pathObjectListList.size(); j++) {
-				List<PathObject> o2 = pathObjectListList.get(j);
-								
-				// Go through the objects in the list
-				for (PathObject p1 : o1) {
-					for (PathObject p2 : o2) {
-						
-						if (!(tempList.contains(p1) && tempList.contains(p2)))
-							continue;
-						
-						// If the detections are very far apart we don't have to bother...
-						ROI r1 = p1.getROI();
-						ROI r2 = p2.getROI();
-						if ( (r2.getCentroidX() - r1.getCentroidX())*(r2.getCentroidX() - r1.getCentroidX()) + (r2.getCentroidY() - r1.getCentroidY())*(r2.getCentroidY() - r1.getCentroidY()) > maxDistance*maxDistance) {
-							continue;
-						}
-						
-						// If overlap, remove
-						if (significantOverlap(r1, r2)) {	
-							
-							// Should only keep the largest object
-							if (p1.getMeasurementList().getMeasurementValue("Nucleus: Area") > p2.getMeasurementList().getMeasurementValue("Nucleus: Area")) {
-								tempList.remove(p2);
-							}
-							else {
-								tempList.remove(p1);
-							}
-							overlappedCount++;
-						}
+			for (int j = (i+1); j < nLists; j++) {
+				ObjectGeometry g2 = geometries[j];
+				
+				// Find the overlapping pairs, unless these are known from a previous run
+				String key = getOverlapCacheKey(i, j);
+				int[] pairs = key == null ? null : ChannelResultCache.getOverlappingPairs(key);
+				if (pairs == null) {
+					if (overlapMethod != OverlapMethod.RASTER && grids[j] == null)
+						grids[j] = g2.createCentroidGrid(maxDistance);
+					if (key == null) {
+						// Nothing is cached, so the removals can be made while searching: removed objects needn't be compared
+						findOverlappingPairs(pathObjectListList.get(i), pathObjectListList.get(j), g1, g2, grids[j], removed[i], removed[j]);
+						continue;
 					}
+					// Cached pairs are reused after the other channels have changed, so these must be complete
+					pairs = findOverlappingPairs(pathObjectListList.get(i), pathObjectListList.get(j), g1, g2, grids[j], null, null);
+					ChannelResultCache.putOverlappingPairs(key, pairs);
+				}
+				
+				// Go through the overlapping pairs in order
+				for (int p = 0; p < pairs.length; p += 2) {
+					int k1 = pairs[p];
+					int k2 = pairs[p+1];
+					
+					if (removed[i][k1] || removed[j][k2])
+						continue;
+					
+					removeSmaller(g1, k1, g2, k2, removed[i], removed[j]);
 				}
 			}
 		}
 		
-		// Set the new list
-		pathObjects = new ArrayList<>(tempList);
+		setRemainingObjects(removed);
 	}
 	
 	/**
-	 * Getter for the list of detections.
-	 * @return
+	 * Flag the smaller of two overlapping objects as removed; only the largest object should be kept.
 	 */
-	public List<PathObject> getPathObjects () {
-		return pathObjects;
+	private void removeSmaller(final ObjectGeometry g1, final int k1, final ObjectGeometry g2, final int k2, final boolean[] removed1, final boolean[] removed2) {
+		if (g1.getMeasuredArea(k1) > g2.getMeasuredArea(k2)) {
+			removed2[k2] = true;
+		}
+		else {
+			removed1[k1] = true;
+		}
+		overlappedCount++;
 	}
 	
-	public int getOverlappedCount () {
-		return overlappedCount;
+	/**
+	 * Remove the flagged objects from the list of detections, keeping the order of the remaining objects.
+	 * @param removed Flags per object, for every list in pathObjectListList
+	 */
+	private void setRemainingObjects(final boolean[][] removed) {
+		Set <PathObject> removedObjects = new HashSet<>();
+		int nLists = pathObjectListList.size();
+		for (int i = 0; i < nLists; i++) {
+			List<PathObject> list = pathObjectListList.get(i);
+			for (int k = 0; k < list.size(); k++) {
+				if (removed[i][k])
+					removedObjects.add(list.get(k));
+			}
+		}
+		List<PathObject> tempList = new ArrayList<>(pathObjects.size() - removedObjects.size());
+		for (PathObject pathObject : pathObjects) {
+			if (!removedObjects.contains(pathObject))
+				tempList.add(pathObject);
+		}
+		pathObjects = tempList;
 	}
 	
 	/**
-	 * Checks whether the objects that were detected accross multiple channels were actually the same object.
+	 * Find all pairs of objects in two lists with a significant overlap.
+	 * 
+	 * Only objects with their centroid within the maximum distance (or, when rasterising, with overlapping pixels) are
+	 * candidates; these are visited in list order, so that the same objects are removed as when comparing all pairs.
 	 * 
-	 * TODO Make sure each channel is only compared against another once, this is not the case in the
-	 * current implementation...
+	 * If the removed objects are given, objects which are already removed are skipped, and the smaller object of every
+	 * overlapping pair is removed as soon as the pair is found; the pairs which are returned are then incomplete.
 	 * 
+	 * @param o1
+	 * @param o2
+	 * @param g1
+	 * @param g2
+	 * @param grid2 Grid over the centroids of o2, not used when rasterising
+	 * @param removed1 Flags of the removed objects of o1, or null to find all pairs
+	 * @param removed2 Flags of the removed objects of o2, or null to find all pairs
+	 * @return The indices of the overlapping objects in o1 and o2, as consecutive elements
 	 */
-	public void handleOverlappingObjects1() {
+	private int[] findOverlappingPairs(final List<PathObject> o1, final List<PathObject> o2, final ObjectGeometry g1, final ObjectGeometry g2, final SpatialHashGrid grid2, final boolean[] removed1, final boolean[] removed2) {
+		LabelOverlap.OverlapMatrix overlapMatrix = null;
+		if (overlapMethod == OverlapMethod.RASTER)
+			overlapMatrix = LabelOverlap.count(o1, o2, 1.0);
 		
-		// Create new list
-		Set <PathObject> tempList = new HashSet<>(pathObjects);
-		
-		// Compare all objects in the map
-		for (Integer i : pathObjectMap.keySet()) {
-			List<PathObject> o1 = pathObjectMap.get(i);
-			for (Integer j : pathObjectMap.keySet()) {
-				List<PathObject> o2 = pathObjectMap.get(j);
+		int[] pairs = new int[16];
+		int n = 0;
+		for (int k1 = 0; k1 < o1.size(); k1++) {
+			int[] candidates = overlapMatrix != null ? overlapMatrix.getOverlapping(k1) : grid2.query(g1.getCentroidX(k1), g1.getCentroidY(k1), maxDistance);
+			for (int k2 : candidates) {
 				
-				// We don't want to check channel against itself...
-				if (i.equals(j)) 
+				if (removed1 != null && (removed1[k1] || removed2[k2]))
 					continue;
 				
-				// Go through the objects in the list
-				for (PathObject p1 : o1) {
-					for (PathObject p2 : o2) {
-						
-						if (!(tempList.contains(p1) && tempList.contains(p2)))
-							continue;
-						
-						// If the detections are very far apart we don't have to bother...
-						ROI r1 = p1.getROI();
-						ROI r2 = p2.getROI();
-						if ( (r2.getCentroidX() - r1.getCentroidX())*(r2.getCentroidX() - r1.getCentroidX()) + (r2.getCentroidY() - r1.getCentroidY())*(r2.getCentroidY() - r1.getCentroidY()) > 10000 ) {
-//							tempList.add(p2);
-							continue;
-						}
-						
-						// If no overlap, add to list
-						if (significantOverlap(r1, r2)) {	
-							
-							// Should only keep the largest object
-							if (p1.getMeasurementList().getMeasurementValue("Nucleus: Area") > p2.getMeasurementList().getMeasurementValue("Nucleus: Area")) {
-								tempList.remove(p2);
-								
-								// In case of more than two channels, we have to remove the previous largest to make
-								// room for the new largest objects.
-//								if (tempList.contains(p2)) 
-//									tempList.remove(p2);
-							}
-						}
-					}
+				boolean overlaps;
+				if (overlapMatrix == null) {
+					// Objects with separate bounding boxes can't overlap
+					overlaps = (overlap < 0 || g1.boundsIntersect(k1, g2, k2)) &&
+							significantOverlap(o1.get(k1).getROI(), o2.get(k2).getROI(), g1.getScaledArea(k1), g2.getScaledArea(k2));
+				} else
+					overlaps = withinMaxDistance(g1, k1, g2, k2) && significantOverlap(
+							overlapMatrix.getArea1(k1) * pixelWidth * pixelHeight,
+							overlapMatrix.getArea2(k2) * pixelWidth * pixelHeight,
+							overlapMatrix.getOverlapArea(k1, k2) * pixelWidth * pixelHeight);
+				if (overlaps) {
+					if (n == pairs.length)
+						pairs = Arrays.copyOf(pairs, n * 2);
+					pairs[n++] = k1;
+					pairs[n++] = k2;
+					if (removed1 != null)
+						removeSmaller(g1, k1, g2, k2, removed1, removed2);
 				}
 			}
 		}
+		return Arrays.copyOf(pairs, n);
+	}
+	
+	/**
+	 * Getter for the list of detections.
+	 * @return
+	 */
+	public List<PathObject> getPathObjects () {
+		return pathObjects;
+	}
+	
+	/**
+	 * Get the number of final detections (after removing overlapping objects) that were detected in every channel.
+	 * @return The counts, mapped to the channel number
+	 */
+	public Map<Integer, Integer> getChannelCounts () {
+		Set<PathObject> remaining = new HashSet<>(pathObjects);
+		Map<Integer, Integer> counts = new LinkedHashMap<>();
+		for (Map.Entry<Integer, List<PathObject>> entry : pathObjectMap.entrySet()) {
+			int count = 0;
+			for (PathObject pathObject : entry.getValue()) {
+				if (remaining.contains(pathObject))
+					count++;
+			}
+			counts.put(entry.getKey(), count);
+		}
+		return counts;
+	}
+	
+	/**
+	 * Count the final detections (after removing overlapping objects) which overlap significantly with any object
+	 * detected in a channel, e.g. the nuclei which are positive for the marker of that channel.
+	 * Final detections of the channel itself are always counted.
+	 * @param channel
+	 * @return
+	 */
+	public int countOverlapping (final int channel) {
+		List<PathObject> channelObjects = pathObjectMap.get(channel);
+		if (channelObjects == null || channelObjects.isEmpty() || pathObjects.isEmpty())
+			return 0;
+		
+		Set<PathObject> fromChannel = new HashSet<>(channelObjects);
+		ObjectGeometry g1 = ObjectGeometry.create(pathObjects, pixelWidth, pixelHeight, "Nucleus: Area");
+		ObjectGeometry g2 = ObjectGeometry.create(channelObjects, pixelWidth, pixelHeight, "Nucleus: Area");
+		SpatialHashGrid grid2 = g2.createCentroidGrid(maxDistance);
+		int count = 0;
+		for (int k1 = 0; k1 < pathObjects.size(); k1++) {
+			PathObject pathObject = pathObjects.get(k1);
+			if (fromChannel.contains(pathObject)) {
+				count++;
+				continue;
+			}
+			for (int k2 : grid2.query(g1.getCentroidX(k1), g1.getCentroidY(k1), maxDistance)) {
+				if ((overlap < 0 || g1.boundsIntersect(k1, g2, k2)) &&
+						significantOverlap(pathObject.getROI(), channelObjects.get(k2).getROI(), g1.getScaledArea(k1), g2.getScaledArea(k2))) {
+					count++;
+					break;
+				}
+			}
+		}
+		return count;
+	}
+	
+	public int getOverlappedCount () {
+		return overlappedCount;
+	}
+	
+	/**
+	 * Set the method used to measure the overlap between objects detected in different channels.
+	 * @param overlapMethod
+	 */
+	public void setOverlapMethod (final OverlapMethod overlapMethod) {
+		this.overlapMethod = overlapMethod;
+	}
+	
+	public OverlapMethod getOverlapMethod () {
+		return overlapMethod;
+	}
+	
+	/**
+	 * Set the rule used to decide which of several overlapping objects is kept.
+	 * @param overlapResolution
+	 */
+	public void setOverlapResolution (final OverlapResolution overlapResolution) {
+		this.overlapResolution = overlapResolution;
+	}
+	
+	public OverlapResolution getOverlapResolution () {
+		return overlapResolution;
+	}
+	
+	/**
+	 * Checks whether the objects that were detected accross multiple channels were actually the same object.
+	 * 
+	 * @deprecated This compared every pair of objects within a fixed distance, and the result depended on the order 
+	 * of the channels; it now uses the sweep-line resolution, see {@link #resolveOverlappingObjects()}.
+	 */
+	@Deprecated
+	public void handleOverlappingObjects1() {
+		if (pathObjectListList == null)
+			pathObjectListList = new ArrayList<>(pathObjectMap.values());
 		
 		logger.info("Total before removing overlapping objects : " + pathObjects.size());
-		pathObjects = new ArrayList<>(tempList);
+		resolveOverlappingObjects();
 		logger.info("Total objects after removing overlapping objects : " + pathObjects.size()); 
 	}
 	
@@ -343,7 +932,30 @@ public class TunelDetectionHelper {
 				
 		double a1 = ((PathArea) r1).getScaledArea(pixelWidth, pixelHeight);
 		double a2 = ((PathArea) r2).getScaledArea(pixelWidth, pixelHeight);
+		return significantOverlap(r1, r2, a1, a2);
+	}
+	
+	/**
+	 * Decide whether there is significant overlap between two ROIs, of which the (scaled) areas are already known.
+	 * @param r1
+	 * @param r2
+	 * @param a1
+	 * @param a2
+	 * @return
+	 */
+	private boolean significantOverlap (ROI r1, ROI r2, double a1, double a2) {
 		double a3 = ((PathArea) PathROIToolsAwt.combineROIs((PathShape) r1, (PathShape) r2, PathROIToolsAwt.CombineOp.INTERSECT)).getScaledArea(pixelWidth, pixelHeight);
+		return significantOverlap(a1, a2, a3);
+	}
+	
+	/**
+	 * Decide whether there is significant overlap between two objects, given their areas and the area of their intersection.
+	 * @param a1
+	 * @param a2
+	 * @param a3
+	 * @return
+	 */
+	private boolean significantOverlap (double a1, double a2, double a3) {
 		
 		if (a3 != (a1 + a2) && a3 > overlap*(Math.min(a1, a2))) {
 //			logger.info (a3 + " > " + overlap*(Math.min(a1, a2)) + "; Min(" + a1 + ", " + a2 + ")");
@@ -353,6 +965,20 @@ public class TunelDetectionHelper {
 		return false;
 	}
 	
+	/**
+	 * Check whether the centroids of two objects are within the maximum distance of each other.
+	 * @param g1
+	 * @param k1
+	 * @param g2
+	 * @param k2
+	 * @return
+	 */
+	private boolean withinMaxDistance (ObjectGeometry g1, int k1, ObjectGeometry g2, int k2) {
+		double dx = g2.getCentroidX(k2) - g1.getCentroidX(k1);
+		double dy = g2.getCentroidY(k2) - g1.getCentroidY(k1);
+		return dx*dx + dy*dy <= maxDistance*maxDistance;
+	}
+	
 	private ParameterList parseArgument (String arg, final ImageData<BufferedImage> imageData) {
 		ParameterList params = new WatershedCellDetection2().getDefaultParameterList(imageData);
 		
@@ -366,43 +992,72 @@ public class TunelDetectionHelper {
 		return params;
 	}
 	
-//	class DetectionTask extends Task<Void> implements Callable<Void> {
-	class DetectionTask implements Callable<Void> {
+	/**
+	 * Listener for the progress of a multi-channel detection.
+	 */
+	public interface DetectionProgressListener {
+		
+		/**
+		 * Called (from the thread running the detection) when the detection in a channel has finished.
+		 * @param channel
+		 * @param nDetections Number of objects detected in the channel
+		 * @param nFinished Number of channels finished so far
+		 * @param nChannels Total number of channels
+		 */
+		void channelFinished(int channel, int nDetections, int nFinished, int nChannels);
+		
+	}
+	
+	/**
+	 * Detections in a single channel.
+	 */
+	static class ChannelResult {
+		
+		private final int channel;
+		private final List<PathObject> pathObjects;
+		
+		ChannelResult(final int channel, final List<PathObject> pathObjects) {
+			this.channel = channel;
+			this.pathObjects = pathObjects;
+		}
+		
+		public int getChannel() {
+			return channel;
+		}
+		
+		public List<PathObject> getPathObjects() {
+			return pathObjects;
+		}
+		
+	}
+	
+	/**
+	 * Detection in a single channel; the task only writes to its own result.
+	 */
+	class DetectionTask implements Callable<ChannelResult> {
 		private String arg;
 		private ImageData<BufferedImage> imageData;
-		private List<PathObject> objects;
 		private int channel;
+		private ROI roi;
 		
-		public DetectionTask(final String arg, final ImageData<BufferedImage> imageData, final int channel) {
+		public DetectionTask(final String arg, final ImageData<BufferedImage> imageData, final int channel, final ROI roi) {
 			this.arg = arg;
 			this.imageData = imageData;
 			this.channel = channel;
+			this.roi = roi;
 		}
 
 		@Override
-		public Void call() throws Exception {
-			
-			// Do the detection
-			objects = (ArrayList<PathObject>) detectChannel(arg);
-			
-			// Add the detections to the list
-			pathObjects.addAll(objects);
-			pathObjectMap.put(channel, objects);
-			
-			logger.info("Channel " + channel + " : " + objects.size() + " detections.");
-			
-			return null;
+		public ChannelResult call() throws Exception {
+			if (cancelled || Thread.currentThread().isInterrupted())
+				throw new InterruptedException("Detection in channel " + channel + " was cancelled");
+			Collection<PathObject> detections = detectChannel(arg);
+			// An interrupted detector returns the objects found so far, which must not be mistaken for a result
+			if (cancelled || Thread.currentThread().isInterrupted())
+				throw new InterruptedException("Detection in channel " + channel + " was cancelled");
+			return new ChannelResult(channel, new ArrayList<>(detections));
 		} 
 		
-//		@Override
-		public void done() {
-			if (Platform.isFxApplicationThread()) {
-				logger.info("Channel " + channel + " : " + objects.size() + " detections.");
-			}
-			else
-				Platform.runLater(() -> done());
-		}
-		
 		/**
 		 * Do a watershed nucleus detection in a certain channel.
 		 * @param arg
@@ -416,8 +1071,6 @@ public class TunelDetectionHelper {
 			WatershedCellDetection2 w = new WatershedCellDetection2();
 			WatershedCellDetection2.CellDetector cd = (CellDetector) w.createDetector(imageData, params);
 			
-			ROI roi = imageData.getHierarchy().getSelectionModel().getSelectedObject().getROI();
-			
 			Collection <PathObject> pathObjects = cd.runDetection(imageData, params, roi);
 			return pathObjects;
 		}
@@ -425,25 +1078,4 @@ public class TunelDetectionHelper {
 		
 	}
 	
-	class PluginTask implements Callable<Void> {
-		
-		private String arg;
-		
-		public PluginTask(String arg) {
-			this.arg = arg;
-		}
-
-		@Override
-		public Void call() throws Exception {
-
-			WatershedCellDetection2 w = new WatershedCellDetection2();
-			w.runPlugin(new PluginRunnerFX(QuPathGUI.getInstance(), true), arg);
-			QuPathGUI.getInstance().getImageData().getHierarchy().getObjects(pathObjects, PathDetectionObject.class);
-			
-			logger.info("Object lists size : " + pathObjects.size());
-			
-			return null;
-		}
-		
-	}
 }
\ No newline at end of file
@@ -0,0 +1,384 @@
+package qupath.lib.scripting;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.images.ImageData;
+import qupath.lib.io.PathIO;
+import qupath.lib.objects.PathAnnotationObject;
+import qupath.lib.objects.PathDetectionObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.PathArea;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Run the TUNEL detection on all images of a project, and write a summary table with the number of
+ * TUNEL-positive nuclei per image.
+ *
+ * Every image is loaded from its data file, the detection is run within each of its annotations (replacing
+ * previous detections) and the data file is written again. Several images are processed at the same time;
+ * before an image is processed, the memory needed for its annotations is estimated and reserved, so that
+ * large images are only processed together with small ones (or on their own). Images whose estimate exceeds
+ * the whole budget are still processed on their own, but with a warning, which is also noted in the summary table.
+ *
+ * @author Sam Vanmassenhove
+ *
+ */
+public class TunelProjectRunner {
+
+	private static final Logger logger = LoggerFactory.getLogger(TunelProjectRunner.class);
+
+	/**
+	 * Estimated number of float copies of every channel of a tile that are needed during the detection.
+	 */
+	private static final int WORKING_COPIES = 8;
+
+	/**
+	 * Estimated memory for the detections of every channel, per pixel of annotated area: about 1 KB per nucleus
+	 * (outline & measurements), with nuclei of a few hundred pixels covering a third of the tissue.
+	 */
+	private static final double DETECTION_BYTES_PER_PIXEL = 1.0;
+
+	private static final int MB = 1024 * 1024;
+
+	private final Project<BufferedImage> project;
+	private final List<String> args;
+	private final int tunelChannel;
+	private int maxDistance = 10;
+	private double overlap = 0.5;
+	private int nThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private double memoryFraction = 0.75;
+
+	private volatile ExecutorService pool;
+	private final Set<TunelDetectionHelper> runningHelpers = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Create a runner for all images in a project.
+	 * @param project
+	 * @param args Detection parameters, one for every channel (as for the TunelDetectionHelper)
+	 * @param tunelChannel Channel in which the TUNEL-positive nuclei are detected
+	 */
+	public TunelProjectRunner(final Project<BufferedImage> project, final List<String> args, final int tunelChannel) {
+		this.project = project;
+		this.args = args;
+		this.tunelChannel = tunelChannel;
+	}
+
+	/**
+	 * Set the maximum distance & the fraction of overlap used to decide whether detections in different channels
+	 * are the same object.
+	 * @param maxDistance
+	 * @param overlap
+	 */
+	public void setOverlapParameters (final int maxDistance, final double overlap) {
+		this.maxDistance = maxDistance;
+		this.overlap = overlap;
+	}
+
+	/**
+	 * Set the maximum number of images processed at the same time.
+	 * @param nThreads
+	 */
+	public void setNumThreads (final int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Set the fraction of the maximum heap size which may be reserved for the images being processed.
+	 * @param memoryFraction
+	 */
+	public void setMemoryFraction (final double memoryFraction) {
+		this.memoryFraction = memoryFraction;
+	}
+
+	/**
+	 * Process all images in the project which have a data file.
+	 * @param summaryFile File to which the summary is written as a tab-separated table, may be null
+	 * @return The summary of every image that was processed, in the order of the project
+	 * @throws InterruptedException If the run was cancelled
+	 */
+	public List<ImageSummary> run (final File summaryFile) throws InterruptedException {
+
+		// Only the images with a data file can contain annotations
+		List<ProjectImageEntry<BufferedImage>> entries = new ArrayList<>();
+		for (ProjectImageEntry<BufferedImage> entry : project.getImageList()) {
+			File fileData = QuPathGUI.getImageDataFile(project, entry);
+			if (fileData == null || !fileData.exists() || fileData.length() == 0) {
+				logger.info("No data file for " + entry.getImageName() + " - skipping");
+				continue;
+			}
+			entries.add(entry);
+		}
+
+		// Memory is reserved in MB, but a single image may always use all of it
+		int maxPermits = (int)Math.max(1, Runtime.getRuntime().maxMemory() * memoryFraction / MB);
+		Semaphore memory = new Semaphore(maxPermits, true);
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, entries.size())));
+		this.pool = pool;
+		List<ImageSummary> summaries = new ArrayList<>();
+		try {
+			List<Future<ImageSummary>> futures = new ArrayList<>();
+			for (ProjectImageEntry<BufferedImage> entry : entries)
+				futures.add(pool.submit(new ImageTask(entry, memory, maxPermits)));
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					ImageSummary summary = futures.get(i).get();
+					if (summary != null)
+						summaries.add(summary);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof InterruptedException)
+						throw (InterruptedException)e.getCause();
+					logger.error("Error processing " + entries.get(i).getImageName(), e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			this.pool = null;
+		}
+
+		if (summaryFile != null) {
+			try {
+				writeSummary(summaryFile, summaries);
+			} catch (IOException e) {
+				logger.error("Unable to write summary to " + summaryFile, e);
+			}
+		}
+		return summaries;
+	}
+
+	/**
+	 * Cancel a running project; images which have not started are not processed, and the detections which are
+	 * running are cancelled (without writing their data files).
+	 */
+	public void cancel () {
+		ExecutorService pool = this.pool;
+		if (pool != null)
+			pool.shutdownNow();
+		for (TunelDetectionHelper helper : runningHelpers)
+			helper.cancel();
+	}
+
+	/**
+	 * Write the summaries as a tab-separated table, with one row per image.
+	 * @param file
+	 * @param summaries
+	 * @throws IOException
+	 */
+	public static void writeSummary (final File file, final List<ImageSummary> summaries) throws IOException {
+
+		// Use the same channel columns for all images
+		Set<Integer> channels = new TreeSet<>();
+		for (ImageSummary summary : summaries)
+			channels.addAll(summary.getChannelCounts().keySet());
+
+		try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+			StringBuilder sb = new StringBuilder("Image\tAnnotations\tNuclei");
+			for (int channel : channels)
+				sb.append("\tChannel ").append(channel);
+			sb.append("\tTUNEL positive\tTUNEL positive %\tNote");
+			writer.println(sb);
+
+			for (ImageSummary summary : summaries) {
+				sb.setLength(0);
+				sb.append(summary.getImageName()).append('\t').append(summary.getNumAnnotations()).append('\t').append(summary.getNumNuclei());
+				for (int channel : channels) {
+					Integer count = summary.getChannelCounts().get(channel);
+					sb.append('\t').append(count == null ? 0 : count);
+				}
+				sb.append('\t').append(summary.getNumTunelPositive());
+				sb.append('\t').append(summary.getNumNuclei() == 0 ? "NaN" : String.format(Locale.US, "%.2f", 100.0 * summary.getNumTunelPositive() / summary.getNumNuclei()));
+				sb.append('\t').append(summary.getNote() == null ? "" : summary.getNote());
+				writer.println(sb);
+			}
+		}
+		logger.info("Summary of " + summaries.size() + " images written to " + file);
+	}
+
+	/**
+	 * Estimate the memory needed to detect nuclei in all channels of the annotations, in MB.
+	 *
+	 * The annotations are detected one after the other, tile by tile, so the working memory is that of the largest
+	 * tile (assuming full resolution); the detections of all annotations are kept until the data file is written.
+	 */
+	private static int estimateMemoryMB (final ImageData<BufferedImage> imageData, final List<PathObject> annotations) {
+		double maxTilePixels = 0;
+		double totalPixels = 0;
+		double maxTileSize = MultiChannelCellDetector.MAX_TILE_SIZE;
+		for (PathObject annotation : annotations) {
+			ROI roi = annotation.getROI();
+			maxTilePixels = Math.max(maxTilePixels, Math.min(roi.getBoundsWidth(), maxTileSize) * Math.min(roi.getBoundsHeight(), maxTileSize));
+			totalPixels += roi instanceof PathArea ? ((PathArea)roi).getArea() : roi.getBoundsWidth() * roi.getBoundsHeight();
+		}
+		int nChannels = imageData.getServer().nChannels();
+		double bytes = maxTilePixels * nChannels * 4.0 * WORKING_COPIES + totalPixels * nChannels * DETECTION_BYTES_PER_PIXEL;
+		return (int)Math.min(Integer.MAX_VALUE, Math.ceil(bytes / MB));
+	}
+
+	/**
+	 * Process a single image, and return its summary (or null if it has no annotations).
+	 */
+	class ImageTask implements Callable<ImageSummary> {
+
+		private final ProjectImageEntry<BufferedImage> entry;
+		private final Semaphore memory;
+		private final int maxPermits;
+
+		ImageTask(final ProjectImageEntry<BufferedImage> entry, final Semaphore memory, final int maxPermits) {
+			this.entry = entry;
+			this.memory = memory;
+			this.maxPermits = maxPermits;
+		}
+
+		@Override
+		public ImageSummary call() throws Exception {
+			File fileData = QuPathGUI.getImageDataFile(project, entry);
+			ImageData<BufferedImage> imageData = PathIO.readImageData(fileData, null, null, BufferedImage.class);
+			if (imageData == null)
+				throw new IOException("Unable to read " + fileData);
+
+			PathObjectHierarchy hierarchy = imageData.getHierarchy();
+			List<PathObject> annotations = hierarchy.getObjects(null, PathAnnotationObject.class);
+			if (annotations.isEmpty()) {
+				logger.info("No annotations for " + entry.getImageName() + " - skipping");
+				return null;
+			}
+
+			// Wait until there is enough memory available for this image; an image over the budget runs on its own
+			int estimate = Math.max(1, estimateMemoryMB(imageData, annotations));
+			String note = null;
+			if (estimate > maxPermits) {
+				note = String.format("Over memory budget (%d MB estimated, %d MB available)", estimate, maxPermits);
+				logger.warn(entry.getImageName() + " : " + note + " - processing it on its own");
+			}
+			int permits = Math.min(maxPermits, estimate);
+			memory.acquire(permits);
+			try {
+				ImageSummary summary = new ImageSummary(entry.getImageName(), annotations.size());
+				summary.setNote(note);
+				for (PathObject annotation : annotations) {
+					if (Thread.currentThread().isInterrupted())
+						throw new InterruptedException("Processing " + entry.getImageName() + " was cancelled");
+
+					// Replace the previous detections
+					List<PathObject> previous = hierarchy.getDescendantObjects(annotation, null, PathDetectionObject.class);
+					if (!previous.isEmpty())
+						hierarchy.removeObjects(previous, true);
+
+					TunelDetectionHelper helper = new TunelDetectionHelper(imageData, args, true, maxDistance, overlap);
+					helper.setUseCache(false);
+					runningHelpers.add(helper);
+					try {
+						if (!helper.runFusedDetection(annotation.getROI())) {
+							if (Thread.currentThread().isInterrupted() || helper.isCancelled())
+								throw new InterruptedException("Processing " + entry.getImageName() + " was cancelled");
+							throw new IOException("Detection failed for " + entry.getImageName());
+						}
+					} finally {
+						runningHelpers.remove(helper);
+					}
+					summary.add(helper.getPathObjects().size(), helper.getChannelCounts(), helper.countOverlapping(tunelChannel));
+				}
+
+				PathIO.writeImageData(fileData, imageData);
+				logger.info(entry.getImageName() + " : " + summary.getNumNuclei() + " nuclei, " + summary.getNumTunelPositive() + " TUNEL positive");
+				return summary;
+			} finally {
+				memory.release(permits);
+			}
+		}
+
+	}
+
+	/**
+	 * Number of nuclei detected in all annotations of an image.
+	 */
+	public static class ImageSummary {
+
+		private final String imageName;
+		private final int nAnnotations;
+		private int nNuclei = 0;
+		private int nTunelPositive = 0;
+		private final Map<Integer, Integer> channelCounts = new TreeMap<>();
+		private String note = null;
+
+		ImageSummary(final String imageName, final int nAnnotations) {
+			this.imageName = imageName;
+			this.nAnnotations = nAnnotations;
+		}
+
+		private void add(final int nNuclei, final Map<Integer, Integer> channelCounts, final int nTunelPositive) {
+			this.nNuclei += nNuclei;
+			for (Map.Entry<Integer, Integer> entry : channelCounts.entrySet())
+				this.channelCounts.merge(entry.getKey(), entry.getValue(), Integer::sum);
+			this.nTunelPositive += nTunelPositive;
+		}
+
+		private void setNote(final String note) {
+			this.note = note;
+		}
+
+		public String getImageName() {
+			return imageName;
+		}
+
+		public int getNumAnnotations() {
+			return nAnnotations;
+		}
+
+		public int getNumNuclei() {
+			return nNuclei;
+		}
+
+		/**
+		 * Get the number of nuclei (kept after removing overlapping objects) which overlap with a detection in the TUNEL channel;
+		 * a nucleus that was also detected in the TUNEL channel is positive, whichever channel its detection was kept from.
+		 * @return
+		 */
+		public int getNumTunelPositive() {
+			return nTunelPositive;
+		}
+
+		/**
+		 * Get the number of nuclei per channel.
+		 * @return
+		 */
+		public Map<Integer, Integer> getChannelCounts() {
+			return Collections.unmodifiableMap(channelCounts);
+		}
+
+		/**
+		 * Get a note about the processing of the image, e.g. when it was over the memory budget.
+		 * @return The note, or null if there is none
+		 */
+		public String getNote() {
+			return note;
+		}
+
+	}
+
+}
@@ -66,6 +66,7 @@ import qupath.imagej.processing.RegionalExtrema;
 import qupath.imagej.processing.SimpleThresholding;
 import qupath.imagej.processing.Watershed;
 import qupath.imagej.wrappers.PixelImageIJ;
+import qupath.lib.algorithms.WatershedCellEngine;
 import qupath.lib.analysis.algorithms.SimpleImage;
 import qupath.lib.analysis.stats.RunningStatistics;
 import qupath.lib.analysis.stats.StatisticsHelper;
@@ -319,7 +320,8 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 					fpDetection = channels.get("Channel 1");
 				}
 			}
-			WatershedCellDetector detector2 = new WatershedCellDetector(fpDetection, channels, channelsCell, roi, pathImage);
+			WatershedCellEngine detector2 = new WatershedCellEngine(fpDetection, channels, channelsCell, roi, pathImage);
+			detector2.setSeedStage(WatershedCellEngine.Seeds.OTSU);
 			
 			// Create or reset the PathObjects list
 			if (pathObjects == null)
@@ -445,546 +447,6 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 	
 	
 	
-	static class WatershedCellDetector {
-		
-		
-		private boolean refineBoundary = true; // TODO: Consider making this variable accessible
-		
-		
-		private double backgroundRadius = 15;
-		private double maxBackground = 0.3;
-		
-		private int z = 0, t = 0;
-		
-		private boolean lastRunCompleted = false;
-		
-		private boolean includeNuclei = true;
-		private double cellExpansion = 0;
-		
-		private double minArea = 0;
-		private double maxArea = 0;
-		
-		private double medianRadius = 2;
-		private double sigma = 2.5;
-		private double threshold = 0.3;
-		private boolean mergeAll = true;
-		private boolean watershedPostProcess = true; // TODO: COMBINE WITH MERGEALL OPTION
-		private boolean excludeDAB = false;
-		private boolean smoothBoundaries = false;
-
-//		private boolean limitExpansionByNucleusSize = false;
-
-		private boolean makeMeasurements = true;
-		
-		private Roi roi = null;
-		private FloatProcessor fpDetection = null;
-		private Map<String, FloatProcessor> channels = new LinkedHashMap<>(); // Map of channels to measure for nuclei only, and their names
-		private Map<String, FloatProcessor> channelsCell = new LinkedHashMap<>(); // Map of channels to measure for cell/cytoplasm, and their names
-		private ImageProcessor ipToMeasure = null;
-		private List<PolygonRoi> rois = null;
-		private ByteProcessor bpLoG = null;
-		
-		private List<PolygonRoi> roisNuclei = new ArrayList<>();
-		private List<PathObject> pathObjects = new ArrayList<>();
-		
-		private PathImage<ImagePlus> pathImage = null;
-		
-		public WatershedCellDetector(FloatProcessor fpDetection, Map<String, FloatProcessor> channels, Map<String, FloatProcessor> channelsCell, Roi roi, PathImage<ImagePlus> pathImage) {
-			this.fpDetection = fpDetection;
-			if (channels != null)
-				this.channels.putAll(channels);
-			if (channelsCell != null)
-				this.channelsCell.putAll(channelsCell);
-			this.roi = roi;
-			this.pathImage = pathImage;
-			Prefs.setThreads(1);
-		}
-		
-		
-		
-		public static ByteProcessor limitedOpeningByReconstruction(final ImageProcessor ip, final ImageProcessor ipBackground, final double radius, final double maxBackground) {
-			// Apply (initial) morphological opening
-			final RankFilters rf = new RankFilters();
-			ipBackground.setRoi(ip.getRoi());
-			rf.rank(ipBackground, radius, RankFilters.MIN);
-			
-			// Mask out any above-threshold background pixels & their surroundings
-			ByteProcessor bpMask = null;
-			if (!Double.isNaN(maxBackground) && maxBackground > 0) {
-				int w = ip.getWidth();
-				int h = ip.getHeight();
-				for (int i = 0; i < w * h; i++) {
-					if (ipBackground.getf(i) > maxBackground) {
-						if (bpMask == null)
-							bpMask = new ByteProcessor(w, h);
-						bpMask.setf(i, 1f);
-					}
-				}
-				// Apply mask if required
-				if (bpMask != null) {
-					rf.rank(bpMask, radius*2, RankFilters.MAX);
-					for (int i = 0; i < w * h; i++) {
-						if (bpMask.getf(i) != 0f) {
-							ipBackground.setf(i, Float.NEGATIVE_INFINITY);
-						}
-					}
-				}
-			}
-			
-			// Apply the morphological reconstruction
-			MorphologicalReconstruction.morphologicalReconstruction(ipBackground, ip);
-			return bpMask;
-		}
-		
-		
-		
-		private void doDetection(boolean regenerateROIs) {
-			int width = fpDetection.getWidth();
-			int height = fpDetection.getHeight();
-//			Prefs.setThreads(1);
-			lastRunCompleted = false;
-			pathObjects.clear();
-			ByteProcessor bp = null;
-			ByteProcessor bpBackgroundMask = null;
-			fpDetection.setRoi(roi);
-			if (regenerateROIs) {
-				rois = null;
-				bpLoG = null;
-				
-				// Use Laplacian of Gaussian filtering followed by watershed transform to determine possible nucleus segments
-				// Result will be a dramatic over-segmentation...
-				FloatProcessor fpLoG = (FloatProcessor)fpDetection.duplicate();
-
-				// Start off with a median filter to reduce texture, if necessary
-				RankFilters rf = new RankFilters();
-				if (medianRadius > 0)
-					rf.rank(fpLoG, medianRadius, RankFilters.MEDIAN);
-
-				//--------NEW--------
-				if (excludeDAB && channels.containsKey("Hematoxylin OD") && channels.containsKey("DAB OD")) {
-					// If we are avoiding DAB, set pixels away from potential nuclei to zero
-					FloatProcessor fpDAB = channels.get("DAB OD");
-					fpDAB.setRoi(roi);
-					ByteProcessor bpH = SimpleThresholding.greaterThanOrEqual(channels.get("Hematoxylin OD"), fpDAB);
-					bpH.multiply(1.0/255.0);
-					rf.rank(bpH, 2.5, RankFilters.MEDIAN);
-					rf.rank(bpH, 2.5, RankFilters.MAX);
-					fpLoG.copyBits(bpH, 0, 0, Blitter.MULTIPLY);
-				}
-				//--------END_NEW--------
-				
-				// Subtract background first, if needed
-				if (backgroundRadius > 0) {
-					ImageProcessor ipBackground = fpLoG.duplicate();
-					bpBackgroundMask = limitedOpeningByReconstruction(fpLoG, ipBackground, backgroundRadius, maxBackground);
-					fpLoG.copyBits(ipBackground, 0, 0, Blitter.SUBTRACT);
-					ipToMeasure = fpLoG.duplicate();
-				} else {
-					ipToMeasure = fpDetection;
-				}
-				
-				// Apply (approximation of) Laplacian of Gaussian filter
-				fpLoG.blurGaussian(sigma);
-				fpLoG.convolve(new float[]{0, -1, 0, -1, 4, -1, 0, -1, 0}, 3, 3);
-				
-				// Threshold the main LoG image
-				//bpLoG = SimpleThresholding.thresholdAbove(fpLoG, 0f);
-				
-				AutoThresholder at = new AutoThresholder();
-				int t = at.getThreshold(AutoThresholder.Method.Otsu, fpLoG.getHistogram(256));
-				bpLoG = SimpleThresholding.thresholdAbove(fpLoG, t);
-				
-				// Need to set the threshold very slightly above zero for ImageJ
-				// TODO: DECIDE ON USING MY WATERSHED OR IMAGEJ'S....
-				fpLoG.setRoi(roi);
-				
-				ImageProcessor ipTemp = RegionalExtrema.findRegionalMaxima(fpLoG, 0.001f, false);
-				ImageProcessor ipLabels = ROILabeling.labelImage(ipTemp, 0, false);
-				Watershed.doWatershed(fpLoG, ipLabels, 0, false);
-				
-				ipLabels.setThreshold(0.5, Double.POSITIVE_INFINITY, ImageProcessor.NO_LUT_UPDATE);
-				// TODO: Consider 4/8 connectivity for watershed nucleus ROIs
-				rois = ROILabeling.getFilledPolygonROIs(ipLabels, Wand.FOUR_CONNECTED);			
-				
-				if (Thread.currentThread().isInterrupted())
-					return;
-			} 
-			
-			if (bp == null)
-				bp = new ByteProcessor(width, height);	
-			
-//			// TODO: Consider application of an automated threshold
-//			if (threshold < 0) {
-//				ipToMeasure.resetRoi();
-//				ImageStatistics stats = ipToMeasure.getStatistics();
-//				threshold = stats.mean;// + stats.stdDev;
-//				logger.info("Mean threshold set: " + threshold);
-//			}
-
-			bp.setValue(255);
-			for (Roi r : rois) {
-				// Perform mean intensity check - skip if below threshold
-				ipToMeasure.setRoi(r);
-				double mean = ipToMeasure.getStatistics().mean;
-				if (mean <= threshold) {
-					continue;
-				}
-				// Perform background intensity check, if required
-				if (bpBackgroundMask != null) {
-					bpBackgroundMask.setRoi(r);
-					if (bpBackgroundMask.getStatistics().mean > 0)
-						continue;				
-				}
-				// Fill the ROI to keep it
-				bp.fill(r);
-			}
-			
-			if (Thread.currentThread().isInterrupted())
-				return;
-			
-			// Create a new, updated binary image with the potential nucleus regions & (optionally) merge these
-			bp.setThreshold(127, Double.POSITIVE_INFINITY, ImageProcessor.NO_LUT_UPDATE);
-			if (mergeAll) {
-				bp.filter(ImageProcessor.MAX);
-				bp.copyBits(bpLoG, 0, 0, Blitter.AND);	
-				if (watershedPostProcess) {
-					// TODO: ARRANGE A MORE EFFICIENT FILL HOLES
-					List<PolygonRoi> rois2 = ROILabeling.getFilledPolygonROIs(bp, Wand.FOUR_CONNECTED);
-					bp.setValue(255);
-					for (Roi r : rois2)
-						bp.fill(r);
-					new EDM().toWatershed(bp);
-				}
-			}
-			// TODO: Look at the better boundary clearing implemented in Fast_nucleus_counts
-			if (roi != null)
-				ROILabeling.clearOutside(bp, roi);
-			
-			// Locate nucleus ROIs
-			bp.setThreshold(127, Double.POSITIVE_INFINITY, ImageProcessor.NO_LUT_UPDATE);
-			
-			
-			if (IJ.debugMode) {
-				IJTools.quickShowImage("Binary", bp.duplicate());
-			}
-
-			//----------------------------
-			// MINOR BOUNDARY REFINEMENT
-			// The idea is that Gaussian smoothing tends to cause the boundaries of 'thin' nuclei to be overestimated;
-			// this uses a smaller filter to correct instances where the boundary has moved by just one pixel
-			if (refineBoundary && sigma > 1.5) {
-				FloatProcessor fpBoundaryCleanup = (FloatProcessor)fpDetection.duplicate();
-				fpBoundaryCleanup.blurGaussian(1);
-				fpBoundaryCleanup.convolve(new float[]{0, -1, 0, -1, 4, -1, 0, -1, 0}, 3, 3);
-				ByteProcessor bp2 = SimpleThresholding.thresholdAbove(fpBoundaryCleanup, 0f);
-				bp2.copyBits(bp, 0, 0, Blitter.MIN); // Remove everything not detected in bp
-				bp.filter(ByteProcessor.MIN);
-				bp.copyBits(bp2, 0, 0, Blitter.MAX);
-				regenerateROIs = true;
-			}
-			
-			//----------------------------
-			
-			roisNuclei = ROILabeling.getFilledPolygonROIs(bp, Wand.FOUR_CONNECTED);
-
-			if (Thread.currentThread().isInterrupted())
-				return;
-			
-			// Remove nuclei with areas outside the permitted range - updating the binary image as we go
-			if (minArea > 0 || maxArea > 0) {
-				bp.setValue(0);
-				Iterator<PolygonRoi> iter = roisNuclei.iterator();
-				while (iter.hasNext()) {
-					Roi roiTemp = iter.next();
-					ipToMeasure.setRoi(roiTemp);
-					ImageStatistics stats = ImageStatistics.getStatistics(ipToMeasure, Measurements.AREA | Measurements.MEAN, null);
-					double area = stats.pixelCount;
-					if ((stats.mean < threshold) || (minArea > 0 && area < minArea) || (maxArea > 0 && area > maxArea)) {
-						iter.remove();
-						bp.fill(roiTemp);
-					}
-				}
-				ipToMeasure.resetRoi();
-			}
-			
-			
-			// Label nuclei
-			ShortProcessor ipLabels = new ShortProcessor(width, height);
-			ROILabeling.labelROIs(ipLabels, roisNuclei);
-			
-			// Measure nuclei for all required channels
-			Map<String, List<RunningStatistics>> statsMap = new LinkedHashMap<>();
-			if (makeMeasurements) {
-				SimpleImage imgLabels = new PixelImageIJ(ipLabels);
-				for (String key : channels.keySet()) {
-					List<RunningStatistics> statsList = StatisticsHelper.createRunningStatisticsList(roisNuclei.size());
-					StatisticsHelper.computeRunningStatistics(new PixelImageIJ(channels.get(key)), imgLabels, statsList);
-					statsMap.put(key, statsList);
-				}
-			}
-			
-			if (Thread.currentThread().isInterrupted())
-				return;
-
-			
-			// Create nucleus objects
-			// TODO: Set the measurement capacity to improve efficiency
-			List<PathObject> nucleiObjects = new ArrayList<>();
-			Calibration cal = pathImage.getImage().getCalibration();
-			for (int i = 0; i < roisNuclei.size(); i++) {
-				PolygonRoi rOrig = roisNuclei.get(i);
-				
-				PolygonRoi r = rOrig;
-				if (smoothBoundaries)
-					r = new PolygonRoi(rOrig.getInterpolatedPolygon(Math.min(2.5, rOrig.getNCoordinates()*0.1), true), Roi.POLYGON);
-				
-				PolygonROI pathROI = ROIConverterIJ.convertToPolygonROI(r, cal, pathImage.getDownsampleFactor(), 0, z, t);
-				
-				if (smoothBoundaries) {
-					pathROI = ShapeSimplifier.simplifyPolygon(pathROI, pathImage.getDownsampleFactor()/4.0);
-				}
-				
-				// Create a new shared measurement list
-				MeasurementList measurementList = MeasurementListFactory.createMeasurementList(makeMeasurements ? 30 : 0, MeasurementList.TYPE.FLOAT);
-				
-				if (makeMeasurements) {
-					ObjectMeasurements.addShapeStatistics(measurementList, r, fpDetection, cal, "Nucleus: ");
-	
-					for (String key : channels.keySet()) {
-						List<RunningStatistics> statsList = statsMap.get(key);
-						RunningStatistics stats = statsList.get(i);
-						measurementList.addMeasurement("Nucleus: " + key + " mean", stats.getMean());
-						measurementList.addMeasurement("Nucleus: " + key + " sum", stats.getSum());
-						measurementList.addMeasurement("Nucleus: " + key + " std dev", stats.getStdDev());
-						measurementList.addMeasurement("Nucleus: " + key + " max", stats.getMax());
-						measurementList.addMeasurement("Nucleus: " + key + " min", stats.getMin());
-						measurementList.addMeasurement("Nucleus: " + key + " range", stats.getRange());
-					}
-				}
-				
-				// TODO: It would be more efficient to measure the hematoxylin intensities along with the shapes
-				PathObject pathObject = new PathDetectionObject(pathROI, null, measurementList);
-				nucleiObjects.add(pathObject);
-
-			}
-			
-			if (Thread.currentThread().isInterrupted())
-				return;
-
-			List<Roi> roisCellsList = null;
-			
-			// Optionally expand the nuclei to become cells
-			if (cellExpansion > 0) {
-				FloatProcessor fpEDM = new EDM().makeFloatEDM(bp, (byte)255, false);
-				fpEDM.multiply(-1);
-				
-				double cellExpansionThreshold = -cellExpansion;
-				
-				// Create cell ROIs
-				ImageProcessor ipLabelsCells = ipLabels.duplicate();
-				Watershed.doWatershed(fpEDM, ipLabelsCells, cellExpansionThreshold, false);
-				PolygonRoi[] roisCells = ROILabeling.labelsToFilledROIs(ipLabelsCells, roisNuclei.size());
-				
-				// Compute cell DAB stats
-				Map<String, List<RunningStatistics>> statsMapCell = new LinkedHashMap<>();
-				if (makeMeasurements) {
-					for (String key : channelsCell.keySet()) {
-						List<RunningStatistics> statsList = StatisticsHelper.createRunningStatisticsList(roisNuclei.size());
-						StatisticsHelper.computeRunningStatistics(new PixelImageIJ(channelsCell.get(key)), new PixelImageIJ(ipLabelsCells), statsList);
-						statsMapCell.put(key, statsList);
-					}
-				}
-							
-				// Create labelled image for cytoplasm, i.e. remove all nucleus pixels
-				// TODO: Make a buffer zone between nucleus and cytoplasm!
-				for (int i = 0; i < ipLabels.getWidth() * ipLabels.getHeight(); i++) {
-					if (ipLabels.getf(i) != 0)
-						ipLabelsCells.setf(i, 0f);
-				}
-				
-				// Compute cytoplasm stats
-				Map<String, List<RunningStatistics>> statsMapCytoplasm = new LinkedHashMap<>();
-				if (makeMeasurements) {
-					for (String key : channelsCell.keySet()) {
-						List<RunningStatistics> statsList = StatisticsHelper.createRunningStatisticsList(roisNuclei.size());
-						StatisticsHelper.computeRunningStatistics(new PixelImageIJ(channelsCell.get(key)), new PixelImageIJ(ipLabelsCells), statsList);
-						statsMapCytoplasm.put(key, statsList);
-					}
-				}
-				
-				
-				// Create cell objects
-				roisCellsList = new ArrayList<>(roisCells.length); // In case we need texture measurements, store all cell ROIs
-				for (int i = 0; i < roisCells.length; i++) {
-					PolygonRoi r = roisCells[i];
-					if (r == null)
-						continue;
-					if (smoothBoundaries)
-						r = new PolygonRoi(r.getInterpolatedPolygon(Math.min(2.5, r.getNCoordinates()*0.1), false), Roi.POLYGON); // TODO: Check this smoothing - it can be troublesome, causing nuclei to be outside cells
-//						r = smoothPolygonRoi(r);
-
-					PolygonROI pathROI = ROIConverterIJ.convertToPolygonROI(r, pathImage.getImage().getCalibration(), pathImage.getDownsampleFactor(), 0, z, t);
-					if (smoothBoundaries)
-						pathROI = ShapeSimplifier.simplifyPolygon(pathROI, pathImage.getDownsampleFactor()/4.0);
-
-					
-					MeasurementList measurementList = null;
-					PathObject nucleus = null;
-					if (includeNuclei) {
-						// Use the nucleus' measurement list
-						nucleus = nucleiObjects.get(i);
-						measurementList = nucleus.getMeasurementList();					
-					} else {
-						// Create a new measurement list
-						measurementList = MeasurementListFactory.createMeasurementList(makeMeasurements ? 12 : 0, MeasurementList.TYPE.GENERAL);
-					}
-									
-					// Add cell shape measurements
-					if (makeMeasurements) {
-						ObjectMeasurements.addShapeStatistics(measurementList, r, fpDetection, pathImage.getImage().getCalibration(), "Cell: ");
-	//					ObjectMeasurements.computeShapeStatistics(pathObject, pathImage, fpH, pathImage.getImage().getCalibration());
-	
-						// Add cell measurements
-						for (String key : channelsCell.keySet()) {
-							if (statsMapCell.containsKey(key)) {
-								RunningStatistics stats = statsMapCell.get(key).get(i);
-								measurementList.addMeasurement("Cell: " + key + " mean", stats.getMean());
-								measurementList.addMeasurement("Cell: " + key + " std dev", stats.getStdDev());
-								measurementList.addMeasurement("Cell: " + key + " max", stats.getMax());
-								measurementList.addMeasurement("Cell: " + key + " min", stats.getMin());
-		//						pathObject.addMeasurement("Cytoplasm: " + key + " range", stats.getRange());
-							}
-						}
-							
-							// Add cytoplasm measurements
-						for (String key : channelsCell.keySet()) {
-							if (statsMapCytoplasm.containsKey(key)) {
-								RunningStatistics stats = statsMapCytoplasm.get(key).get(i);
-								measurementList.addMeasurement("Cytoplasm: " + key + " mean", stats.getMean());
-								measurementList.addMeasurement("Cytoplasm: " + key + " std dev", stats.getStdDev());
-								measurementList.addMeasurement("Cytoplasm: " + key + " max", stats.getMax());
-								measurementList.addMeasurement("Cytoplasm: " + key + " min", stats.getMin());
-		//						pathObject.addMeasurement("Cytoplasm: " + key + " range", stats.getRange());
-							}
-						}
-						
-						// Add nucleus area ratio, if available
-						if (nucleus != null && nucleus.getROI() instanceof PathArea) {
-							double nucleusArea = ((PathArea)nucleus.getROI()).getArea();
-							double cellArea = pathROI.getArea();
-							measurementList.addMeasurement("Nucleus/Cell area ratio", Math.min(nucleusArea / cellArea, 1.0));
-	//						measurementList.addMeasurement("Nucleus/Cell expansion", cellArea - nucleusArea);
-						}
-					}
-
-					
-					// Create & store the cell object
-					PathObject pathObject = new PathCellObject(pathROI, nucleus == null ? null : nucleus.getROI(), null, measurementList);
-					pathObjects.add(pathObject);
-					
-					roisCellsList.add(r);
-				}
-			} else {
-				pathObjects.addAll(nucleiObjects);
-			}
-			
-			// Close the measurement lists
-			for (PathObject pathObject : pathObjects)
-				pathObject.getMeasurementList().closeList();
-			
-			lastRunCompleted = true;
-		}
-		
-		
-		
-		
-		private static PolygonRoi smoothPolygonRoi(PolygonRoi r) {
-			FloatPolygon poly = r.getFloatPolygon();
-			FloatPolygon poly2 = new FloatPolygon();
-			int nPoints = poly.npoints;
-			for (int i = 0; i < nPoints; i += 2) {
-				int iMinus = (i + nPoints - 1) % nPoints;
-				int iPlus = (i + 1) % nPoints;
-				poly2.addPoint((poly.xpoints[iMinus] + poly.xpoints[iPlus] + poly.xpoints[i])/3, 
-						(poly.ypoints[iMinus] + poly.ypoints[iPlus] + poly.ypoints[i])/3);
-			}
-//			return new PolygonRoi(poly2, r.getType());
-			return new PolygonRoi(poly2, Roi.POLYGON);
-		}
-		
-		
-		
-		public List<PathObject> getPathObjects() {
-			return pathObjects;
-		}
-		
-		
-//		public void runDetection(double backgroundRadius, double maxBackground, double medianRadius, double sigma, double threshold, double minArea, double maxArea, boolean mergeAll, boolean watershedPostProcess, boolean excludeDAB, double cellExpansion, boolean limitExpansionByNucleusSize, boolean smoothBoundaries, boolean includeNuclei, boolean makeMeasurements) {
-		public void runDetection(double backgroundRadius, double maxBackground, double medianRadius, double sigma, double threshold, double minArea, double maxArea, boolean mergeAll, boolean watershedPostProcess, boolean excludeDAB, double cellExpansion, boolean smoothBoundaries, boolean includeNuclei, boolean makeMeasurements, int z, int t) {
-			
-			boolean updateNucleusROIs = rois == null || bpLoG == null;
-			updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.medianRadius != medianRadius;
-			this.medianRadius = medianRadius;
-			
-			updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.t != t || this.z != z;
-			this.z = z;
-			this.t = t;
-			
-			updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.backgroundRadius != backgroundRadius;
-			this.backgroundRadius = backgroundRadius;
-
-			updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.sigma != sigma;
-			this.sigma = sigma;
-			
-			updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.excludeDAB != excludeDAB;
-			this.excludeDAB = excludeDAB;
-
-			boolean updateAnything = updateNucleusROIs || !lastRunCompleted;
-
-			updateAnything = updateAnything ? updateAnything : this.minArea != minArea;
-			this.minArea = minArea;
-
-			updateAnything = updateAnything ? updateAnything : this.maxArea != maxArea;
-			this.maxArea = maxArea;
-
-			updateAnything = updateAnything ? updateAnything : this.maxBackground != maxBackground;
-			this.maxBackground = maxBackground;
-
-			updateAnything = updateAnything ? updateAnything : this.threshold != threshold;
-			this.threshold = threshold;
-
-			updateAnything = updateAnything ? updateAnything : this.mergeAll != mergeAll;
-			this.mergeAll = mergeAll;
-
-			updateAnything = updateAnything ? updateAnything : this.watershedPostProcess != watershedPostProcess;
-			this.watershedPostProcess = watershedPostProcess;
-
-			updateAnything = updateAnything ? updateAnything : this.cellExpansion != cellExpansion;
-			this.cellExpansion = cellExpansion;
-			
-			updateAnything = updateAnything ? updateAnything : this.smoothBoundaries != smoothBoundaries;
-			this.smoothBoundaries = smoothBoundaries;
-			
-			updateAnything = updateAnything ? updateAnything : this.includeNuclei != includeNuclei;
-			this.includeNuclei = includeNuclei;
-			
-			updateAnything = updateAnything ? updateAnything : this.makeMeasurements != makeMeasurements;
-			this.makeMeasurements = makeMeasurements;
-			
-//			updateAnything = updateAnything ? updateAnything : this.limitExpansionByNucleusSize != limitExpansionByNucleusSize;
-//			this.limitExpansionByNucleusSize = limitExpansionByNucleusSize;
-			
-//			if (!updateAnything)
-//				return;
-			
-			doDetection(updateNucleusROIs);
-			
-		}
-		
-		
-	}
-	
-	
 	@Override
 	public String getDescription() {
 		return "Default cell detection algorithm for brightfield images with nuclear or cytoplasmic staining";
@@ -27,10 +27,11 @@ import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,7 +43,6 @@ import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.gui.Wand;
 import ij.measure.Calibration;
-import ij.measure.Measurements;
 import ij.plugin.filter.EDM;
 import ij.plugin.filter.RankFilters;
 import ij.process.AutoThresholder;
@@ -52,7 +52,6 @@ import ij.process.ColorProcessor;
 import ij.process.FloatPolygon;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 import qupath.imagej.color.ColorDeconvolutionIJ;
 import qupath.imagej.helpers.IJTools;
@@ -65,6 +64,8 @@ import qupath.imagej.processing.RegionalExtrema;
 import qupath.imagej.processing.SimpleThresholding;
 import qupath.imagej.processing.Watershed;
 import qupath.imagej.wrappers.PixelImageIJ;
+import qupath.lib.algorithms.FilterBackend;
+import qupath.lib.algorithms.WatershedCellEngine;
 import qupath.lib.analysis.algorithms.SimpleImage;
 import qupath.lib.analysis.stats.RunningStatistics;
 import qupath.lib.analysis.stats.StatisticsHelper;
@@ -133,11 +134,17 @@ public class WatershedCellDetection2 extends AbstractTileableDetectionPlugin<Buf
 
 	transient private CellDetector detector;
 	
+	transient private TiledDetectionRun tiledRun;
+	
 	private final static Logger logger = LoggerFactory.getLogger(WatershedCellDetection.class);
 	
 	static String IMAGE_OPTICAL_DENSITY = "Optical density sum";
 	static String IMAGE_HEMATOXYLIN = "Hematoxylin OD";
 	
+	static String FILTERS_IMAGEJ = "ImageJ";
+	static String FILTERS_OPENCV = "OpenCV";
+	static String FILTERS_OPENCV_CHECKED = "OpenCV (check against ImageJ)";
+	
 	ParameterList params;
 	
 	
@@ -217,6 +224,10 @@ public class WatershedCellDetection2 extends AbstractTileableDetectionPlugin<Buf
 				"Smooth the detected nucleus/cell boundaries");
 		params.addBooleanParameter("makeMeasurements", "Make measurements", true,
 				"Add default shape & intensity measurements during detection");
+		params.addChoiceParameter("filterBackend", "Filters", FILTERS_IMAGEJ, Arrays.asList(FILTERS_IMAGEJ, FILTERS_OPENCV, FILTERS_OPENCV_CHECKED),
+				"Implementation of the detection filters - OpenCV is multithreaded, the check also runs ImageJ (at twice the cost), and logs a warning where they differ by more than 1% of the ImageJ range");
+		params.addBooleanParameter("checkpointTiles", "Checkpoint tiles", false,
+				"Save the detections of every completed tile next to the image data, so that an interrupted run with the same parameters resumes where it stopped");
 	}
 	
 	
@@ -232,6 +243,20 @@ public class WatershedCellDetection2 extends AbstractTileableDetectionPlugin<Buf
 //		private ColorDeconvolutionStains stains;
 		
 		private boolean nucleiClassified = false;
+		
+		private final TiledDetectionRun tiledRun;
+		
+		CellDetector() {
+			this(null);
+		}
+		
+		/**
+		 * @param tiledRun Run shared by the detectors of all tiles, used to remove duplicates on the tile seams
+		 * 					& to resume an interrupted run from the checkpoints of completed tiles; may be null
+		 */
+		CellDetector(final TiledDetectionRun tiledRun) {
+			this.tiledRun = tiledRun;
+		}
 	
 			
 		public static double getPreferredPixelSizeMicrons(ImageData<BufferedImage> imageData, ParameterList params) {
@@ -246,6 +271,20 @@ public class WatershedCellDetection2 extends AbstractTileableDetectionPlugin<Buf
 			// TODO: Give a sensible error
 			if (pathROI == null)
 				return null;
+			
+			// Create or reset the PathObjects list
+			if (pathObjects == null)
+				pathObjects = new ArrayList<>();
+			else
+				pathObjects.clear();
+			
+			Supplier<List<PathObject>> detection = () -> detectTile(imageData, params, pathROI);
+			pathObjects.addAll(tiledRun == null ? detection.get() : tiledRun.detectTile(pathROI, detection));
+					
+			return pathObjects;
+		}
+		
+		private List<PathObject> detectTile(final ImageData<BufferedImage> imageData, final ParameterList params, final ROI pathROI) {
 			// Get a PathImage if we have a new ROI
 //			boolean imageChanged = false;
 			PathImage<ImagePlus> pathImage = null;
@@ -257,74 +296,38 @@ public class WatershedCellDetection2 extends AbstractTileableDetectionPlugin<Buf
 				this.pathROI = pathROI;
 //				imageChanged = true;
 			}
-			// Create a detector if we don't already have one for this image
-			boolean isBrightfield = imageData.isBrightfield();
-			//			if (detector2 == null || imageChanged || stains != imageData.getColorDeconvolutionStains()) {
-			//			if (imageChanged || stains != imageData.getColorDeconvolutionStains()) {
-			ImageProcessor ip = pathImage.getImage().getProcessor();
-			FloatProcessor fpDetection = null;
-			ColorDeconvolutionStains stains = imageData.getColorDeconvolutionStains();
-			Map<String, FloatProcessor> channels = new LinkedHashMap<>();
-			Map<String, FloatProcessor> channelsCell = new LinkedHashMap<>();
-			Roi roi = null;
-			if (pathROI != null)
-				roi = ROIConverterIJ.convertToIJRoi(pathROI, pathImage);
-			if (ip instanceof ColorProcessor && stains != null && isBrightfield) {
-				FloatProcessor[] fps = ColorDeconvolutionIJ.colorDeconvolve((ColorProcessor)ip, stains.getStain(1), stains.getStain(2), stains.getStain(3));
-				channels.put("Hematoxylin OD",  fps[0]);
-				if (stains.isH_DAB()) {
-					channels.put("DAB OD", fps[1]);
-					channelsCell.put("DAB OD", fps[1]);
-				}
-				else if (stains.isH_E()) {
-					channels.put("Eosin OD", fps[1]);
-					channelsCell.put("Eosin OD", fps[1]);
-				}
-
-				if (!params.getParameters().get("detectionImageBrightfield").isHidden()) {
-					if (params.getChoiceParameterValue("detectionImageBrightfield").equals(IMAGE_OPTICAL_DENSITY))
-						fpDetection = ColorDeconvolutionIJ.convertToOpticalDensitySum((ColorProcessor)ip, stains.getMaxRed(), stains.getMaxGreen(), stains.getMaxBlue());
-					else
-						fpDetection = (FloatProcessor)fps[0].duplicate();
-				}
-				
-				// Temporary test of the usefulness of RGB measurements...
-//				channels.put("Red", ((ColorProcessor)ip).toFloat(0, null));
-//				channels.put("Green", ((ColorProcessor)ip).toFloat(1, null));
-//				channels.put("Blue", ((ColorProcessor)ip).toFloat(2, null));
-				
-			} //else {
-			if (fpDetection == null) {
-				if (ip instanceof ColorProcessor) {
-					channels.put("Channel 1", ((ColorProcessor)ip).toFloat(0, null));
-					channels.put("Channel 2", ((ColorProcessor)ip).toFloat(1, null));
-					channels.put("Channel 3", ((ColorProcessor)ip).toFloat(2, null));
-				} else {
-					ImagePlus imp = pathImage.getImage();
-					for (int c = 1; c <= imp.getNChannels(); c++) {
-						channels.put("Channel " + c, imp.getStack().getProcessor(imp.getStackIndex(c, 0, 0)).convertToFloatProcessor());
-					}
-				}
-				// For fluorescence, measure everything
-				channelsCell.putAll(channels);
-				
-				// TODO: Deal with fluorescence... for now, defaults to first channel (may be totally wrong)
-				int detectionChannel = 1;
-				if (!isBrightfield)
-					detectionChannel = params.getIntParameterValue("detectionImageFluorescence");
-				fpDetection = channels.get("Channel " + detectionChannel);
-				if (fpDetection == null) {
-					logger.warn("Unable to find specified Channel {} - will default to Channel 1", detectionChannel);
-					fpDetection = channels.get("Channel 1");
-				}
-			}
-			WatershedCellDetector detector2 = new WatershedCellDetector(fpDetection, channels, channelsCell, roi, pathImage);
-			
-			// Create or reset the PathObjects list
-			if (pathObjects == null)
-				pathObjects = new ArrayList<>();
-			else
-				pathObjects.clear();
+			// Extract the channels & run the detection
+			TileChannels tileChannels = new TileChannels(imageData, params, pathROI, pathImage);
+			return detect(tileChannels, params, pathROI);
+		}
+		
+		/**
+		 * Get the filters chosen in the parameters.
+		 * @param params
+		 * @return
+		 */
+		static FilterBackend getFilterBackend(final ParameterList params) {
+			String choice = (String)params.getChoiceParameterValue("filterBackend");
+			if (FILTERS_OPENCV.equals(choice))
+				return FilterBackend.Filters.OPENCV;
+			if (FILTERS_OPENCV_CHECKED.equals(choice))
+				return FilterBackend.withAgreementCheck(FilterBackend.Filters.OPENCV, FilterBackend.Filters.IMAGEJ);
+			return FilterBackend.Filters.IMAGEJ;
+		}
+		
+		/**
+		 * Detect cells using the channels of a tile; the channels are only read, so the same TileChannels can be used
+		 * for several detections (one after the other).
+		 * @param tileChannels
+		 * @param params
+		 * @param pathROI
+		 * @return
+		 */
+		static List<PathObject> detect(final TileChannels tileChannels, final ParameterList params, final ROI pathROI) {
+			PathImage<ImagePlus> pathImage = tileChannels.getPathImage();
+			boolean isBrightfield = tileChannels.isBrightfield();
+			WatershedCellEngine detector2 = new WatershedCellEngine(tileChannels.getDetectionProcessor(params), tileChannels.getChannels(), tileChannels.getChannelsCell(), tileChannels.getRoi(), pathImage);
+			detector2.setFilterBackend(getFilterBackend(params));
 	
 			
 			// Convert parameters where needed
@@ -365,9 +368,7 @@ public class WatershedCellDetection2 extends AbstractTileableDetectionPlugin<Buf
 					pathROI.getZ(),
 					pathROI.getT());// && isBrightfield);
 			
-			pathObjects.addAll(detector2.getPathObjects());
-					
-			return pathObjects;
+			return detector2.getPathObjects();
 		}
 		
 		
@@ -444,537 +445,111 @@ public class WatershedCellDetection2 extends AbstractTileableDetectionPlugin<Buf
 	
 	
 	
-	static class WatershedCellDetector {
-		
-		
-		private boolean refineBoundary = true; // TODO: Consider making this variable accessible
-		
-		
-		private double backgroundRadius = 15;
-		private double maxBackground = 0.3;
-		
-		private int z = 0, t = 0;
-		
-		private boolean lastRunCompleted = false;
-		
-		private boolean includeNuclei = true;
-		private double cellExpansion = 0;
-		
-		private double minArea = 0;
-		private double maxArea = 0;
-		
-		private double medianRadius = 2;
-		private double sigma = 2.5;
-		private double threshold = 0.3;
-		private boolean mergeAll = true;
-		private boolean watershedPostProcess = true; // TODO: COMBINE WITH MERGEALL OPTION
-		private boolean excludeDAB = false;
-		private boolean smoothBoundaries = false;
-
-//		private boolean limitExpansionByNucleusSize = false;
-
-		private boolean makeMeasurements = true;
+	/**
+	 * The channels of an image tile, extracted once from the PathImage so that they can be shared by
+	 * detections using different parameters (e.g. different detection channels).
+	 */
+	static class TileChannels {
 		
+		private PathImage<ImagePlus> pathImage;
 		private Roi roi = null;
-		private FloatProcessor fpDetection = null;
-		private Map<String, FloatProcessor> channels = new LinkedHashMap<>(); // Map of channels to measure for nuclei only, and their names
-		private Map<String, FloatProcessor> channelsCell = new LinkedHashMap<>(); // Map of channels to measure for cell/cytoplasm, and their names
-		private ImageProcessor ipToMeasure = null;
-		private List<PolygonRoi> rois = null;
-		private ByteProcessor bpLoG = null;
-		
-		private List<PolygonRoi> roisNuclei = new ArrayList<>();
-		private List<PathObject> pathObjects = new ArrayList<>();
-		
-		private PathImage<ImagePlus> pathImage = null;
-		
-		public WatershedCellDetector(FloatProcessor fpDetection, Map<String, FloatProcessor> channels, Map<String, FloatProcessor> channelsCell, Roi roi, PathImage<ImagePlus> pathImage) {
-			this.fpDetection = fpDetection;
-			if (channels != null)
-				this.channels.putAll(channels);
-			if (channelsCell != null)
-				this.channelsCell.putAll(channelsCell);
-			this.roi = roi;
+		private boolean isBrightfield;
+		private ColorProcessor cpDeconvolved = null;
+		private ColorDeconvolutionStains stains;
+		private FloatProcessor fpHematoxylin = null;
+		private Map<String, ImageProcessor> channels = new LinkedHashMap<>();
+		private Map<String, ImageProcessor> channelsCell = new LinkedHashMap<>();
+		private Map<String, FloatProcessor> detectionChannels = new HashMap<>();
+		
+		TileChannels(final ImageData<BufferedImage> imageData, final ParameterList params, final ROI pathROI, final PathImage<ImagePlus> pathImage) {
 			this.pathImage = pathImage;
-			Prefs.setThreads(1);
-		}
-		
-		
-		
-		public static ByteProcessor limitedOpeningByReconstruction(final ImageProcessor ip, final ImageProcessor ipBackground, final double radius, final double maxBackground) {
-			// Apply (initial) morphological opening
-			final RankFilters rf = new RankFilters();
-			ipBackground.setRoi(ip.getRoi());
-			rf.rank(ipBackground, radius, RankFilters.MIN);
-			
-			// Mask out any above-threshold background pixels & their surroundings
-			ByteProcessor bpMask = null;
-			if (!Double.isNaN(maxBackground) && maxBackground > 0) {
-				int w = ip.getWidth();
-				int h = ip.getHeight();
-				for (int i = 0; i < w * h; i++) {
-					if (ipBackground.getf(i) > maxBackground) {
-						if (bpMask == null)
-							bpMask = new ByteProcessor(w, h);
-						bpMask.setf(i, 1f);
-					}
+			this.isBrightfield = imageData.isBrightfield();
+			this.stains = imageData.getColorDeconvolutionStains();
+			ImageProcessor ip = pathImage.getImage().getProcessor();
+			if (pathROI != null)
+				roi = ROIConverterIJ.convertToIJRoi(pathROI, pathImage);
+			if (ip instanceof ColorProcessor && stains != null && isBrightfield && !params.getParameters().get("detectionImageBrightfield").isHidden()) {
+				FloatProcessor[] fps = ColorDeconvolutionIJ.colorDeconvolve((ColorProcessor)ip, stains.getStain(1), stains.getStain(2), stains.getStain(3));
+				channels.put("Hematoxylin OD",  fps[0]);
+				if (stains.isH_DAB()) {
+					channels.put("DAB OD", fps[1]);
+					channelsCell.put("DAB OD", fps[1]);
 				}
-				// Apply mask if required
-				if (bpMask != null) {
-					rf.rank(bpMask, radius*2, RankFilters.MAX);
-					for (int i = 0; i < w * h; i++) {
-						if (bpMask.getf(i) != 0f) {
-							ipBackground.setf(i, Float.NEGATIVE_INFINITY);
-						}
-					}
+				else if (stains.isH_E()) {
+					channels.put("Eosin OD", fps[1]);
+					channelsCell.put("Eosin OD", fps[1]);
 				}
-			}
-			
-			// Apply the morphological reconstruction
-			MorphologicalReconstruction.morphologicalReconstruction(ipBackground, ip);
-			return bpMask;
-		}
-		
-		
-		
-		private void doDetection(boolean regenerateROIs) {
-			int width = fpDetection.getWidth();
-			int height = fpDetection.getHeight();
-//			Prefs.setThreads(1);
-			lastRunCompleted = false;
-			pathObjects.clear();
-			ByteProcessor bp = null;
-			ByteProcessor bpBackgroundMask = null;
-			fpDetection.setRoi(roi);
-			if (regenerateROIs) {
-				rois = null;
-				bpLoG = null;
+				cpDeconvolved = (ColorProcessor)ip;
+				fpHematoxylin = fps[0];
 				
-				// Use Laplacian of Gaussian filtering followed by watershed transform to determine possible nucleus segments
-				// Result will be a dramatic over-segmentation...
-				FloatProcessor fpLoG = (FloatProcessor)fpDetection.duplicate();
-
-				// Start off with a median filter to reduce texture, if necessary
-				RankFilters rf = new RankFilters();
-				if (medianRadius > 0)
-					rf.rank(fpLoG, medianRadius, RankFilters.MEDIAN);
-
-				//--------NEW--------
-				if (excludeDAB && channels.containsKey("Hematoxylin OD") && channels.containsKey("DAB OD")) {
-					// If we are avoiding DAB, set pixels away from potential nuclei to zero
-					FloatProcessor fpDAB = channels.get("DAB OD");
-					fpDAB.setRoi(roi);
-					ByteProcessor bpH = SimpleThresholding.greaterThanOrEqual(channels.get("Hematoxylin OD"), fpDAB);
-					bpH.multiply(1.0/255.0);
-					rf.rank(bpH, 2.5, RankFilters.MEDIAN);
-					rf.rank(bpH, 2.5, RankFilters.MAX);
-					fpLoG.copyBits(bpH, 0, 0, Blitter.MULTIPLY);
-				}
-				//--------END_NEW--------
+				// Temporary test of the usefulness of RGB measurements...
+//				channels.put("Red", ((ColorProcessor)ip).toFloat(0, null));
+//				channels.put("Green", ((ColorProcessor)ip).toFloat(1, null));
+//				channels.put("Blue", ((ColorProcessor)ip).toFloat(2, null));
 				
-				// Subtract background first, if needed
-				if (backgroundRadius > 0) {
-					ImageProcessor ipBackground = fpLoG.duplicate();
-					bpBackgroundMask = limitedOpeningByReconstruction(fpLoG, ipBackground, backgroundRadius, maxBackground);
-					fpLoG.copyBits(ipBackground, 0, 0, Blitter.SUBTRACT);
-					ipToMeasure = fpLoG.duplicate();
+			} else {
+				// Keep the channels at their own bit depth - only the detection channel needs to be converted to float
+				if (ip instanceof ColorProcessor) {
+					for (int c = 1; c <= 3; c++)
+						channels.put("Channel " + c, ((ColorProcessor)ip).getChannel(c, new ByteProcessor(ip.getWidth(), ip.getHeight())));
 				} else {
-					ipToMeasure = fpDetection;
-				}
-				
-				// Apply (approximation of) Laplacian of Gaussian filter
-				fpLoG.blurGaussian(sigma);
-				fpLoG.convolve(new float[]{0, -1, 0, -1, 4, -1, 0, -1, 0}, 3, 3);
-				
-				// Threshold the main LoG image
-				bpLoG = SimpleThresholding.thresholdAbove(fpLoG, 0f);
-				// Need to set the threshold very slightly above zero for ImageJ
-				// TODO: DECIDE ON USING MY WATERSHED OR IMAGEJ'S....
-				fpLoG.setRoi(roi);
-				
-				ImageProcessor ipTemp = RegionalExtrema.findRegionalMaxima(fpLoG, 0.001f, false);
-				ImageProcessor ipLabels = ROILabeling.labelImage(ipTemp, 0, false);
-				Watershed.doWatershed(fpLoG, ipLabels, 0, false);
-				
-				ipLabels.setThreshold(0.5, Double.POSITIVE_INFINITY, ImageProcessor.NO_LUT_UPDATE);
-				// TODO: Consider 4/8 connectivity for watershed nucleus ROIs
-				rois = ROILabeling.getFilledPolygonROIs(ipLabels, Wand.FOUR_CONNECTED);			
-				
-				if (Thread.currentThread().isInterrupted())
-					return;
-			} 
-			
-			if (bp == null)
-				bp = new ByteProcessor(width, height);	
-			
-//			// TODO: Consider application of an automated threshold
-//			if (threshold < 0) {
-//				ipToMeasure.resetRoi();
-//				ImageStatistics stats = ipToMeasure.getStatistics();
-//				threshold = stats.mean;// + stats.stdDev;
-//				logger.info("Mean threshold set: " + threshold);
-//			}
-
-			bp.setValue(255);
-			for (Roi r : rois) {
-				// Perform mean intensity check - skip if below threshold
-				ipToMeasure.setRoi(r);
-				double mean = ipToMeasure.getStatistics().mean;
-				if (mean <= threshold) {
-					continue;
-				}
-				// Perform background intensity check, if required
-				if (bpBackgroundMask != null) {
-					bpBackgroundMask.setRoi(r);
-					if (bpBackgroundMask.getStatistics().mean > 0)
-						continue;				
-				}
-				// Fill the ROI to keep it
-				bp.fill(r);
-			}
-			
-			if (Thread.currentThread().isInterrupted())
-				return;
-			
-			// Create a new, updated binary image with the potential nucleus regions & (optionally) merge these
-			bp.setThreshold(127, Double.POSITIVE_INFINITY, ImageProcessor.NO_LUT_UPDATE);
-			if (mergeAll) {
-				bp.filter(ImageProcessor.MAX);
-				bp.copyBits(bpLoG, 0, 0, Blitter.AND);	
-				if (watershedPostProcess) {
-					// TODO: ARRANGE A MORE EFFICIENT FILL HOLES
-					List<PolygonRoi> rois2 = ROILabeling.getFilledPolygonROIs(bp, Wand.FOUR_CONNECTED);
-					bp.setValue(255);
-					for (Roi r : rois2)
-						bp.fill(r);
-					new EDM().toWatershed(bp);
-				}
-			}
-			// TODO: Look at the better boundary clearing implemented in Fast_nucleus_counts
-			if (roi != null)
-				ROILabeling.clearOutside(bp, roi);
-			
-			// Locate nucleus ROIs
-			bp.setThreshold(127, Double.POSITIVE_INFINITY, ImageProcessor.NO_LUT_UPDATE);
-			
-			
-			if (IJ.debugMode) {
-				IJTools.quickShowImage("Binary", bp.duplicate());
-			}
-
-			//----------------------------
-			// MINOR BOUNDARY REFINEMENT
-			// The idea is that Gaussian smoothing tends to cause the boundaries of 'thin' nuclei to be overestimated;
-			// this uses a smaller filter to correct instances where the boundary has moved by just one pixel
-			if (refineBoundary && sigma > 1.5) {
-				FloatProcessor fpBoundaryCleanup = (FloatProcessor)fpDetection.duplicate();
-				fpBoundaryCleanup.blurGaussian(1);
-				fpBoundaryCleanup.convolve(new float[]{0, -1, 0, -1, 4, -1, 0, -1, 0}, 3, 3);
-				ByteProcessor bp2 = SimpleThresholding.thresholdAbove(fpBoundaryCleanup, 0f);
-				bp2.copyBits(bp, 0, 0, Blitter.MIN); // Remove everything not detected in bp
-				bp.filter(ByteProcessor.MIN);
-				bp.copyBits(bp2, 0, 0, Blitter.MAX);
-				regenerateROIs = true;
-			}
-			
-			//----------------------------
-			
-			roisNuclei = ROILabeling.getFilledPolygonROIs(bp, Wand.FOUR_CONNECTED);
-
-			if (Thread.currentThread().isInterrupted())
-				return;
-			
-			// Remove nuclei with areas outside the permitted range - updating the binary image as we go
-			if (minArea > 0 || maxArea > 0) {
-				bp.setValue(0);
-				Iterator<PolygonRoi> iter = roisNuclei.iterator();
-				while (iter.hasNext()) {
-					Roi roiTemp = iter.next();
-					ipToMeasure.setRoi(roiTemp);
-					ImageStatistics stats = ImageStatistics.getStatistics(ipToMeasure, Measurements.AREA | Measurements.MEAN, null);
-					double area = stats.pixelCount;
-					if ((stats.mean < threshold) || (minArea > 0 && area < minArea) || (maxArea > 0 && area > maxArea)) {
-						iter.remove();
-						bp.fill(roiTemp);
-					}
-				}
-				ipToMeasure.resetRoi();
-			}
-			
-			
-			// Label nuclei
-			ShortProcessor ipLabels = new ShortProcessor(width, height);
-			ROILabeling.labelROIs(ipLabels, roisNuclei);
-			
-			// Measure nuclei for all required channels
-			Map<String, List<RunningStatistics>> statsMap = new LinkedHashMap<>();
-			if (makeMeasurements) {
-				SimpleImage imgLabels = new PixelImageIJ(ipLabels);
-				for (String key : channels.keySet()) {
-					List<RunningStatistics> statsList = StatisticsHelper.createRunningStatisticsList(roisNuclei.size());
-					StatisticsHelper.computeRunningStatistics(new PixelImageIJ(channels.get(key)), imgLabels, statsList);
-					statsMap.put(key, statsList);
-				}
-			}
-			
-			if (Thread.currentThread().isInterrupted())
-				return;
-
-			
-			// Create nucleus objects
-			// TODO: Set the measurement capacity to improve efficiency
-			List<PathObject> nucleiObjects = new ArrayList<>();
-			Calibration cal = pathImage.getImage().getCalibration();
-			for (int i = 0; i < roisNuclei.size(); i++) {
-				PolygonRoi rOrig = roisNuclei.get(i);
-				
-				PolygonRoi r = rOrig;
-				if (smoothBoundaries)
-					r = new PolygonRoi(rOrig.getInterpolatedPolygon(Math.min(2.5, rOrig.getNCoordinates()*0.1), true), Roi.POLYGON);
-				
-				PolygonROI pathROI = ROIConverterIJ.convertToPolygonROI(r, cal, pathImage.getDownsampleFactor(), 0, z, t);
-				
-				if (smoothBoundaries) {
-					pathROI = ShapeSimplifier.simplifyPolygon(pathROI, pathImage.getDownsampleFactor()/4.0);
-				}
-				
-				// Create a new shared measurement list
-				MeasurementList measurementList = MeasurementListFactory.createMeasurementList(makeMeasurements ? 30 : 0, MeasurementList.TYPE.FLOAT);
-				
-				if (makeMeasurements) {
-					ObjectMeasurements.addShapeStatistics(measurementList, r, fpDetection, cal, "Nucleus: ");
-	
-					for (String key : channels.keySet()) {
-						List<RunningStatistics> statsList = statsMap.get(key);
-						RunningStatistics stats = statsList.get(i);
-						measurementList.addMeasurement("Nucleus: " + key + " mean", stats.getMean());
-						measurementList.addMeasurement("Nucleus: " + key + " sum", stats.getSum());
-						measurementList.addMeasurement("Nucleus: " + key + " std dev", stats.getStdDev());
-						measurementList.addMeasurement("Nucleus: " + key + " max", stats.getMax());
-						measurementList.addMeasurement("Nucleus: " + key + " min", stats.getMin());
-						measurementList.addMeasurement("Nucleus: " + key + " range", stats.getRange());
-					}
-				}
-				
-				// TODO: It would be more efficient to measure the hematoxylin intensities along with the shapes
-				PathObject pathObject = new PathDetectionObject(pathROI, null, measurementList);
-				nucleiObjects.add(pathObject);
-
-			}
-			
-			if (Thread.currentThread().isInterrupted())
-				return;
-
-			List<Roi> roisCellsList = null;
-			
-			// Optionally expand the nuclei to become cells
-			if (cellExpansion > 0) {
-				FloatProcessor fpEDM = new EDM().makeFloatEDM(bp, (byte)255, false);
-				fpEDM.multiply(-1);
-				
-				double cellExpansionThreshold = -cellExpansion;
-				
-				// Create cell ROIs
-				ImageProcessor ipLabelsCells = ipLabels.duplicate();
-				Watershed.doWatershed(fpEDM, ipLabelsCells, cellExpansionThreshold, false);
-				PolygonRoi[] roisCells = ROILabeling.labelsToFilledROIs(ipLabelsCells, roisNuclei.size());
-				
-				// Compute cell DAB stats
-				Map<String, List<RunningStatistics>> statsMapCell = new LinkedHashMap<>();
-				if (makeMeasurements) {
-					for (String key : channelsCell.keySet()) {
-						List<RunningStatistics> statsList = StatisticsHelper.createRunningStatisticsList(roisNuclei.size());
-						StatisticsHelper.computeRunningStatistics(new PixelImageIJ(channelsCell.get(key)), new PixelImageIJ(ipLabelsCells), statsList);
-						statsMapCell.put(key, statsList);
-					}
-				}
-							
-				// Create labelled image for cytoplasm, i.e. remove all nucleus pixels
-				// TODO: Make a buffer zone between nucleus and cytoplasm!
-				for (int i = 0; i < ipLabels.getWidth() * ipLabels.getHeight(); i++) {
-					if (ipLabels.getf(i) != 0)
-						ipLabelsCells.setf(i, 0f);
-				}
-				
-				// Compute cytoplasm stats
-				Map<String, List<RunningStatistics>> statsMapCytoplasm = new LinkedHashMap<>();
-				if (makeMeasurements) {
-					for (String key : channelsCell.keySet()) {
-						List<RunningStatistics> statsList = StatisticsHelper.createRunningStatisticsList(roisNuclei.size());
-						StatisticsHelper.computeRunningStatistics(new PixelImageIJ(channelsCell.get(key)), new PixelImageIJ(ipLabelsCells), statsList);
-						statsMapCytoplasm.put(key, statsList);
+					ImagePlus imp = pathImage.getImage();
+					for (int c = 1; c <= imp.getNChannels(); c++) {
+						channels.put("Channel " + c, imp.getStack().getProcessor(imp.getStackIndex(c, 0, 0)));
 					}
 				}
-				
-				
-				// Create cell objects
-				roisCellsList = new ArrayList<>(roisCells.length); // In case we need texture measurements, store all cell ROIs
-				for (int i = 0; i < roisCells.length; i++) {
-					PolygonRoi r = roisCells[i];
-					if (r == null)
-						continue;
-					if (smoothBoundaries)
-						r = new PolygonRoi(r.getInterpolatedPolygon(Math.min(2.5, r.getNCoordinates()*0.1), false), Roi.POLYGON); // TODO: Check this smoothing - it can be troublesome, causing nuclei to be outside cells
-//						r = smoothPolygonRoi(r);
-
-					PolygonROI pathROI = ROIConverterIJ.convertToPolygonROI(r, pathImage.getImage().getCalibration(), pathImage.getDownsampleFactor(), 0, z, t);
-					if (smoothBoundaries)
-						pathROI = ShapeSimplifier.simplifyPolygon(pathROI, pathImage.getDownsampleFactor()/4.0);
-
-					
-					MeasurementList measurementList = null;
-					PathObject nucleus = null;
-					if (includeNuclei) {
-						// Use the nucleus' measurement list
-						nucleus = nucleiObjects.get(i);
-						measurementList = nucleus.getMeasurementList();					
-					} else {
-						// Create a new measurement list
-						measurementList = MeasurementListFactory.createMeasurementList(makeMeasurements ? 12 : 0, MeasurementList.TYPE.GENERAL);
-					}
-									
-					// Add cell shape measurements
-					if (makeMeasurements) {
-						ObjectMeasurements.addShapeStatistics(measurementList, r, fpDetection, pathImage.getImage().getCalibration(), "Cell: ");
-	//					ObjectMeasurements.computeShapeStatistics(pathObject, pathImage, fpH, pathImage.getImage().getCalibration());
-	
-						// Add cell measurements
-						for (String key : channelsCell.keySet()) {
-							if (statsMapCell.containsKey(key)) {
-								RunningStatistics stats = statsMapCell.get(key).get(i);
-								measurementList.addMeasurement("Cell: " + key + " mean", stats.getMean());
-								measurementList.addMeasurement("Cell: " + key + " std dev", stats.getStdDev());
-								measurementList.addMeasurement("Cell: " + key + " max", stats.getMax());
-								measurementList.addMeasurement("Cell: " + key + " min", stats.getMin());
-		//						pathObject.addMeasurement("Cytoplasm: " + key + " range", stats.getRange());
-							}
-						}
-							
-							// Add cytoplasm measurements
-						for (String key : channelsCell.keySet()) {
-							if (statsMapCytoplasm.containsKey(key)) {
-								RunningStatistics stats = statsMapCytoplasm.get(key).get(i);
-								measurementList.addMeasurement("Cytoplasm: " + key + " mean", stats.getMean());
-								measurementList.addMeasurement("Cytoplasm: " + key + " std dev", stats.getStdDev());
-								measurementList.addMeasurement("Cytoplasm: " + key + " max", stats.getMax());
-								measurementList.addMeasurement("Cytoplasm: " + key + " min", stats.getMin());
-		//						pathObject.addMeasurement("Cytoplasm: " + key + " range", stats.getRange());
-							}
-						}
-						
-						// Add nucleus area ratio, if available
-						if (nucleus != null && nucleus.getROI() instanceof PathArea) {
-							double nucleusArea = ((PathArea)nucleus.getROI()).getArea();
-							double cellArea = pathROI.getArea();
-							measurementList.addMeasurement("Nucleus/Cell area ratio", Math.min(nucleusArea / cellArea, 1.0));
-	//						measurementList.addMeasurement("Nucleus/Cell expansion", cellArea - nucleusArea);
-						}
-					}
-
-					
-					// Create & store the cell object
-					PathObject pathObject = new PathCellObject(pathROI, nucleus == null ? null : nucleus.getROI(), null, measurementList);
-					pathObjects.add(pathObject);
-					
-					roisCellsList.add(r);
-				}
-			} else {
-				pathObjects.addAll(nucleiObjects);
+				// For fluorescence, measure everything
+				channelsCell.putAll(channels);
 			}
-			
-			// Close the measurement lists
-			for (PathObject pathObject : pathObjects)
-				pathObject.getMeasurementList().closeList();
-			
-			lastRunCompleted = true;
 		}
 		
-		
-		
-		
-		private static PolygonRoi smoothPolygonRoi(PolygonRoi r) {
-			FloatPolygon poly = r.getFloatPolygon();
-			FloatPolygon poly2 = new FloatPolygon();
-			int nPoints = poly.npoints;
-			for (int i = 0; i < nPoints; i += 2) {
-				int iMinus = (i + nPoints - 1) % nPoints;
-				int iPlus = (i + 1) % nPoints;
-				poly2.addPoint((poly.xpoints[iMinus] + poly.xpoints[iPlus] + poly.xpoints[i])/3, 
-						(poly.ypoints[iMinus] + poly.ypoints[iPlus] + poly.ypoints[i])/3);
+		/**
+		 * Get the image in which nuclei should be detected for a set of parameters.
+		 * @param params
+		 * @return
+		 */
+		FloatProcessor getDetectionProcessor(final ParameterList params) {
+			if (cpDeconvolved != null) {
+				if (params.getChoiceParameterValue("detectionImageBrightfield").equals(IMAGE_OPTICAL_DENSITY))
+					return ColorDeconvolutionIJ.convertToOpticalDensitySum(cpDeconvolved, stains.getMaxRed(), stains.getMaxGreen(), stains.getMaxBlue());
+				else // The engine only reads the detection image, so no copy is needed
+					return fpHematoxylin;
+			}
+			// TODO: Deal with fluorescence... for now, defaults to first channel (may be totally wrong)
+			int detectionChannel = 1;
+			if (!isBrightfield)
+				detectionChannel = params.getIntParameterValue("detectionImageFluorescence");
+			String name = "Channel " + detectionChannel;
+			if (!channels.containsKey(name)) {
+				logger.warn("Unable to find specified Channel {} - will default to Channel 1", detectionChannel);
+				name = "Channel 1";
 			}
-//			return new PolygonRoi(poly2, r.getType());
-			return new PolygonRoi(poly2, Roi.POLYGON);
+			// Convert the channel once, even if it's used for several detections
+			return detectionChannels.computeIfAbsent(name, key -> {
+				ImageProcessor ip = channels.get(key);
+				return ip instanceof FloatProcessor ? (FloatProcessor)ip : ip.convertToFloatProcessor();
+			});
 		}
 		
+		PathImage<ImagePlus> getPathImage() {
+			return pathImage;
+		}
 		
-		
-		public List<PathObject> getPathObjects() {
-			return pathObjects;
+		Roi getRoi() {
+			return roi;
 		}
 		
+		boolean isBrightfield() {
+			return isBrightfield;
+		}
 		
-//		public void runDetection(double backgroundRadius, double maxBackground, double medianRadius, double sigma, double threshold, double minArea, double maxArea, boolean mergeAll, boolean watershedPostProcess, boolean excludeDAB, double cellExpansion, boolean limitExpansionByNucleusSize, boolean smoothBoundaries, boolean includeNuclei, boolean makeMeasurements) {
-		public void runDetection(double backgroundRadius, double maxBackground, double medianRadius, double sigma, double threshold, double minArea, double maxArea, boolean mergeAll, boolean watershedPostProcess, boolean excludeDAB, double cellExpansion, boolean smoothBoundaries, boolean includeNuclei, boolean makeMeasurements, int z, int t) {
-			
-			boolean updateNucleusROIs = rois == null || bpLoG == null;
-			updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.medianRadius != medianRadius;
-			this.medianRadius = medianRadius;
-			
-			updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.t != t || this.z != z;
-			this.z = z;
-			this.t = t;
-			
-			updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.backgroundRadius != backgroundRadius;
-			this.backgroundRadius = backgroundRadius;
-
-			updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.sigma != sigma;
-			this.sigma = sigma;
-			
-			updateNucleusROIs = updateNucleusROIs ? updateNucleusROIs : this.excludeDAB != excludeDAB;
-			this.excludeDAB = excludeDAB;
-
-			boolean updateAnything = updateNucleusROIs || !lastRunCompleted;
-
-			updateAnything = updateAnything ? updateAnything : this.minArea != minArea;
-			this.minArea = minArea;
-
-			updateAnything = updateAnything ? updateAnything : this.maxArea != maxArea;
-			this.maxArea = maxArea;
-
-			updateAnything = updateAnything ? updateAnything : this.maxBackground != maxBackground;
-			this.maxBackground = maxBackground;
-
-			updateAnything = updateAnything ? updateAnything : this.threshold != threshold;
-			this.threshold = threshold;
-
-			updateAnything = updateAnything ? updateAnything : this.mergeAll != mergeAll;
-			this.mergeAll = mergeAll;
-
-			updateAnything = updateAnything ? updateAnything : this.watershedPostProcess != watershedPostProcess;
-			this.watershedPostProcess = watershedPostProcess;
-
-			updateAnything = updateAnything ? updateAnything : this.cellExpansion != cellExpansion;
-			this.cellExpansion = cellExpansion;
-			
-			updateAnything = updateAnything ? updateAnything : this.smoothBoundaries != smoothBoundaries;
-			this.smoothBoundaries = smoothBoundaries;
-			
-			updateAnything = updateAnything ? updateAnything : this.includeNuclei != includeNuclei;
-			this.includeNuclei = includeNuclei;
-			
-			updateAnything = updateAnything ? updateAnything : this.makeMeasurements != makeMeasurements;
-			this.makeMeasurements = makeMeasurements;
-			
-//			updateAnything = updateAnything ? updateAnything : this.limitExpansionByNucleusSize != limitExpansionByNucleusSize;
-//			this.limitExpansionByNucleusSize = limitExpansionByNucleusSize;
-			
-//			if (!updateAnything)
-//				return;
-			
-			doDetection(updateNucleusROIs);
-			
+		Map<String, ImageProcessor> getChannels() {
+			return channels;
 		}
 		
+		Map<String, ImageProcessor> getChannelsCell() {
+			return channelsCell;
+		}
 		
 	}
 	
@@ -991,9 +566,23 @@ public class WatershedCellDetection2 extends AbstractTileableDetectionPlugin<Buf
 	}
 
 
+	@Override
+	protected void addRunnableTasks(final ImageData<BufferedImage> imageData, final PathObject parentObject, List<Runnable> tasks) {
+		// The detectors of all tiles of this parent share one run, to resolve the objects on the seams & write checkpoints
+		ParameterList params = getParameterList(imageData);
+		TiledDetectionRun.addRunnableTasks(imageData, parentObject, tasks, params, getClass().getName(), getTileOverlap(imageData, params), run -> {
+			tiledRun = run;
+			try {
+				super.addRunnableTasks(imageData, parentObject, tasks);
+			} finally {
+				tiledRun = null;
+			}
+		});
+	}
+
 	@Override
 	protected ObjectDetector<BufferedImage> createDetector(ImageData<BufferedImage> imageData, ParameterList params) {
-		return new CellDetector();
+		return new CellDetector(tiledRun);
 	}
 
 
@@ -23,7 +23,6 @@
 
 package qupath.lib.scripting;
 
-import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -38,7 +37,6 @@ import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.gui.Wand;
 import ij.measure.Calibration;
-import ij.measure.Measurements;
 import ij.plugin.filter.EDM;
 import ij.plugin.filter.RankFilters;
 import ij.process.Blitter;
@@ -57,6 +55,7 @@ import qupath.imagej.processing.ROILabeling;
 import qupath.imagej.processing.RegionalExtrema;
 import qupath.imagej.processing.SimpleThresholding;
 import qupath.imagej.processing.Watershed;
+import qupath.lib.algorithms.FillHoles;
 import qupath.lib.color.ColorDeconvolutionStains;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.images.ImageData;
@@ -628,20 +627,9 @@ class WatershedNucleusDetector2 {
 			//			if (IJ.debugMode)
 			//				new ImagePlus("Binary during watershed", bp.duplicate()).show();
 			if (watershedPostProcess) {
-				// TODO: CHECK IF THIS IS A SENSIBLE APPROACH TO FILLING HOLES SELECTIVELY
-				List<PolygonRoi> rois2 = ROILabeling.getFilledPolygonROIs(bp, Wand.FOUR_CONNECTED);
-				bp.setValue(255);
-				for (PolygonRoi r : rois2) {
-					// Don't fill if the resulting area would be too much - do a (faster) bounding box area test first
-					Rectangle bounds = r.getBounds();
-					if (bounds.width * bounds.height > maxArea) {
-						bp.setRoi(r);
-						if (ImageStatistics.getStatistics(bp, Measurements.AREA, null).area > maxArea)
-							continue;
-					}
-					bp.fill(r);
-				}
-				bp.resetRoi();
+				// Don't fill if the resulting area would be too much
+				if (maxArea > 0)
+					FillHoles.fillHoles(bp, maxArea);
 				new EDM().toWatershed(bp);
 			}
 		}